@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AccessBuffer records buffer pool hits without taking a lock, so that a
+ * {@link ReplacementPolicy} that keeps its pages in order can apply them
+ * later, in the order they were recorded, under its own lock.  The policy
+ * drains the buffer before it chooses a victim, and whenever a hit finds
+ * the buffer full and the policy's lock free.
+ */
+class AccessBuffer {
+
+    /** Hits recorded before the buffer asks to be drained */
+    static final int CAPACITY = 1024;
+
+    private final ConcurrentLinkedQueue<PageId> hits = new ConcurrentLinkedQueue<PageId>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Records a hit on pid.
+     *
+     * @return true if the buffer is full and should be drained
+     */
+    boolean add(PageId pid) {
+        hits.add(pid);
+        return size.incrementAndGet() >= CAPACITY;
+    }
+
+    /** @return the oldest hit not yet drained, or null if there is none */
+    PageId poll() {
+        PageId pid = hits.poll();
+        if (pid != null)
+            size.decrementAndGet();
+        return pid;
+    }
+}
@@ -0,0 +1,277 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * BatchAggregate is the batch counterpart of {@link Aggregate}: it computes
+ * an aggregate over a single column, grouped by at most one column.  Each
+ * batch is first mapped to group numbers, then the aggregate is folded in
+ * with one tight loop over the column, so no Field or boxed value is made
+ * per tuple.  Int group keys are found in an open addressing table of their
+ * own; string keys in a HashMap.
+ * <p>
+ * The results match {@link IntegerAggregator} and {@link StringAggregator}:
+ * AVG rounds down, an empty input has no groups, and string fields can only
+ * be counted.
+ */
+public class BatchAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op op;
+    private final TupleBatch results;
+
+    // The groups found so far, numbered in the order they were found
+    private int groups;
+    private int[] values;
+    private int[] counts;
+    private int[] intKeys;
+    private String[] stringKeys;
+    private int[] slots;  // group number + 1 for each int key, 0 if empty
+    private HashMap<String, Integer> stringGroups;
+    private int[] groupOf;  // the group of each tuple of the batch at hand
+    private int emitted;
+
+    /**
+     * @param child
+     *            The BatchIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @throws IllegalArgumentException if aop can not be computed over
+     *            afield
+     */
+    public BatchAggregate(BatchIterator child, int afield, int gfield, Aggregator.Op aop) {
+        TupleDesc childtd = child.getTupleDesc();
+        if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG)
+            throw new IllegalArgumentException("unsupported aggregate " + aop);
+        if (childtd.getFieldType(afield) == Type.STRING_TYPE && aop != Aggregator.Op.COUNT)
+            throw new IllegalArgumentException("string fields can only be counted");
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.op = aop;
+        String aggName = aop.toString() + "(" + childtd.getFieldName(afield) + ")";
+        TupleDesc td;
+        if (gfield == Aggregator.NO_GROUPING) {
+            td = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { aggName });
+        } else {
+            String groupName = "group by(" + childtd.getFieldName(gfield) + ")";
+            td = new TupleDesc(new Type[] { childtd.getFieldType(gfield), Type.INT_TYPE },
+                    new String[] { groupName, aggName });
+        }
+        this.results = new TupleBatch(td);
+    }
+
+    /** @return the aggregate field */
+    public int aggregateField() {
+        return afield;
+    }
+
+    /** @return the group by field, or Aggregator.NO_GROUPING */
+    public int groupField() {
+        return gfield;
+    }
+
+    /** @return the aggregate operator */
+    public Aggregator.Op aggregateOp() {
+        return op;
+    }
+
+    /** Reads the whole child and computes the aggregate of every group. */
+    public void open() throws DbException, TransactionAbortedException {
+        groups = 0;
+        values = new int[16];
+        counts = new int[16];
+        intKeys = new int[16];
+        stringKeys = new String[16];
+        slots = new int[32];
+        stringGroups = new HashMap<String, Integer>();
+        groupOf = new int[0];
+        child.open();
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            merge(batch);
+        }
+        emitted = 0;
+    }
+
+    private void merge(TupleBatch batch) {
+        int n = batch.size();
+        int[] group = groupsOf(batch);
+        int[] v = op == Aggregator.Op.COUNT ? null : batch.getInts(afield);
+        switch (op) {
+        case COUNT:
+            for (int row = 0; row < n; row++)
+                counts[group[row]]++;
+            break;
+        case SUM:
+        case AVG:
+            for (int row = 0; row < n; row++) {
+                int g = group[row];
+                values[g] += v[row];
+                counts[g]++;
+            }
+            break;
+        case MIN:
+            for (int row = 0; row < n; row++) {
+                int g = group[row];
+                if (counts[g]++ == 0 || v[row] < values[g])
+                    values[g] = v[row];
+            }
+            break;
+        case MAX:
+            for (int row = 0; row < n; row++) {
+                int g = group[row];
+                if (counts[g]++ == 0 || v[row] > values[g])
+                    values[g] = v[row];
+            }
+            break;
+        default:
+            throw new IllegalStateException("unsupported aggregate " + op);
+        }
+    }
+
+    // Fills in the group of each tuple of batch, adding the new groups
+    private int[] groupsOf(TupleBatch batch) {
+        int n = batch.size();
+        if (groupOf.length < n)
+            groupOf = new int[batch.capacity()];
+        if (gfield == Aggregator.NO_GROUPING) {
+            if (groups == 0)
+                newGroup();
+            // every tuple is in group 0, and groupOf never holds another
+        } else if (batch.getTupleDesc().getFieldType(gfield) == Type.INT_TYPE) {
+            int[] keys = batch.getInts(gfield);
+            for (int row = 0; row < n; row++)
+                groupOf[row] = intGroup(keys[row]);
+        } else {
+            String[] keys = batch.getStrings(gfield);
+            for (int row = 0; row < n; row++) {
+                Integer g = stringGroups.get(keys[row]);
+                if (g == null) {
+                    g = newGroup();
+                    stringKeys[g] = keys[row];
+                    stringGroups.put(keys[row], g);
+                }
+                groupOf[row] = g;
+            }
+        }
+        return groupOf;
+    }
+
+    private int intGroup(int key) {
+        int mask = slots.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int g = slots[i] - 1;
+            if (g < 0) {
+                g = newGroup();
+                intKeys[g] = key;
+                slots[i] = g + 1;
+                if (groups * 2 > slots.length)
+                    rehash();
+                return g;
+            }
+            if (intKeys[g] == key)
+                return g;
+        }
+    }
+
+    private void rehash() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for (int s : old) {
+            if (s == 0)
+                continue;
+            int i = hash(intKeys[s - 1]) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = s;
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int newGroup() {
+        if (groups == values.length) {
+            int grown = groups * 2;
+            values = copyOf(values, grown);
+            counts = copyOf(counts, grown);
+            intKeys = copyOf(intKeys, grown);
+            String[] keys = new String[grown];
+            System.arraycopy(stringKeys, 0, keys, 0, groups);
+            stringKeys = keys;
+        }
+        return groups++;
+    }
+
+    private static int[] copyOf(int[] a, int length) {
+        int[] b = new int[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    /**
+     * @return the next batch of results: the group by value, if there is
+     *   one, followed by the aggregate value
+     */
+    public TupleBatch nextBatch() {
+        if (emitted == groups)
+            return null;
+        int n = Math.min(groups - emitted, results.capacity());
+        int aggCol = 0;
+        if (gfield != Aggregator.NO_GROUPING) {
+            aggCol = 1;
+            if (results.getTupleDesc().getFieldType(0) == Type.INT_TYPE)
+                System.arraycopy(intKeys, emitted, results.getInts(0), 0, n);
+            else
+                System.arraycopy(stringKeys, emitted, results.getStrings(0), 0, n);
+        }
+        int[] out = results.getInts(aggCol);
+        for (int i = 0; i < n; i++) {
+            int g = emitted + i;
+            switch (op) {
+            case COUNT:
+                out[i] = counts[g];
+                break;
+            case AVG:
+                out[i] = values[g] / counts[g];
+                break;
+            default:
+                out[i] = values[g];
+                break;
+            }
+        }
+        results.setSize(n);
+        emitted += n;
+        return results;
+    }
+
+    /** Hands out the results again; the child is not read again. */
+    public void rewind() {
+        emitted = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return results.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        values = counts = intKeys = slots = groupOf = null;
+        stringKeys = null;
+        stringGroups = null;
+        groups = emitted = 0;
+    }
+}
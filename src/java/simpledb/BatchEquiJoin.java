@@ -0,0 +1,158 @@
+package simpledb;
+
+/**
+ * BatchEquiJoin is the batch counterpart of {@link EquiJoin}, a hash join
+ * on the equality of one field of each child.  The first child is read
+ * whole into a single growing batch, and indexed by a chained hash table
+ * kept in two int arrays: the first tuple of each bucket, and the next
+ * tuple in the same bucket.  Each tuple of the second child then walks its
+ * bucket, so probing allocates nothing but the tuples' places in the output
+ * batch.
+ */
+public class BatchEquiJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final BatchIterator child1;
+    private final BatchIterator child2;
+    private final TupleBatch out;
+
+    private TupleBatch build;
+    private int[] buckets;  // first tuple of each bucket + 1, 0 if empty
+    private int[] next;     // next tuple in the same bucket + 1, 0 at the end
+
+    // Where the probe is: a tuple of the second child, and the next tuple
+    // of the first child it has to be joined with, or -1
+    private TupleBatch probe;
+    private int probeRow;
+    private int match;
+    private boolean probeDone;
+
+    /**
+     * @param p the predicate to join on; its operator must be EQUALS
+     * @param child1 the input that is hashed
+     * @param child2 the input that probes the hash table
+     */
+    public BatchEquiJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("BatchEquiJoin only joins on EQUALS");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.out = new TupleBatch(TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc()));
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return out.getTupleDesc();
+    }
+
+    /** Reads the first child whole and builds its hash table. */
+    public void open() throws DbException, TransactionAbortedException {
+        build = new TupleBatch(child1.getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        child1.open();
+        TupleBatch batch;
+        while ((batch = child1.nextBatch()) != null) {
+            build.ensureCapacity(build.size() + batch.size());
+            for (int row = 0; row < batch.size(); row++)
+                build.add(batch, row);
+        }
+        child1.close();
+        int n = build.size();
+        int size = Integer.highestOneBit(Math.max(n, 1) * 2);
+        buckets = new int[size];
+        next = new int[n];
+        for (int row = 0; row < n; row++) {
+            int b = buildHash(row) & (size - 1);
+            next[row] = buckets[b];
+            buckets[b] = row + 1;
+        }
+        child2.open();
+        probe = null;
+        probeRow = -1;
+        match = -1;
+        probeDone = n == 0;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        out.clear();
+        while (!out.isFull()) {
+            while (match < 0) {
+                if (probeDone)
+                    return out.isEmpty() ? null : out;
+                probeRow++;
+                if (probe == null || probeRow >= probe.size()) {
+                    probe = child2.nextBatch();
+                    probeRow = 0;
+                    if (probe == null) {
+                        probeDone = true;
+                        continue;
+                    }
+                }
+                match = findMatch(buckets[probeHash() & (buckets.length - 1)] - 1);
+            }
+            out.addJoined(build, match, probe, probeRow);
+            match = findMatch(next[match] - 1);
+        }
+        return out;
+    }
+
+    // The first tuple of the first child from row on along its bucket
+    // whose key equals the probe tuple's, or -1
+    private int findMatch(int row) {
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        if (build.getTupleDesc().getFieldType(f1) == Type.INT_TYPE) {
+            int[] keys = build.getInts(f1);
+            int key = probe.getInts(f2)[probeRow];
+            while (row >= 0 && keys[row] != key)
+                row = next[row] - 1;
+        } else {
+            String[] keys = build.getStrings(f1);
+            String key = probe.getStrings(f2)[probeRow];
+            while (row >= 0 && !keys[row].equals(key))
+                row = next[row] - 1;
+        }
+        return row;
+    }
+
+    private int buildHash(int row) {
+        int f1 = pred.getField1();
+        if (build.getTupleDesc().getFieldType(f1) == Type.INT_TYPE)
+            return hash(build.getInts(f1)[row]);
+        return hash(build.getStrings(f1)[row].hashCode());
+    }
+
+    private int probeHash() {
+        int f2 = pred.getField2();
+        if (probe.getTupleDesc().getFieldType(f2) == Type.INT_TYPE)
+            return hash(probe.getInts(f2)[probeRow]);
+        return hash(probe.getStrings(f2)[probeRow].hashCode());
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Probes with the second child again; the first is not read again. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        probe = null;
+        probeRow = -1;
+        match = -1;
+        probeDone = build.size() == 0;
+    }
+
+    public void close() {
+        child1.close();
+        child2.close();
+        build = null;
+        buckets = next = null;
+        probe = null;
+    }
+}
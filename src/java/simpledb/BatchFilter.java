@@ -0,0 +1,91 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch counterpart of {@link Filter}.  It keeps the
+ * tuples of each batch that pass the predicate by moving them to the front
+ * of the batch, comparing the field's values straight from its column.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate p;
+    private final BatchIterator child;
+
+    /**
+     * @param p
+     *            The predicate to filter tuples with
+     * @param child
+     *            The child operator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return p;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    /**
+     * @return the next batch from the child with at least one tuple that
+     *   passes the predicate, holding only those tuples
+     * @see Predicate#filter
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            batch.setSize(select(batch));
+            if (!batch.isEmpty())
+                return batch;
+        }
+        return null;
+    }
+
+    // Moves the tuples of batch that pass the predicate to its front, in
+    // order, and returns how many there are
+    private int select(TupleBatch batch) {
+        int n = batch.size();
+        int kept = 0;
+        int field = p.getField();
+        Predicate.Op op = p.getOp();
+        if (batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int[] values = batch.getInts(field);
+            int operand = ((IntField) p.getOperand()).getValue();
+            for (int row = 0; row < n; row++) {
+                if (IntField.compare(op, values[row], operand)) {
+                    if (row != kept)
+                        batch.move(row, kept);
+                    kept++;
+                }
+            }
+        } else {
+            String[] values = batch.getStrings(field);
+            String operand = ((StringField) p.getOperand()).getValue();
+            for (int row = 0; row < n; row++) {
+                if (StringField.compare(op, values[row], operand)) {
+                    if (row != kept)
+                        batch.move(row, kept);
+                    kept++;
+                }
+            }
+        }
+        return kept;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * BatchProject is the batch counterpart of {@link Project}.  Its batches
+ * share their columns with the child's, so projecting copies nothing.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final int[] outFieldIds;
+    private final TupleBatch batch;
+
+    /**
+     * @param fieldList
+     *            The ids of the fields child's tupleDesc to project out
+     * @param types
+     *            the types of the fields in the final projection
+     * @param child
+     *            The child operator
+     */
+    public BatchProject(ArrayList<Integer> fieldList, Type[] types, BatchIterator child) {
+        this.child = child;
+        this.outFieldIds = new int[fieldList.size()];
+        String[] names = new String[outFieldIds.length];
+        TupleDesc childtd = child.getTupleDesc();
+        for (int i = 0; i < outFieldIds.length; i++) {
+            outFieldIds[i] = fieldList.get(i);
+            names[i] = childtd.getFieldName(outFieldIds[i]);
+        }
+        // no room of its own is needed: it only ever views the child's batches
+        this.batch = new TupleBatch(new TupleDesc(types, names), 0);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch from = child.nextBatch();
+        if (from == null)
+            return null;
+        batch.project(from, outFieldIds);
+        return batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return batch.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+/**
+ * BatchSeqScan is the batch counterpart of {@link SeqScan}: it reads each
+ * tuple of a table, in the order they are laid out on disk, and hands them
+ * out a batch at a time.  Tuples are decoded from the pages straight into
+ * the batch's columns, and a scan may be told to decode only some fields.
+ */
+public class BatchSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HeapFile.HeapFileIterator pages;
+    private final TupleBatch batch;
+
+    /**
+     * Creates a sequential scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table; the field names of the tuples are
+     *            tableAlias.fieldName, as for SeqScan
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that reads only some fields of the table:
+     * field i of its tuples is field fields[i] of the table's.
+     *
+     * @param fields the fields to read, or null for all of them
+     * @see #BatchSeqScan(TransactionId, int, String)
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc tableTd = file.getTupleDesc();
+        if (fields == null) {
+            fields = new int[tableTd.numFields()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = i;
+        }
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = tableTd.getFieldType(fields[i]);
+            names[i] = tableAlias + "." + tableTd.getFieldName(fields[i]);
+        }
+        this.pages = file.iterator(tid, fields);
+        this.batch = new TupleBatch(new TupleDesc(types, names));
+    }
+
+    public BatchSeqScan(TransactionId tid, int tableid) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid));
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        pages.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return pages.nextBatch(batch) ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pages.rewind();
+    }
+
+    /**
+     * @return the TupleDesc of the fields read, with their names prefixed
+     *   by the alias, as for SeqScan
+     */
+    public TupleDesc getTupleDesc() {
+        return batch.getTupleDesc();
+    }
+
+    public void close() {
+        pages.close();
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchesToTuples hands out the tuples of a BatchIterator one at a time, so
+ * a batch operator can feed any operator, or be the root of a query.
+ */
+public class BatchesToTuples implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private TupleBatch batch;
+    private int row;
+    private boolean open = false;
+
+    /**
+     * @param child the batch operator whose tuples are handed out
+     */
+    public BatchesToTuples(BatchIterator child) {
+        this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = null;
+        open = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("Operator not yet open");
+        while (batch == null || row >= batch.size()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.getTuple(row++);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+        open = false;
+    }
+}
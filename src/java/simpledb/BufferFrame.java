@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BufferFrame is one slot of the BufferPool's frame array.  A frame holds at
+ * most one page at a time, together with a pin count and a latch, and owns
+ * one page-sized slice of the pool's off-heap arena that heap pages are read
+ * into and decoded from.
+ * <p>
+ * A pinned frame is never evicted.  Eviction claims a frame by swinging its
+ * pin count from 0 to -1, after which {@link #pin} fails until the frame is
+ * handed out again, so a reader can never pin a frame that is on its way out.
+ * Frames on the free list stay claimed for the same reason.
+ * The latch is held while the page is read in, reloaded or flushed; readers
+ * that find a frame still loading block on it rather than on the pool.
+ * Whenever a page leaves the frame it is detached from the frame's buffer,
+ * so the buffer can be reused while the page object is still referenced.
+ * A committed page that has not been written back yet is clean as far as
+ * its transaction is concerned, but still needs a write before its frame
+ * can be reused.
+ *
+ * @see BufferPool
+ */
+class BufferFrame {
+
+    /** Position of this frame in the BufferPool's frame array. */
+    final int index;
+
+    /** Held while the page in this frame is loaded, reloaded or flushed. */
+    final ReentrantLock latch = new ReentrantLock();
+
+    /** The frame's slice of the arena; survives the frame being retired. */
+    final ByteBuffer data;
+
+    private final AtomicInteger pins = new AtomicInteger(-1);
+    private volatile PageId pid;
+    private volatile Page page;
+
+    /** Set while the page was brought in by a large scan and has not been
+     * asked for by anything else since. */
+    volatile boolean sequential;
+
+    /** Set while the page holds committed changes that are not on disk. */
+    volatile boolean needsWrite;
+
+    /** LSN of the first logged change to the page that has not been
+     * written back since, or -1; what a checkpoint records for the page. */
+    volatile long recLSN = -1;
+
+    BufferFrame(int index, ByteBuffer data) {
+        this.index = index;
+        this.data = data;
+    }
+
+    /** @return the id of the page this frame holds or is loading */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the page in this frame, or null if it is not loaded yet */
+    Page getPage() {
+        return page;
+    }
+
+    void setPage(Page page) {
+        Page old = this.page;
+        if (old != page && old instanceof HeapPage)
+            ((HeapPage) old).detach(data);
+        this.page = page;
+    }
+
+    /**
+     * Adds a pin unless the frame is being evicted.
+     * @return true if the frame was pinned
+     */
+    boolean pin() {
+        while (true) {
+            int c = pins.get();
+            if (c < 0)
+                return false;
+            if (pins.compareAndSet(c, c + 1))
+                return true;
+        }
+    }
+
+    void unpin() {
+        pins.decrementAndGet();
+    }
+
+    int pinCount() {
+        return pins.get();
+    }
+
+    /**
+     * Claims an unpinned frame for eviction; only one thread can succeed,
+     * and no one can pin the frame until {@link #assign} or
+     * {@link #release}.
+     */
+    boolean claim() {
+        return pins.compareAndSet(0, -1);
+    }
+
+    /** Gives up a claim without evicting. */
+    void release() {
+        pins.compareAndSet(-1, 0);
+    }
+
+    /** Empties a claimed frame so it can go back on the free list. */
+    void free() {
+        setPage(null);
+        pins.set(-1);
+    }
+
+    /**
+     * Prepares a free or claimed frame to hold pid.  The frame comes back
+     * pinned once, for the thread that is about to load it.
+     */
+    void assign(PageId pid) {
+        setPage(null);
+        this.pid = pid;
+        this.sequential = false;
+        this.needsWrite = false;
+        this.recLSN = -1;
+        pins.set(1);
+    }
+}
@@ -1,11 +1,26 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -16,6 +31,31 @@ import java.util.concurrent.ConcurrentHashMap;
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
  * 
+ * Pages live in a fixed array of {@link BufferFrame}s.  The page table is
+ * a lock-striped ConcurrentHashMap, a hit only pins a frame, and a miss only
+ * latches the frame it is filling, so the pool has no global lock.
+ * Each frame is a slice of one off-heap arena of direct ByteBuffers, and
+ * heap file pages are read into and decoded straight out of their frame, so
+ * the pool's heap footprint does not grow with the data it caches.
+ * Scans can ask for pages ahead of time with {@link #prefetchPage}; those
+ * are read in on a small pool of background threads.
+ * 
+ * Large scans pass a sequential hint.  Pages they bring in go on a scan
+ * ring and are evicted before anything the replacement policy ranks, so a
+ * scan recycles its own few frames instead of flushing the working set.
+ * A page on the ring that is then asked for without the hint leaves it.
+ * 
+ * The pool runs STEAL/NO-FORCE.  A commit only logs the pages its
+ * transaction dirtied (see {@link #logPages}); a background writer writes
+ * them back later, in page-number order.  When a frame is needed and no
+ * unpinned page is clean, the victim is written back first, logged if its
+ * transaction is still running, and an abort puts back the before-images
+ * of any pages that were stolen that way.
+ * 
+ * A transaction begun with {@link #beginSnapshot} reads the database as
+ * of the last commit before it began, from the committed versions kept by
+ * a {@link VersionStore}.  It takes no locks and may not write.
+ * 
  * @Threadsafe, all fields are final
  */
 @SuppressWarnings("unused")
@@ -29,33 +69,157 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** How long a miss waits for a pinned frame to be released before it
+    gives up on finding room in the pool. */
+    private static final long PIN_WAIT_MILLIS = 1000;
+
+    /** At most 1/PREFETCH_SHARE of the pool may be taken up by prefetch
+    reads in flight. */
+    private static final int PREFETCH_SHARE = 4;
+
+    /** How long the background writer lets commits pile up before it
+    writes their pages back. */
+    private static final long WRITE_DELAY_MILLIS = 20;
+
+    /** Orders pages by file, then by their position in the file. */
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return a.pageNumber() < b.pageNumber() ? -1 : (a.pageNumber() == b.pageNumber() ? 0 : 1);
+        }
+    };
     
-    private static Map<Integer, Page> pageMap;
-    private static ArrayList<PageId> usedPages;
-    private static int maxPages;
-    private static HeapFile file;
-    private static int lastTid;
+    private final ConcurrentHashMap<PageId, BufferFrame> pageTable;
+    private final BufferFrame[] frames;
+    private final ConcurrentLinkedQueue<BufferFrame> freeFrames;
+    private final ReentrantLock evictionLock;
+    private final Condition frameUnpinned;
+    private final AtomicInteger frameWaiters;
+    private final ReplacementPolicy policy;
+    private final ConcurrentLinkedQueue<PageId> scanRing;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final ConcurrentHashMap<PageId, Boolean> prefetching;
+    private final ExecutorService prefetcher;
+    private final ExecutorService writer;
+    private final AtomicBoolean writeScheduled;
+    private final ConcurrentHashMap<DbFile, Boolean> unforced;
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Page>> stolen;
+    private final ConcurrentHashMap<TransactionId, HashMap<PageId, Integer>> pins;
+    private final VersionStore versions;
+    private final int maxPages;
     private LockManager lockManager;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, replaced with
+     * CLOCK.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        maxPages = numPages;
-        pageMap = new HashMap<Integer, Page>();
-        usedPages = new ArrayList<PageId>();
-        lockManager = new LockManager(numPages+1);
+        this(numPages, new ClockPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and asks policy
+     * which page to give up when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this.maxPages = numPages;
+        this.pageTable = new ConcurrentHashMap<PageId, BufferFrame>(numPages * 2, 0.75f,
+                Runtime.getRuntime().availableProcessors() * 4);
+        this.frames = new BufferFrame[numPages];
+        this.freeFrames = new ConcurrentLinkedQueue<BufferFrame>();
+        ByteBuffer[] arena = allocateArena(numPages, getPageSize());
+        for (int i = 0; i < numPages; i++) {
+            frames[i] = new BufferFrame(i, arena[i]);  // starts out free
+            freeFrames.add(frames[i]);
+        }
+        this.evictionLock = new ReentrantLock();
+        this.frameUnpinned = evictionLock.newCondition();
+        this.frameWaiters = new AtomicInteger(0);
+        this.policy = policy;
+        this.scanRing = new ConcurrentLinkedQueue<PageId>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.prefetching = new ConcurrentHashMap<PageId, Boolean>();
+        int readers = Math.min(4, Runtime.getRuntime().availableProcessors());
+        this.prefetcher = daemonExecutor(readers, "BufferPool prefetch");
+        this.writer = daemonExecutor(1, "BufferPool writer");
+        this.writeScheduled = new AtomicBoolean(false);
+        this.unforced = new ConcurrentHashMap<DbFile, Boolean>();
+        this.stolen = new ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Page>>();
+        this.pins = new ConcurrentHashMap<TransactionId, HashMap<PageId, Integer>>();
+        this.versions = new VersionStore();
+        this.lockManager = new LockManager(numPages+1);
+    }
+
+    // Background threads that go away when idle, since pools are replaced
+    // freely
+    private static ExecutorService daemonExecutor(int threads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    // Carves numPages page-sized frames out of direct memory, in chunks
+    // that stay under the 2GB limit on a single ByteBuffer
+    private static ByteBuffer[] allocateArena(int numPages, int pageSize) {
+        ByteBuffer[] buffers = new ByteBuffer[numPages];
+        int perChunk = Integer.MAX_VALUE / pageSize;
+        ByteBuffer chunk = null;
+        for (int i = 0; i < numPages; i++) {
+            int start = (i % perChunk) * pageSize;
+            if (start == 0)
+                chunk = ByteBuffer.allocateDirect(Math.min(perChunk, numPages - i) * pageSize);
+            chunk.limit(start + pageSize);
+            chunk.position(start);
+            buffers[i] = chunk.slice();
+        }
+        return buffers;
     }
     
     public static int getPageSize() {
       return pageSize;
     }
+
+    /** @return the number of pages this pool can hold */
+    public int getNumPages() {
+    	return maxPages;
+    }
+
+    /** @return the number of page requests served from the pool */
+    public long getHitCount() {
+    	return hits.get();
+    }
+
+    /** @return the number of page requests that had to read the page in */
+    public long getMissCount() {
+    	return misses.get();
+    }
     
     public void insertIntoPageMap(PageId pid, Page p) {
-    	if(pageMap.containsKey(pid.hashCode())) {
-    		pageMap.put(pid.hashCode(), p);
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame != null) {
+    		frame.latch.lock();
+    		try {
+    			if(pid.equals(frame.getPageId()) && frame.getPage() != null)
+    				frame.setPage(p);
+    		} finally {
+    			frame.latch.unlock();
+    		}
     	}
     }
     
@@ -75,38 +239,310 @@ public class BufferPool {
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
      *
+     * <p>
+     * The page is not pinned, so once this returns it may be evicted and
+     * its frame reused at any time; it then keeps a copy of its contents,
+     * but a read or change made while that copy is taken can tear.  Code
+     * that decodes or changes the page must use {@link #pinPage} instead,
+     * and mark a changed page dirty before unpinning it.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-    	lockManager.requestLock(tid, pid, perm);
-        if(pageMap.containsKey(pid.hashCode())){  //access a page in the BufferPool
-        	Page page = pageMap.get(pid.hashCode());
-        	movePageToFront(pid);
-        	return page;
-        } else {
-        	if(pageMap.keySet().size() >= maxPages){
-        		evictPage();  //New page but no room, evict one
-        	}
-	        //Add the new page
-	        int tableId = pid.getTableId();
-	        Page newPage = ((HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).readPage(pid);
-	        pageMap.put(pid.hashCode(), newPage);
-	        usedPages.add(0, pid);
-	        return newPage;
-        }
+    	lock(tid, pid, perm);
+    	BufferFrame frame = pinFrame(pid, false, false);
+    	Page page = pageFor(tid, pid, perm, frame);
+    	unpin(frame);
+    	return page;
+    }
+
+    /**
+     * Like {@link #getPage}, but leaves the page pinned so that it stays in
+     * the pool until the caller is done with it.  Every call must be matched
+     * by a call to {@link #unpinPage}; pins tid still holds when it
+     * completes are dropped then, so an iterator abandoned after an abort
+     * does not hold its page for good.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	return pinPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Like {@link #pinPage(TransactionId, PageId, Permissions)}.  Set
+     * sequential when the page is part of a scan over a table too large to
+     * keep in the pool, so that the scan does not push out other pages.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
+        throws TransactionAbortedException, DbException {
+    	lock(tid, pid, perm);
+    	BufferFrame frame = pinFrame(pid, sequential, false);
+    	HashMap<PageId, Integer> held = pins.get(tid);
+    	if(held == null) {
+    		pins.putIfAbsent(tid, new HashMap<PageId, Integer>());
+    		held = pins.get(tid);
+    	}
+    	synchronized(held) {
+    		Integer n = held.get(pid);
+    		held.put(pid, n == null ? 1 : n + 1);
+    	}
+    	return pageFor(tid, pid, perm, frame);
+    }
+
+    // Locks pid for tid, unless tid reads a snapshot: that takes no locks,
+    // and may only read
+    private void lock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	if(!versions.isSnapshot(tid)) {
+    		lockManager.requestLock(tid, pid, perm);
+    	} else if(perm != Permissions.READ_ONLY) {
+    		throw new DbException("snapshot transaction " + tid.getId() + " can not write");
+    	}
+    }
+
+    // The page in frame as tid may see it: the version tid's snapshot
+    // reads, or else the page itself, noted as one tid may change
+    private Page pageFor(TransactionId tid, PageId pid, Permissions perm, BufferFrame frame) {
+    	Page page = frame.getPage();
+    	if(versions.isSnapshot(tid)) {
+    		return versions.read(tid, pid, page);
+    	}
+    	if(perm != Permissions.READ_ONLY) {
+    		versions.beforeWrite(tid, pid);
+    	}
+    	return page;
+    }
+
+    /**
+     * Starts a read-only transaction that sees the database as of the last
+     * commit, takes no locks, and so never waits for writers.  It ends with
+     * {@link #transactionComplete}.
+     *
+     * @param tid the ID of the snapshot transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Drops a pin tid took by {@link #pinPage}.  Does nothing if tid holds
+     * no pin on pid, as after it has completed.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+    	HashMap<PageId, Integer> held = pins.get(tid);
+    	if(held == null) {
+    		return;
+    	}
+    	synchronized(held) {
+    		Integer n = held.get(pid);
+    		if(n == null) {
+    			return;
+    		}
+    		if(n == 1) {
+    			held.remove(pid);
+    		} else {
+    			held.put(pid, n - 1);
+    		}
+    	}
+    	unpinFrame(pid, 1);
+    }
+
+    // Drops the pins tid still holds, left by iterators it never closed
+    private void releasePins(TransactionId tid) {
+    	HashMap<PageId, Integer> held = pins.remove(tid);
+    	if(held == null) {
+    		return;
+    	}
+    	synchronized(held) {
+    		for(Map.Entry<PageId, Integer> e : held.entrySet()) {
+    			unpinFrame(e.getKey(), e.getValue());
+    		}
+    		held.clear();
+    	}
+    }
+
+    // A pinned page can not leave its frame, so the frame is still there
+    private void unpinFrame(PageId pid, int count) {
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame != null && pid.equals(frame.getPageId())) {
+    		for(int i = 0; i < count; i++) {
+    			unpin(frame);
+    		}
+    	}
+    }
+
+    /**
+     * Starts reading pid into the pool in the background, if it is not
+     * already resident.  This is only a hint: no lock is taken, since the
+     * page is just being cached, and the request is dropped if too many
+     * prefetches are in flight or there is no free frame.  The reader
+     * still fetches the page with {@link #getPage} or {@link #pinPage}.
+     * sequential is the same hint as for pinPage.
+     */
+    public void prefetchPage(final PageId pid, final boolean sequential) {
+    	if(pageTable.containsKey(pid) || prefetching.size() >= maxPages / PREFETCH_SHARE
+    			|| prefetching.putIfAbsent(pid, Boolean.TRUE) != null) {
+    		return;
+    	}
+    	try {
+    		prefetcher.execute(new Runnable() {
+    			public void run() {
+    				try {
+    					BufferFrame frame = pinFrame(pid, sequential, true);
+    					if(frame != null) {
+    						unpin(frame);
+    					}
+    				} catch(Exception e) {
+    					// the reader will try again and see the error itself
+    				} finally {
+    					prefetching.remove(pid);
+    				}
+    			}
+    		});
+    	} catch(RejectedExecutionException e) {
+    		prefetching.remove(pid);
+    	}
+    }
+
+    // Drops a pin, waking any miss that is waiting for a frame to free up
+    private void unpin(BufferFrame frame) {
+    	frame.unpin();
+    	if(frameWaiters.get() > 0 && frame.pinCount() == 0) {
+    		evictionLock.lock();
+    		try {
+    			frameUnpinned.signalAll();
+    		} finally {
+    			evictionLock.unlock();
+    		}
+    	}
     }
     
-    //Moves the page corresponding to the given PageId to the front of the LRU list
-    private synchronized void movePageToFront(PageId pid){
-    	if(usedPages.contains(pid)){
-    		int oldIndex = usedPages.indexOf(pid);
-	    	PageId toFront = usedPages.remove(oldIndex);
-	    	usedPages.add(0, toFront);
+    // Returns the frame holding pid, pinned and loaded. A hit is a table
+    // lookup plus a CAS on the pin count; only a thread that misses does
+    // I/O, and it holds just the latch of the frame it is filling. A
+    // prefetch is not counted as a hit or miss, and gets null rather than
+    // wait for a frame to be unpinned.
+    private BufferFrame pinFrame(PageId pid, boolean sequential, boolean prefetch)
+    	throws DbException {
+    	while(true) {
+    		BufferFrame frame = pageTable.get(pid);
+    		if(frame != null) {
+    			if(!frame.pin()) {
+    				continue;  // being evicted, look again
+    			}
+    			if(!pid.equals(frame.getPageId())) {
+    				frame.unpin();
+    				continue;
+    			}
+    			if(frame.getPage() == null) {
+    				// still loading; wait for the loader to let go of the latch
+    				frame.latch.lock();
+    				frame.latch.unlock();
+    				if(frame.getPage() == null) {
+    					frame.unpin();
+    					throw new DbException("could not read page " + pid);
+    				}
+    			}
+    			if(!sequential) {
+    				frame.sequential = false;  // wanted for more than a scan
+    				policy.pageAccessed(pid);
+    			}
+    			if(!prefetch) {
+    				hits.incrementAndGet();
+    			}
+    			return frame;
+    		}
+
+    		frame = allocateFrame(!prefetch);
+    		if(frame == null) {
+    			return null;
+    		}
+    		frame.assign(pid);
+    		frame.latch.lock();
+    		try {
+    			if(pageTable.putIfAbsent(pid, frame) != null) {
+    				// lost the race to load pid; hand the frame back and retry
+    				frame.free();
+    				freeFrames.add(frame);
+    				continue;
+    			}
+    			try {
+    				frame.setPage(loadPage(pid, frame));
+    			} catch(RuntimeException e) {
+    				// threads waiting on the latch still hold pins on this
+    				// frame, so retire it and put a fresh one in its slot
+    				pageTable.remove(pid, frame);
+    				frames[frame.index] = new BufferFrame(frame.index, frame.data);
+    				freeFrames.add(frames[frame.index]);
+    				throw e;
+    			}
+    			policy.pageAdded(pid);
+    			if(sequential) {
+    				frame.sequential = true;
+    				scanRing.add(pid);
+    			}
+    			if(!prefetch) {
+    				misses.incrementAndGet();
+    			}
+    			return frame;
+    		} finally {
+    			frame.latch.unlock();
+    		}
     	}
-    	
+    }
+    
+    // Reads pid into frame's buffer if its file can work from one. Subclasses
+    // of HeapFile may override readPage, so only plain HeapFiles qualify.
+    private Page loadPage(PageId pid, BufferFrame frame) {
+    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	if(file.getClass() == HeapFile.class && frame.data.capacity() == getPageSize()) {
+    		return ((HeapFile) file).readPage((HeapPageId) pid, frame.data);
+    	}
+    	return file.readPage(pid);
+    }
+    
+    // Takes a free frame, evicting a page if there is none. Either way the
+    // frame comes back claimed, so nobody else can pin it. If every page is
+    // pinned, waits a while for one to be unpinned, or returns null if told
+    // not to wait.
+    private BufferFrame allocateFrame(boolean wait) throws DbException {
+    	long deadline = System.currentTimeMillis() + PIN_WAIT_MILLIS;
+    	while(true) {
+    		BufferFrame frame = freeFrames.poll();
+    		if(frame == null) {
+    			frame = evictPage();  //New page but no room, evict one
+    		}
+    		if(frame != null || !wait) {
+    			return frame;
+    		}
+    		long remaining = deadline - System.currentTimeMillis();
+    		if(remaining <= 0 || !anyPinned()) {
+    			// If we reach here, there are only pinned pages, throw exception
+    			throw new DbException("All pages are pinned");
+    		}
+    		frameWaiters.incrementAndGet();
+    		evictionLock.lock();
+    		try {
+    			frameUnpinned.await(remaining, TimeUnit.MILLISECONDS);
+    		} catch(InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new DbException("interrupted while waiting for a free frame");
+    		} finally {
+    			evictionLock.unlock();
+    			frameWaiters.decrementAndGet();
+    		}
+    	}
+    }
+
+    private boolean anyPinned() {
+    	for(BufferFrame frame : frames) {
+    		if(frame.pinCount() > 0)
+    			return true;
+    	}
+    	return false;
     }
 
     /**
@@ -129,7 +565,7 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      */
-    public synchronized void transactionComplete(TransactionId tid) throws IOException {
+    public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
     	transactionComplete(tid, true);
@@ -147,52 +583,110 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
     	throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	releasePins(tid);
+    	if(versions.isSnapshot(tid)) {
+    		versions.endSnapshot(tid);
+    		return;
+    	}
     	if(commit){
-    		// Flush all pages associated with tid to disk
-    		ArrayList<PageId> pages = lockManager.getPagesLockedByTxn(tid);
-        	Page p;
-        	for(PageId pid : pages) {
-        		p = pageMap.get(pid.hashCode());
-        		if(p != null && p.isDirty() != null) {
-        			flushPage(pid);
-        			// use current page contents as the before-image
-        	        // for the next transaction that modifies this page.
-        	        p.setBeforeImage();
-        		}
-        	}
+    		// No-Force: log whatever is still dirty and leave the pages to
+    		// the background writer
+    		versions.startCommit(tid);
+    		try {
+    			logPages(tid);
+    			stolen.remove(tid);
+    		} finally {
+    			versions.commit(tid);
+    		}
     	} else {
-    		// Since we're implementing Force/No-Steal, we can abort by discarding the
-    		// dirty pages and re-reading them from disk
-    		int tableId;
-	    	Page newPage;
-	    	// Discard all dirty pages
-	    	ArrayList<PageId> pages = lockManager.getPagesLockedByTxn(tid);
-	    	int foundIndex;
-	    	for(PageId pid : pages) {
-	    		foundIndex = usedPages.indexOf(pid);
-	    		if(foundIndex > -1) {
-		    		usedPages.remove(foundIndex);
-		    		pageMap.remove(pid.hashCode());
-	    		}
-	    	}
-
-	    	for(PageId pid : pages) {
-	    		try {
-					Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-				} catch (TransactionAbortedException e) {
-					e.printStackTrace();
-				} catch (DbException e) {
-					e.printStackTrace();
-				}
-	    	}
+    		abortPages(tid);
+    		versions.abort(tid);
     	}
 		lockManager.releaseAllLocksForTxn(tid);
     }
 
+    /**
+     * Appends an update record for every page tid has dirtied and hands the
+     * pages to the background writer, which writes them back later.  The
+     * records are not forced here: the commit record that follows forces
+     * them, and the writer forces the log before it writes anything back.
+     *
+     * @param tid the committing transaction
+     */
+    public void logPages(TransactionId tid) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	synchronized(log) {
+    		for(PageId pid : lockManager.getPagesLockedByTxn(tid)) {
+    			BufferFrame frame = pageTable.get(pid);
+    			if(frame == null) {
+    				continue;
+    			}
+    			frame.latch.lock();
+    			try {
+    				Page p = frame.getPage();
+    				if(p == null || !pid.equals(frame.getPageId())) {
+    					continue;
+    				}
+    				if(p.isDirty() != null) {
+    					long lsn = log.logWrite(p.isDirty(), p.getBeforeImage(), p,
+    							wasStolen(p.isDirty(), pid));
+    					p.markDirty(false, null);
+    					frame.needsWrite = true;
+    					if(frame.recLSN < 0) {
+    						frame.recLSN = lsn;
+    					}
+    				}
+    				// use current page contents as the before-image
+    				// for the next transaction that modifies this page,
+    				// including changes that were stolen
+    				versions.beforePublish(tid, pid, p);
+    				p.setBeforeImage();
+    			} finally {
+    				frame.latch.unlock();
+    			}
+    		}
+    	}
+    	scheduleWrite();
+    }
+
+    // Undoes tid's changes by re-reading the pages it dirtied. Before that,
+    // the disk gets back whatever it no longer has the right version of:
+    // the before-images of pages stolen from tid, and the committed state
+    // of pages the writer had not got to when tid dirtied them.
+    private void abortPages(TransactionId tid) throws IOException {
+    	ConcurrentHashMap<PageId, Page> befores = stolen.remove(tid);
+    	if(befores == null) {
+    		befores = new ConcurrentHashMap<PageId, Page>();
+    	}
+    	ArrayList<PageId> dirtied = new ArrayList<PageId>(befores.keySet());
+    	for(PageId pid : lockManager.getPagesLockedByTxn(tid)) {
+    		BufferFrame frame = pageTable.get(pid);
+    		Page p = frame == null || !pid.equals(frame.getPageId()) ? null : frame.getPage();
+    		if(p != null && p.isDirty() != null && p.isDirty().equals(tid)) {
+    			if(frame.needsWrite) {
+    				befores.putIfAbsent(pid, p.getBeforeImage());
+    			}
+    			if(!dirtied.contains(pid)) {
+    				dirtied.add(pid);
+    			}
+    		}
+    	}
+    	HashSet<DbFile> written = new HashSet<DbFile>();
+    	for(Page before : befores.values()) {
+    		DbFile file = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
+    		file.writePage(before);
+    		written.add(file);
+    	}
+    	force(written);
+    	for(PageId pid : dirtied) {
+    		discardPage(pid);
+    	}
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -239,94 +733,382 @@ public class BufferPool {
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages, and committed pages the background writer has
+     * not written back yet, to disk.  Pages of running transactions are
+     * stolen: their update records are logged and forced first.
      */
-    public synchronized void flushAllPages() throws IOException {
-    	for(int key : pageMap.keySet()){
-        	Page p = pageMap.get(key);
-        	flushPage(p.getId());
+    public void flushAllPages() throws IOException {
+    	HashSet<DbFile> written = new HashSet<DbFile>();
+    	for(PageId pid : pageTable.keySet()){
+        	addWritten(written, flushPage(pid));
         }
+    	drainUnforced(written);
+    	force(written);
+    }
+
+    /**
+     * Returns the dirty page table for a checkpoint: every resident page
+     * with logged changes that have not been written back, and the LSN of
+     * the first of them.  Nothing is latched, so the table is fuzzy; the
+     * caller holds the log, so no record appended before it is missing.
+     * A page left out may have been written just before; the write is not
+     * durable until its file is forced.
+     */
+    public HashMap<PageId, Long> getDirtyPageTable() {
+    	HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+    	for(BufferFrame frame : frames) {
+    		PageId pid = frame.getPageId();
+    		long recLSN = frame.recLSN;
+    		if(pid != null && recLSN >= 0) {
+    			dirty.put(pid, recLSN);
+    		}
+    	}
+    	return dirty;
+    }
+
+    // Starts the background writer unless it is already due to run
+    private void scheduleWrite() {
+    	if(!writeScheduled.compareAndSet(false, true)) {
+    		return;
+    	}
+    	try {
+    		writer.execute(new Runnable() {
+    			public void run() {
+    				try {
+    					Thread.sleep(WRITE_DELAY_MILLIS);  // let a few commits pile up
+    				} catch(InterruptedException e) {
+    					Thread.currentThread().interrupt();
+    				}
+    				writeScheduled.set(false);
+    				try {
+    					writeBehind();
+    				} catch(IOException e) {
+    					// the pages stay marked; eviction or the next
+    					// run will write them
+    				}
+    			}
+    		});
+    	} catch(RejectedExecutionException e) {
+    		writeScheduled.set(false);
+    	}
+    }
+
+    // Writes back committed pages in page-number order, so each file is
+    // written front to back. Pages someone holds an exclusive lock on are
+    // skipped, since their transaction may be changing them without having
+    // logged the change yet, and no exclusive lock is granted on a page
+    // while it is being written.
+    private void writeBehind() throws IOException {
+    	ArrayList<PageId> batch = new ArrayList<PageId>();
+    	for(BufferFrame frame : frames) {
+    		PageId pid = frame.getPageId();
+    		if(frame.needsWrite && pid != null) {
+    			batch.add(pid);
+    		}
+    	}
+    	if(batch.isEmpty()) {
+    		return;
+    	}
+    	Collections.sort(batch, PAGE_ORDER);
+    	Database.getLogFile().force();  // update records go first
+    	HashSet<DbFile> written = new HashSet<DbFile>();
+    	for(PageId pid : batch) {
+    		if(lockManager.holdForFlush(pid)) {
+    			try {
+    				addWritten(written, flushPage(pid));
+    			} finally {
+    				lockManager.releaseFlushHold(pid);
+    			}
+    		}
+    	}
+    	drainUnforced(written);
+    	force(written);
+    }
+
+    /**
+     * Stops the background writer.  Committed pages it has not written back
+     * yet are written now if writeCommitted is set, and otherwise left to
+     * recovery, as after a crash.  Called when the pool is replaced.
+     */
+    void close(boolean writeCommitted) throws IOException {
+    	writer.shutdown();
+    	try {
+    		writer.awaitTermination(PIN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    	} catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	if(!writeCommitted) {
+    		return;
+    	}
+    	HashSet<DbFile> written = new HashSet<DbFile>();
+    	for(BufferFrame frame : frames) {
+    		PageId pid = frame.getPageId();
+    		Page p = frame.getPage();
+    		if(frame.needsWrite && pid != null && p != null && p.isDirty() == null) {
+    			addWritten(written, flushPage(pid));
+    		}
+    	}
+    	drainUnforced(written);
+    	force(written);
     }
 
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
         cache.
+        A page that is pinned cannot leave its frame, so it is re-read from
+        disk in place instead.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+    public void discardPage(PageId pid) {
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame == null) {
+    		return;
+    	}
+    	if(frame.claim()) {
+    		if(pid.equals(frame.getPageId()) && pageTable.remove(pid, frame)) {
+    			policy.pageRemoved(pid);
+    			frame.free();
+    			freeFrames.add(frame);
+    		} else {
+    			frame.release();
+    		}
+    		return;
+    	}
+    	frame.latch.lock();
+    	try {
+    		if(pid.equals(frame.getPageId()) && frame.getPage() != null) {
+    			frame.setPage(null);  // let go of the buffer before reading over it
+    			frame.setPage(loadPage(pid, frame));
+    			frame.needsWrite = false;
+    			frame.recLSN = -1;
+    		}
+    	} finally {
+    		frame.latch.unlock();
+    	}
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, if it is dirty or holds committed
+     * changes that have not been written back.  A dirty page belongs to a
+     * running transaction, so its update record is logged and forced first
+     * and its before-image is kept in case the transaction aborts.  The
+     * write is not durable until the page's file is forced; callers
+     * flushing a batch of pages force each file once at the end.
      * @param pid an ID indicating the page to flush
+     * @return the file the page was written to, or null if nothing was written
      */
-    private void flushPage(PageId pid) throws IOException {
-    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	Page p = pageMap.get(pid.hashCode());
-    	// append an update record to the log, with 
-        // a before-image and after-image.
-        TransactionId dirtier = p.isDirty();
-        if (dirtier != null){
-          Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-          Database.getLogFile().force();
-        }
-    	file.writePage(p);
+    private DbFile flushPage(PageId pid) throws IOException {
+    	BufferFrame frame = pageTable.get(pid);
+    	if (frame == null) {
+    		return null;
+    	}
+    	Page p = frame.getPage();
+    	if (p != null && p.isDirty() != null) {
+    		// the log is taken before the latch, the same order rollback
+    		// takes them in
+    		synchronized (Database.getLogFile()) {
+    			return writeFrame(pid, frame);
+    		}
+    	}
+    	return writeFrame(pid, frame);
+    }
+
+    // Writes out the page in frame for flushPage. A page that turns out to
+    // be dirty can only be logged by a caller holding the log, so without
+    // it the page is left alone.
+    private DbFile writeFrame(PageId pid, BufferFrame frame) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	frame.latch.lock();
+    	try {
+    		Page p = frame.getPage();
+    		if (p == null || !pid.equals(frame.getPageId())) {
+    			return null;
+    		}
+	    	// append an update record to the log, with 
+	        // a before-image and after-image.
+	        TransactionId dirtier = p.isDirty();
+	        if (dirtier != null) {
+	        	if (!Thread.holdsLock(log)) {
+	        		return null;
+	        	}
+	        	log.logWrite(dirtier, p.getBeforeImage(), p, wasStolen(dirtier, pid));
+	        	log.force();
+	        	ConcurrentHashMap<PageId, Page> befores = stolen.get(dirtier);
+	        	if (befores == null) {
+	        		stolen.putIfAbsent(dirtier, new ConcurrentHashMap<PageId, Page>());
+	        		befores = stolen.get(dirtier);
+	        	}
+	        	Page before = p.getBeforeImage();
+	        	befores.putIfAbsent(pid, before);
+	        	versions.beforeSteal(dirtier, pid, before);
+	        } else if (!frame.needsWrite) {
+	        	return null;  // clean, the disk copy is current
+	        }
+	    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+	    	file.writePage(p);
+	    	frame.needsWrite = false;
+	    	frame.recLSN = -1;
+	    	return file;
+    	} finally {
+    		frame.latch.unlock();
+    	}
+    }
+
+    // Whether pid has been stolen from tid: written back with changes of
+    // tid's, so a record diffed against tid's before-image would not redo it
+    private boolean wasStolen(TransactionId tid, PageId pid) {
+    	ConcurrentHashMap<PageId, Page> befores = stolen.get(tid);
+    	return befores != null && befores.containsKey(pid);
+    }
+
+    private static void addWritten(HashSet<DbFile> written, DbFile file) {
+    	if (file != null)
+    		written.add(file);
+    }
+
+    // Adds the files eviction has written to since they were last forced
+    private void drainUnforced(HashSet<DbFile> written) {
+    	for (DbFile file : unforced.keySet()) {
+    		if (unforced.remove(file) != null)
+    			written.add(file);
+    	}
+    }
+
+    // Makes a batch of page writes durable, with one force per file
+    private static void force(HashSet<DbFile> written) throws IOException {
+    	for (DbFile file : written) {
+    		file.force();
+    	}
+    }
+
+    // Returns the page pid if it is resident, without pinning it
+    private Page residentPage(PageId pid) {
+    	BufferFrame frame = pageTable.get(pid);
+    	if(frame == null || !pid.equals(frame.getPageId())) {
+    		return null;
+    	}
+    	return frame.getPage();
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
     	
     	//For all pages that this transaction has locks on, flush to disk using flushPage
     	ArrayList<PageId> pages = lockManager.getPagesLockedByTxn(tid);
+    	HashSet<DbFile> written = new HashSet<DbFile>();
     	Page p;
     	for(PageId pid : pages) {
-    		p = pageMap.get(pid.hashCode());
+    		p = residentPage(pid);
     		if(p != null) {
-    			flushPage(pid);
+    			addWritten(written, flushPage(pid));
     			// use current page contents as the before-image
     	        // for the next transaction that modifies this page.
     	        p.setBeforeImage();
     		}
     	}
+    	force(written);
     }
     
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * @throws DbException 
-     * @throws IOException 
+     * Discards a page from the buffer pool and returns its frame, claimed
+     * for reuse.
+     * Pages on the scan ring go first, oldest first; after that the
+     * replacement policy picks the victim, from the clean pages if it can.
+     * Failing that, an unpinned page that still has to be written is
+     * written back and evicted.  Pinned frames are never chosen.
+     * @return the freed frame, or null if every page is pinned
      */
-    private synchronized void evictPage() throws DbException {
-    	int i = usedPages.size()-1;
-    	
-    	// Loop through pages in BufferPool, evict least recently used clean page
-    	while(i >= 0) {
-    		PageId nextOldestPageId = usedPages.get(i);
-    		int nextOldestPageHash = nextOldestPageId.hashCode();
-    		// Check that we're evicting a clean page
-    		if(pageMap.get(nextOldestPageHash).isDirty() == null){
-	        	try {
-					flushPage(nextOldestPageId);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-	        	usedPages.remove(i);
-	        	pageMap.remove(nextOldestPageId.hashCode());
-	        	// Evicted a page, end the loop
-	        	return;
+    private BufferFrame evictPage() {
+    	evictionLock.lock();
+    	try {
+    		for(int i = 0; i < frames.length; i++) {
+    			PageId victim = scanRing.poll();
+    			if(victim == null) {
+    				break;
+    			}
+    			BufferFrame frame = pageTable.get(victim);
+    			if(frame == null || !frame.sequential || !victim.equals(frame.getPageId())) {
+    				continue;  // already gone, or promoted
+    			}
+    			if(evictable.canEvict(victim) && evict(victim, frame)) {
+    				return frame;
+    			}
+    			scanRing.add(victim);  // still in use by its scan
+    		}
+    		// the policy may hand back a frame that gets pinned or dirtied
+    		// before we claim it; give up after one try per frame
+    		for(ReplacementPolicy.Evictable filter : victimFilters) {
+    			for(int i = 0; i < frames.length; i++) {
+    				PageId victim = policy.chooseVictim(filter);
+    				if(victim == null) {
+    					break;
+    				}
+    				BufferFrame frame = pageTable.get(victim);
+    				if(frame != null && evict(victim, frame)) {
+    					return frame;
+    				}
+    			}
     		}
-    		i--;
+    	} finally {
+    		evictionLock.unlock();
     	}
-    	
-    	// If we reach here, there are only dirty pages, throw exception
-    	throw new DbException("All pages are dirty");
+    	return freeFrames.poll();  // someone may have freed a frame meanwhile
     }
 
+    // Takes victim out of frame if it is still unpinned, writing it back
+    // first if it has to be, and leaves the frame claimed
+    private boolean evict(PageId victim, BufferFrame frame) {
+    	if(!frame.claim()) {
+    		return false;
+    	}
+    	Page p = frame.getPage();
+    	if(p == null || !victim.equals(frame.getPageId())) {
+    		frame.release();
+    		return false;
+    	}
+    	if(p.isDirty() != null || frame.needsWrite) {
+    		try {
+    			DbFile file = flushPage(victim);
+    			if(file != null) {
+    				unforced.put(file, Boolean.TRUE);
+    			}
+    		} catch(IOException e) {
+    			frame.release();
+    			return false;
+    		}
+    	}
+    	if(p.isDirty() != null || frame.needsWrite || !pageTable.remove(victim, frame)) {
+    		frame.release();  // changed again while it was written
+    		return false;
+    	}
+    	policy.pageRemoved(victim);
+    	frame.setPage(null);
+    	return true;
+    }
+    
+    // Clean, unpinned pages can leave the pool without any I/O
+    private final ReplacementPolicy.Evictable evictable = new ReplacementPolicy.Evictable() {
+    	public boolean canEvict(PageId pid) {
+    		BufferFrame frame = pageTable.get(pid);
+    		if(frame == null || frame.pinCount() != 0 || frame.needsWrite) {
+    			return false;
+    		}
+    		Page p = frame.getPage();
+    		return p != null && p.isDirty() == null;
+    	}
+    };
+
+    // Any other unpinned page is written back first
+    private final ReplacementPolicy.Evictable stealable = new ReplacementPolicy.Evictable() {
+    	public boolean canEvict(PageId pid) {
+    		BufferFrame frame = pageTable.get(pid);
+    		return frame != null && frame.pinCount() == 0 && frame.getPage() != null;
+    	}
+    };
+
+    private final ReplacementPolicy.Evictable[] victimFilters = { evictable, stealable };
+
 }
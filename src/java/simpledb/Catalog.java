@@ -44,7 +44,9 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         int fileId = file.getId();
-        tableMap.put(fileId, file);
+        DbFile old = tableMap.put(fileId, file);
+        if (old != null && old != file)
+            close(old);
         nameMap.put(fileId, name);
         pkeyMap.put(fileId, pkeyField);
     }
@@ -111,11 +113,19 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
+        for (DbFile file : tableMap.values())
+            close(file);
     	tableMap = new HashMap<Integer, DbFile>();
     	nameMap = new HashMap<Integer, String>();
     	pkeyMap = new HashMap<Integer, String>();
     }
     
+    // Releases the file descriptor of a table that has left the catalog
+    private static void close(DbFile file) {
+        if (file instanceof HeapFile)
+            ((HeapFile) file).close();
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement.  Resident pages sit in a circular array
+ * of slots, each with a reference bit.  A hit only sets the bit, so it is
+ * O(1) and lock free; the clock hand sweeps the array on eviction, clearing
+ * bits and taking the first unreferenced page that may be evicted.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Slot {
+        final PageId pid;
+        volatile boolean referenced;
+
+        Slot(PageId pid) {
+            this.pid = pid;
+            this.referenced = true;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Slot> slotMap;
+    private Slot[] ring;          // protected by this
+    private final ArrayList<Integer> freeSlots; // protected by this
+    private final ConcurrentHashMap<PageId, Integer> positions;
+    private int hand;             // protected by this
+
+    /**
+     * @param capacity the number of pages the buffer pool can hold; the ring
+     *            grows if more pages than this are ever resident at once
+     */
+    public ClockPolicy(int capacity) {
+        int size = Math.max(capacity, 1);
+        this.slotMap = new ConcurrentHashMap<PageId, Slot>();
+        this.positions = new ConcurrentHashMap<PageId, Integer>();
+        this.ring = new Slot[size];
+        this.freeSlots = new ArrayList<Integer>();
+        for (int i = size - 1; i >= 0; i--) {
+            freeSlots.add(i);
+        }
+        this.hand = 0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (slotMap.containsKey(pid)) {
+            slotMap.get(pid).referenced = true;
+            return;
+        }
+        if (freeSlots.isEmpty()) {
+            grow();
+        }
+        int pos = freeSlots.remove(freeSlots.size() - 1);
+        Slot s = new Slot(pid);
+        ring[pos] = s;
+        positions.put(pid, pos);
+        slotMap.put(pid, s);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Slot s = slotMap.get(pid);
+        if (s != null) {
+            s.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Slot s = slotMap.remove(pid);
+        Integer pos = positions.remove(pid);
+        if (s != null && pos != null) {
+            ring[pos] = null;
+            freeSlots.add(pos);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable filter) {
+        // two full sweeps: the first may only clear reference bits
+        int steps = ring.length * 2;
+        for (int i = 0; i < steps; i++) {
+            Slot s = ring[hand];
+            hand = (hand + 1) % ring.length;
+            if (s == null) {
+                continue;
+            }
+            if (s.referenced) {
+                s.referenced = false;
+                continue;
+            }
+            if (filter.canEvict(s.pid)) {
+                return s.pid;
+            }
+        }
+        return null;
+    }
+
+    // Doubles the ring when every slot is taken
+    private void grow() {
+        Slot[] bigger = new Slot[ring.length * 2];
+        System.arraycopy(ring, 0, bigger, 0, ring.length);
+        for (int i = bigger.length - 1; i >= ring.length; i--) {
+            freeSlots.add(i);
+        }
+        ring = bigger;
+    }
+}
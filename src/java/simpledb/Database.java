@@ -52,11 +52,13 @@ public class Database {
 
     /**
      * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * return it.  Committed pages the old pool had not written back yet are
+     * written out first.
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
+            _instance.get()._bufferpool.close(true);
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
@@ -68,13 +70,23 @@ public class Database {
             e.printStackTrace();
         } catch (IllegalAccessException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
         return _instance.get()._bufferpool;
     }
 
     // reset the database, used for unit tests only.
+    // Pages not yet written back are lost, as in a crash.
     public static void reset() {
+        _instance.get()._logfile.setCheckpointInterval(0);
+        try {
+            _instance.get()._bufferpool.close(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
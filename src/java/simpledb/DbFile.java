@@ -28,6 +28,15 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Force every page written with {@link #writePage} to stable storage.
+     * writePage need not be durable by itself; callers that write a batch
+     * of pages force once at the end of the batch.
+     *
+     * @throws IOException if the pages cannot be synced
+     */
+    public void force() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
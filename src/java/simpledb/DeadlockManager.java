@@ -1,157 +1,169 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
+/**
+ * DeadlockManager keeps the waits-for graph of the transactions waiting for
+ * locks and finds the cycles in it.  Only waiting transactions have edges,
+ * and a transaction's edges are added and removed together by the thread
+ * it waits on.  The graph is a concurrent map, so waiters do not line up
+ * behind one another to update it.
+ * <p>
+ * Cycles are found incrementally: a waiter publishes its edges first and
+ * then searches for a path back to itself from the transactions it waits
+ * for.  Of two waiters that close a cycle at the same time, at least one
+ * sees the other's edges, so no cycle goes unnoticed.  The transaction on
+ * the cycle holding the fewest locks is chosen to abort, since it has the
+ * least work to lose.  Transactions already aborting are left out of the
+ * search, so the waiter can search again until no cycle runs through it.
+ */
 public class DeadlockManager {
-	/** The waits-for graph representing the TransactionId's that transactions are 
+	/** The waits-for graph representing the TransactionId's that transactions are
 	 * waiting for*/
-	private HashMap<TransactionId, ArrayList<TransactionId>> waitsForGraph;
-	
-	/** A list representing the TransactionId's that have started aborting */
-	ArrayList<TransactionId> abortingTids;
-	
+	private final ConcurrentHashMap<TransactionId, Set<TransactionId>> waitsForGraph;
+
+	/** The TransactionId's that have started aborting */
+	final Set<TransactionId> abortingTids;
+
+	/** Where victims' locks are counted */
+	private final LockManager locks;
+
 	/**
 	 * Creates a new instance of a DeadlockManager with an empty waits-for graph
+	 * @param locks the lock manager whose waiters this tracks
 	 */
-	public DeadlockManager() {
-		this.waitsForGraph = new HashMap<TransactionId, ArrayList<TransactionId>>();
-		this.abortingTids = new ArrayList<TransactionId>();
+	public DeadlockManager(LockManager locks) {
+		this.waitsForGraph = new ConcurrentHashMap<TransactionId, Set<TransactionId>>();
+		this.abortingTids = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+		this.locks = locks;
 	}
-	
+
 	/**
-	 * Adds a new dependency from tid1 to tid2
-	 * @param tid1 the transaction that is waiting
-	 * @param tid2 the transaction that tid2 is waiting for
-	 * @throws TransactionAbortedException 
+	 * Records that waiter waits for each of blockers
+	 * @param waiter the transaction that is waiting
+	 * @param blockers the transactions that waiter is waiting for
 	 */
-	public synchronized boolean addToGraph(TransactionId tid1, TransactionId tid2) 
-			throws TransactionAbortedException {
-		// don't allow an edge to be added twice or to itself
-		if (tid1.equals(tid2) || (waitsForGraph.containsKey(tid1) && 
-				waitsForGraph.get(tid1).equals(tid2))) {
-			return true;
-		} else if (wouldHaveCycle(tid1, tid2)) {
-			// Adding this edge would produce a deadlock, signify abort by returning false
-			abortingTids.add(tid1);
-			return false;
-		} else {
-			// Legal to add this dependency
-			if(waitsForGraph.containsKey(tid1)) {
-				ArrayList<TransactionId> dependsOnList = waitsForGraph.get(tid1);
-				if(!dependsOnList.contains(tid2))
-					dependsOnList.add(tid2);
-				waitsForGraph.put(tid1, dependsOnList);
-			} else {
-				waitsForGraph.put(tid1, new ArrayList<TransactionId>(Arrays.asList(tid2)));
+	public void waitFor(TransactionId waiter, Collection<TransactionId> blockers) {
+		Set<TransactionId> edges = waitsForGraph.get(waiter);
+		if (edges == null) {
+			edges = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+			waitsForGraph.put(waiter, edges);
+		}
+		for (TransactionId blocker : blockers) {
+			if (!blocker.equals(waiter)) {
+				edges.add(blocker);
 			}
 		}
-		return true;
 	}
-	
+
+	/**
+	 * Looks for a cycle through waiter among the transactions that are not
+	 * aborting
+	 * @param waiter a transaction that is waiting
+	 * @return null if there is no cycle; otherwise the transaction on the
+	 *   cycle that holds the fewest locks, which should abort
+	 */
+	public TransactionId findVictim(TransactionId waiter) {
+		ArrayList<TransactionId> cycle = findCycle(waiter);
+		return cycle == null ? null : chooseVictim(cycle);
+	}
+
 	/**
 	 * Removes a dependency between tid1 and tid2
 	 * @param tid1 the transaction that was previously waiting
 	 * @param tid2 the transaction that tid1 was previously waiting for
 	 */
 	public void removeFromGraph(TransactionId tid1, TransactionId tid2) {
-		if (waitsForGraph.containsKey(tid1)) {
-			ArrayList<TransactionId> dependsOnList = waitsForGraph.get(tid1);
-			dependsOnList.remove(tid2);
-			if(dependsOnList.size() == 0) {
-				waitsForGraph.remove(tid1);
-			} else {
-				waitsForGraph.put(tid1, dependsOnList);
-			}
+		Set<TransactionId> edges = waitsForGraph.get(tid1);
+		if (edges != null) {
+			edges.remove(tid2);
 		}
 	}
-	
+
 	/**
 	 * Removes all dependencies that depend on desttid
 	 * @param desttid the dependency that is the destination of all dependencies to remove
 	 */
-	/* When we commit or abort a transaction, we will want to remove all dependencies from 
-	 * transaction tid1 to desttid */
-	public synchronized void removeAllDependenciesTo(TransactionId desttid) {
-		// Make copy of keySet to avoid ConcurrentModificationException
-		Set<TransactionId> keySetCopy = new HashSet<TransactionId>();
-		keySetCopy.addAll(waitsForGraph.keySet());
-		for(TransactionId tid : keySetCopy) {
-			ArrayList<TransactionId> dependsOnList = new ArrayList<TransactionId>();
-			dependsOnList.addAll(waitsForGraph.get(tid));
-			
-			if(waitsForGraph.get(tid).contains(desttid)) {
-				dependsOnList.remove(desttid);
-			}
-			if(dependsOnList.size() == 0) {
-				waitsForGraph.remove(tid);
-			}
-			else {
-				waitsForGraph.put(tid, dependsOnList);
-			}
-		}
-		if(waitsForGraph.containsKey(desttid)) {
-			waitsForGraph.remove(desttid);
+	/* When we commit or abort a transaction, the transactions still waiting
+	 * no longer wait for it. Only waiting transactions are in the graph, so
+	 * this visits one entry per waiter */
+	public void removeAllDependenciesTo(TransactionId desttid) {
+		for (Set<TransactionId> edges : waitsForGraph.values()) {
+			edges.remove(desttid);
 		}
+		waitsForGraph.remove(desttid);
 	}
-	
-	
+
 	/**
-	 * Returns true if the dependency graph would have a cycle if we were to add
-	 * a dependency from tid1 to tid2
-	 * @param tid1 the hypothetical source TransactionId
-	 * @param tid2 the hypothetical destination TransactionId
-	 * @return whether the graph would have a deadlock if edge (tid1, tid2) were added
+	 * Removes all dependencies from tid, once it is no longer waiting
+	 * @param tid the transaction that was waiting
 	 */
-	/* Abstracts away the confusing parameters in opposite order, 
-	 * depthFirstSearch does the work*/
-	private synchronized boolean wouldHaveCycle(TransactionId tid1, TransactionId tid2) {
-		return depthFirstSearch(tid2, tid1);
+	public void removeAllDependenciesFrom(TransactionId tid) {
+		waitsForGraph.remove(tid);
 	}
-	
-	/* Returns true if a path is found from tid1 to tid2 
-	 * Note that normal usage will be checking the opposite direction of the edge we
-	 * want to add to the dependency graph */
-	private synchronized boolean depthFirstSearch(TransactionId tid1, TransactionId tid2) {
-		Queue<TransactionId> q = new LinkedList<TransactionId>();
-		ArrayList<TransactionId> visitedtids = new ArrayList<TransactionId>();
-		q.add(tid1);
-		visitedtids.add(tid1);
-		while(!q.isEmpty()) {
-			TransactionId tid = q.remove();
-			if(tid.equals(tid2)) {
-				// We've found a path, return true
-				return true;
+
+	/* Returns a cycle through start, as the list of transactions on it
+	 * starting with start, or null if there is none. A depth first search
+	 * from start that remembers how it reached each transaction */
+	private ArrayList<TransactionId> findCycle(TransactionId start) {
+		HashMap<TransactionId, TransactionId> reachedFrom = new HashMap<TransactionId, TransactionId>();
+		LinkedList<TransactionId> stack = new LinkedList<TransactionId>();
+		stack.push(start);
+		while (!stack.isEmpty()) {
+			TransactionId tid = stack.pop();
+			Set<TransactionId> dependsOn = waitsForGraph.get(tid);
+			if (dependsOn == null) {
+				continue;
 			}
-			ArrayList<TransactionId> dependsOnList = waitsForGraph.get(tid1);
-			// If there exist dependencies
-			if(dependsOnList != null) {
-				for(TransactionId t : dependsOnList) {
-					// If we've already seen this TransactionId, skip; otherwise add to queue
-					if(!visitedtids.contains(t)) {
-						q.add(t);
-						visitedtids.add(t);
+			for (TransactionId t : dependsOn) {
+				if (t.equals(start)) {
+					ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+					for (TransactionId at = tid; !at.equals(start); at = reachedFrom.get(at)) {
+						cycle.add(0, at);
 					}
+					cycle.add(0, start);
+					return cycle;
+				}
+				if (!reachedFrom.containsKey(t) && !abortingTids.contains(t)) {
+					reachedFrom.put(t, tid);
+					stack.push(t);
 				}
 			}
 		}
-		return false;
+		return null;
 	}
-	
+
+	/* Picks the transaction on the cycle holding the fewest locks; of those
+	 * holding as few, the youngest */
+	private TransactionId chooseVictim(ArrayList<TransactionId> cycle) {
+		TransactionId victim = null;
+		int victimLocks = Integer.MAX_VALUE;
+		for (TransactionId tid : cycle) {
+			int held = locks.locksHeldBy(tid);
+			if (held < victimLocks || (held == victimLocks && tid.getId() > victim.getId())) {
+				victim = tid;
+				victimLocks = held;
+			}
+		}
+		return victim;
+	}
+
 	/**
 	 * Returns true if tid is waiting for any other transactions
 	 * @param tid the TransactionId to test dependencies for
 	 */
 	public boolean hasDependencies(TransactionId tid) {
-		return waitsForGraph.containsKey(tid);
+		Set<TransactionId> edges = waitsForGraph.get(tid);
+		return edges != null && !edges.isEmpty();
 	}
-	
+
 	public String toString() {
 		return waitsForGraph.toString();
 	}
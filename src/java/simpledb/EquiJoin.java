@@ -1,40 +1,107 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
+/**
+ * EquiJoin is a hybrid hash join.  It builds a hash table on child1 and
+ * streams child2 past it.  The table is held to a memory budget, counted in
+ * bytes of tuple data: when child1 outgrows it, child1 is split into
+ * FANOUT partitions by the hash of its join field.  The first partition
+ * stays in memory while it fits and the others go to temporary files;
+ * child2 is split the same way as it is probed, and each pair of spilled
+ * partitions is then joined in turn.  A partition that still does not fit
+ * is split again with another hash, up to MAX_LEVELS times; past that
+ * (when most tuples share one key) it is joined a budget's worth at a time.
+ * <p>
+ * A probe tuple walks the list of build tuples with its key in place.
+ */
 public class EquiJoin extends Join {
 
 	private static final long serialVersionUID = 1L;
+
+	/** Bytes of build tuples held in memory unless told otherwise */
+	public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+	/** Partitions an input is split into when it does not fit */
+	static final int FANOUT = 16;
+
+	/** Times a partition may be split again before it is joined in chunks */
+	static final int MAX_LEVELS = 3;
+
+	/** A pair of spilled partitions still to be joined. */
+	private static class Pass {
+		final TupleFile build;
+		final TupleFile probe;
+		final int level;
+
+		Pass(TupleFile build, TupleFile probe, int level) {
+			this.build = build;
+			this.probe = probe;
+			this.level = level;
+		}
+	}
+
 	private JoinPredicate pred;
 	private DbIterator child1;
 	private DbIterator child2;
-	private HashMap<Field, ArrayList<Tuple>> hashTable;
-	private ArrayList<Tuple> buffer;
-	private Tuple t1;
+	private final long memoryBudget;
+	private HashMap<Object, ArrayList<Tuple>> hashTable;
+	private long tableBytes;
+	// What the join has done since it was opened
+	private boolean spilled;
+	private int deepestLevel;
+	private boolean joinedInChunks;
+
+	// The pass under way: what it probes with, how deep it is, and the
+	// files it was read from (null when joining the children)
+	private DbIterator probe;
+	private int level;
+	private Pass current;
+	private DbIterator currentBuild;
+	// The partitions the pass is splitting its inputs into, if it is, and
+	// whether the first of them is still in memory
+	private TupleFile[] buildParts;
+	private TupleFile[] probeParts;
+	private boolean resident;
+	// The rest of the build side, when it is joined a chunk at a time
+	private DbIterator chunked;
+	private final LinkedList<Pass> pending = new LinkedList<Pass>();
+
+	private ArrayList<Tuple> bucket;
+	private int bucketPos;
 	private Tuple t2;
-	
+
 	public EquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2){
+		this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * @param memoryBudget the bytes of child1's tuples, as stored on a page,
+	 *   to hold in memory at once
+	 */
+	public EquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBudget){
 		this.pred = p;
 		this.child1 = child1;
 		this.child2 = child2;
-		this.hashTable = null;
+		this.memoryBudget = memoryBudget;
+		this.hashTable = new HashMap<Object, ArrayList<Tuple>>();
 	}
-	
+
 	public JoinPredicate getJoinPredicate(){
 		return pred;
 	}
-	
+
 	public String getJoinField1Name() {
 		return child1.getTupleDesc().getFieldName(pred.getField1());
 	}
-	
+
 	public String getJoinField2Name() {
 		return child2.getTupleDesc().getFieldName(pred.getField2());
 	}
-	
+
 	public TupleDesc getTupleDesc() {
 		return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
 	}
@@ -42,33 +109,196 @@ public class EquiJoin extends Join {
 	public void open() throws DbException, NoSuchElementException,
 		TransactionAbortedException {
 		child1.open();
-		hashTable = new HashMap<Field, ArrayList<Tuple>>();
-		while(child1.hasNext()){
-			t1 = child1.next();
-			Field compKey = t1.getField(pred.getField1());
-			if(!hashTable.containsKey(compKey)){
-				hashTable.put(compKey, new ArrayList<Tuple>(Arrays.asList(t1)));
-			} else {
-				ArrayList<Tuple> value = hashTable.get(compKey);
-				value.add(t1);
-				hashTable.put(compKey, value);
-			}
-		}
-		child1.close();
 		child2.open();
-		buffer = null;
+		spilled = false;
+		deepestLevel = 0;
+		joinedInChunks = false;
+		startPass(child1, child2, 0);
 	}
-	
+
 	public void close() {
+		endPass();
+		for (Pass p : pending) {
+			p.build.delete();
+			p.probe.delete();
+		}
+		pending.clear();
 		child1.close();
 		child2.close();
 		hashTable.clear();
 	}
-	
+
 	public void rewind() throws DbException, TransactionAbortedException {
-		child1.rewind();
-		child2.rewind();
+		if (!spilled) {
+			// the whole of child1 is still in the table
+			child2.rewind();
+			bucket = null;
+			return;
+		}
+		close();
+		open();
+	}
+
+	/** @return true if the join has written to temporary files since it was opened */
+	boolean hasSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * @return the most times a part of child1 has been split since the
+	 *   join was opened: 0 if it fit in memory, 1 if the partitions it was
+	 *   split into did, and so on
+	 */
+	int deepestLevel() {
+		return deepestLevel;
+	}
+
+	/**
+	 * @return true if, since the join was opened, a partition that could
+	 *   not be split further has been joined a chunk at a time
+	 */
+	boolean hasJoinedInChunks() {
+		return joinedInChunks;
+	}
+
+	// Builds the table from build, splitting it if it does not fit, and
+	// gets ready to probe it with probe
+	private void startPass(DbIterator build, DbIterator probe, int level)
+			throws DbException, TransactionAbortedException {
+		this.probe = probe;
+		this.level = level;
+		deepestLevel = Math.max(deepestLevel, level);
+		hashTable.clear();
+		tableBytes = 0;
+		buildParts = null;
+		probeParts = null;
+		chunked = null;
+		bucket = null;
+		int field = pred.getField1();
+		while (build.hasNext()) {
+			Tuple t = build.next();
+			if (buildParts == null) {
+				insert(t);
+				if (tableBytes <= memoryBudget)
+					continue;
+				spilled = true;
+				if (level == MAX_LEVELS) {
+					chunked = build;
+					joinedInChunks = true;
+					return;
+				}
+				split(build.getTupleDesc());
+			} else {
+				int p = partition(key(t, field), level);
+				if (p == 0 && resident) {
+					insert(t);
+					if (tableBytes > memoryBudget)
+						spillResident();
+				} else {
+					buildParts[p].add(t);
+				}
+			}
+		}
+	}
+
+	private void insert(Tuple t) {
+		Object key = key(t, pred.getField1());
+		ArrayList<Tuple> tuples = hashTable.get(key);
+		if (tuples == null) {
+			tuples = new ArrayList<Tuple>(2);
+			hashTable.put(key, tuples);
+		}
+		tuples.add(t);
+		tableBytes += t.getTupleDesc().getSize();
+	}
+
+	// Starts splitting both inputs of the pass, moving the tuples of every
+	// partition but the first out of the table
+	private void split(TupleDesc buildTd) throws DbException {
+		buildParts = new TupleFile[FANOUT];
+		probeParts = new TupleFile[FANOUT];
+		for (int i = 0; i < FANOUT; i++) {
+			buildParts[i] = new TupleFile(buildTd);
+			probeParts[i] = new TupleFile(probe.getTupleDesc());
+		}
+		resident = true;
+		HashMap<Object, ArrayList<Tuple>> table = hashTable;
+		hashTable = new HashMap<Object, ArrayList<Tuple>>();
+		tableBytes = 0;
+		for (ArrayList<Tuple> tuples : table.values()) {
+			for (Tuple t : tuples) {
+				int p = partition(key(t, pred.getField1()), level);
+				if (p == 0)
+					insert(t);
+				else
+					buildParts[p].add(t);
+			}
+		}
+		if (tableBytes > memoryBudget)
+			spillResident();
+	}
+
+	// Moves the first partition out of memory as well
+	private void spillResident() throws DbException {
+		for (ArrayList<Tuple> tuples : hashTable.values()) {
+			for (Tuple t : tuples)
+				buildParts[0].add(t);
+		}
+		hashTable.clear();
+		tableBytes = 0;
+		resident = false;
+	}
+
+	// Fills the table with the next budget's worth of the build side
+	private void nextChunk() throws DbException, TransactionAbortedException {
+		hashTable.clear();
+		tableBytes = 0;
+		while (tableBytes <= memoryBudget && chunked.hasNext())
+			insert(chunked.next());
+	}
+
+	// Closes and deletes the files the pass was reading, and queues the
+	// partitions it wrote that can have matches
+	private void endPass() {
+		if (current != null) {
+			currentBuild.close();
+			probe.close();
+			current.build.delete();
+			current.probe.delete();
+			current = null;
+			currentBuild = null;
+		}
+		if (buildParts != null) {
+			for (int i = 0; i < FANOUT; i++) {
+				if (buildParts[i].size() > 0 && probeParts[i].size() > 0) {
+					pending.addFirst(new Pass(buildParts[i], probeParts[i], level + 1));
+				} else {
+					buildParts[i].delete();
+					probeParts[i].delete();
+				}
+			}
+			buildParts = null;
+			probeParts = null;
+		}
+		chunked = null;
+		bucket = null;
+	}
+
+	// The key of field i of t, for hashing
+	private static Object key(Tuple t, int i) {
+		if (t.getTupleDesc().getFieldType(i) == Type.INT_TYPE)
+			return Integer.valueOf(t.getInt(i));
+		return t.getString(i);
+	}
+
+	// The partition key falls in at level, each level with its own hash
+	private static int partition(Object key, int level) {
+		int h = key.hashCode() + level * 0x9E3779B9;
+		h = (h ^ (h >>> 16)) * 0x85EBCA6B;
+		h = (h ^ (h >>> 13)) * 0xC2B2AE35;
+		return (h ^ (h >>> 16)) & (FANOUT - 1);
 	}
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -83,31 +313,51 @@ public class EquiJoin extends Join {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    	while(buffer == null || buffer.isEmpty()){
-    		if(child2.hasNext()){
-    			t2 = child2.next();
-    			ArrayList<Tuple> temp = new ArrayList<Tuple>();
-    			if(hashTable.containsKey(t2.getField(pred.getField2()))){
-    				ArrayList<Tuple> field2Lookup = hashTable.get(t2.getField(pred.getField2()));
-	    			if(field2Lookup != null){
-	    				temp.addAll(field2Lookup);
-	    				buffer = temp;
-	    			}
+    	while (true) {
+    		if (bucket != null && bucketPos < bucket.size()) {
+    			Tuple t1 = bucket.get(bucketPos++);
+    			return mergeTuples(t1.getTupleDesc().numFields(),
+    					t2.getTupleDesc().numFields(), t1, t2);
+    		}
+    		if (probe.hasNext()) {
+    			t2 = probe.next();
+    			Object key = key(t2, pred.getField2());
+    			bucket = null;
+    			if (buildParts != null) {
+    				int p = partition(key, level);
+    				if (p != 0 || !resident) {
+    					// the build side is all read, so an empty
+    					// partition has nothing to match
+    					if (buildParts[p].size() > 0)
+    						probeParts[p].add(t2);
+    					continue;
+    				}
     			}
+    			bucket = hashTable.get(key);
+    			bucketPos = 0;
+    		} else if (chunked != null && chunked.hasNext()) {
+    			nextChunk();
+    			probe.rewind();
+    			bucket = null;
     		} else {
-    			return null; // end of the second relation
+    			endPass();
+    			if (pending.isEmpty())
+    				return null; // end of the second relation
+    			current = pending.removeFirst();
+    			currentBuild = current.build.iterator();
+    			DbIterator nextProbe = current.probe.iterator();
+    			currentBuild.open();
+    			nextProbe.open();
+    			startPass(currentBuild, nextProbe, current.level);
     		}
     	}
-    	t1 = buffer.remove(buffer.size()-1);
-    	return mergeTuples(t1.getTupleDesc().numFields(), 
-    			t2.getTupleDesc().numFields(), t1, t2);
     }
-    
+
     @Override
     public DbIterator[] getChildren() {
         DbIterator[] children = {child1, child2};
@@ -127,10 +377,10 @@ public class EquiJoin extends Join {
     	Tuple merged = new Tuple(this.getTupleDesc());
 		int i;
 		for(i = 0; i < length1; i++){
-			merged.setField(i, t1.getField(i));
+			merged.copyField(i, t1, i);
 		}
 		for(i = 0; i < length2; i++){
-			merged.setField(i + length1, t2.getField(i));
+			merged.copyField(i + length1, t2, i);
 		}
 		return merged;
     }
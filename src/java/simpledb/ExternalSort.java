@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSort returns the tuples of its child in ascending order of one
+ * field, holding at most a memory budget of them at once.  The child is
+ * read a budget's worth at a time; each part is sorted and, unless it is
+ * the whole input, written to a {@link TupleFile} as a sorted run.  The runs
+ * are merged as they are read, MAX_FANIN at a time, so a very large input
+ * is merged in more than one pass.
+ * <p>
+ * Rewinding an input that fit in memory costs nothing.  Rewinding a spilled
+ * one merges its runs again, unless the sort was asked to be cheap to
+ * rewind, in which case it merges them into one file when opened.
+ */
+class ExternalSort implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Runs merged at once; each holds a read buffer */
+    static final int MAX_FANIN = 64;
+
+    /** A run being merged, and the tuple at its head. */
+    private static class Head {
+        final DbIterator run;
+        final int index;
+        Tuple tuple;
+
+        Head(DbIterator run, int index) {
+            this.run = run;
+            this.index = index;
+        }
+    }
+
+    private final DbIterator child;
+    private final long memoryBudget;
+    private final boolean cheapRewind;
+    private final Comparator<Tuple> order;
+    private final Comparator<Head> headOrder;
+
+    // The whole input, when it fit in memory
+    private ArrayList<Tuple> tuples;
+    private int pos;
+    // Otherwise the sorted runs, and the merge of them under way
+    private ArrayList<TupleFile> runs;
+    private PriorityQueue<Head> merge;
+    private ArrayList<Head> heads;
+    private boolean open;
+
+    /**
+     * @param child the tuples to sort
+     * @param field the field to sort them on
+     * @param memoryBudget the bytes of tuples, as stored on a page, to hold
+     *   in memory at once
+     * @param cheapRewind whether rewinding should be made cheap at the cost
+     *   of a merge pass when the input is spilled
+     */
+    ExternalSort(DbIterator child, final int field, long memoryBudget, boolean cheapRewind) {
+        this.child = child;
+        this.memoryBudget = memoryBudget;
+        this.cheapRewind = cheapRewind;
+        this.order = new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return ExternalSort.compare(a, field, b, field);
+            }
+        };
+        this.headOrder = new Comparator<Head>() {
+            public int compare(Head a, Head b) {
+                int c = order.compare(a.tuple, b.tuple);
+                return c != 0 ? c : a.index - b.index;
+            }
+        };
+    }
+
+    /**
+     * Compares field i of a with field j of b, which must be of the same
+     * type, as {@link Predicate.Op} orders them.
+     *
+     * @return a negative number, zero or a positive number as a's field is
+     *   less than, equal to or greater than b's
+     */
+    private static int compare(Tuple a, int i, Tuple b, int j) {
+        if (a.getTupleDesc().getFieldType(i) == Type.INT_TYPE) {
+            int x = a.getInt(i);
+            int y = b.getInt(j);
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        return a.getString(i).compareTo(b.getString(j));
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        int tupleBytes = child.getTupleDesc().getSize();
+        ArrayList<Tuple> part = new ArrayList<Tuple>();
+        long partBytes = 0;
+        runs = new ArrayList<TupleFile>();
+        while (child.hasNext()) {
+            part.add(child.next());
+            partBytes += tupleBytes;
+            if (partBytes > memoryBudget) {
+                runs.add(writeRun(part));
+                part.clear();
+                partBytes = 0;
+            }
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(part, order);
+            tuples = part;
+            pos = 0;
+            runs = null;
+        } else {
+            if (!part.isEmpty())
+                runs.add(writeRun(part));
+            while (runs.size() > MAX_FANIN || (cheapRewind && runs.size() > 1))
+                mergePass();
+            startMerge();
+        }
+        open = true;
+    }
+
+    private TupleFile writeRun(ArrayList<Tuple> part) throws DbException {
+        Collections.sort(part, order);
+        TupleFile run = new TupleFile(child.getTupleDesc());
+        for (Tuple t : part)
+            run.add(t);
+        return run;
+    }
+
+    // Merges the runs MAX_FANIN at a time into fewer, longer runs
+    private void mergePass() throws DbException, TransactionAbortedException {
+        ArrayList<TupleFile> merged = new ArrayList<TupleFile>();
+        for (int from = 0; from < runs.size(); from += MAX_FANIN) {
+            ArrayList<TupleFile> group = new ArrayList<TupleFile>(
+                    runs.subList(from, Math.min(from + MAX_FANIN, runs.size())));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            TupleFile run = new TupleFile(child.getTupleDesc());
+            PriorityQueue<Head> queue = openRuns(group);
+            while (!queue.isEmpty())
+                run.add(advance(queue));
+            closeRuns();
+            for (TupleFile f : group)
+                f.delete();
+            merged.add(run);
+        }
+        runs = merged;
+    }
+
+    private void startMerge() throws DbException, TransactionAbortedException {
+        merge = openRuns(runs);
+    }
+
+    private PriorityQueue<Head> openRuns(ArrayList<TupleFile> files)
+            throws DbException, TransactionAbortedException {
+        heads = new ArrayList<Head>();
+        PriorityQueue<Head> queue = new PriorityQueue<Head>(files.size(), headOrder);
+        for (int i = 0; i < files.size(); i++) {
+            Head h = new Head(files.get(i).iterator(), i);
+            h.run.open();
+            heads.add(h);
+            if (h.run.hasNext()) {
+                h.tuple = h.run.next();
+                queue.add(h);
+            }
+        }
+        return queue;
+    }
+
+    private void closeRuns() {
+        if (heads != null) {
+            for (Head h : heads)
+                h.run.close();
+            heads = null;
+        }
+    }
+
+    // Takes the least tuple off the queue, and puts its run back with the
+    // run's next tuple
+    private Tuple advance(PriorityQueue<Head> queue) throws DbException,
+            TransactionAbortedException {
+        Head h = queue.poll();
+        Tuple t = h.tuple;
+        if (h.run.hasNext()) {
+            h.tuple = h.run.next();
+            queue.add(h);
+        }
+        return t;
+    }
+
+    public boolean hasNext() {
+        if (!open)
+            throw new IllegalStateException("iterator not open");
+        return tuples != null ? pos < tuples.size() : !merge.isEmpty();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return tuples != null ? tuples.get(pos++) : advance(merge);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("iterator not open");
+        if (tuples != null) {
+            pos = 0;
+        } else {
+            closeRuns();
+            startMerge();
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        closeRuns();
+        if (runs != null) {
+            for (TupleFile f : runs)
+                f.delete();
+            runs = null;
+        }
+        tuples = null;
+        merge = null;
+        open = false;
+        child.close();
+    }
+}
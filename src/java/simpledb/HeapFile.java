@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -18,6 +21,14 @@ public class HeapFile implements DbFile {
 	private File heapFile;
 	private TupleDesc td;
 	private int numPages;
+	private FileChannel channel;
+	private volatile boolean memoryMapped;
+	private volatile MappedByteBuffer mapping;
+	private volatile int readAhead = DEFAULT_READ_AHEAD;
+
+	/** Number of pages a scan keeps in flight ahead of itself by default. */
+	public static final int DEFAULT_READ_AHEAD = 8;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -64,36 +75,171 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
+        ByteBuffer mapped = mappedPage((HeapPageId)pid);
+        if (mapped != null)
+            return HeapPage.wrap((HeapPageId)pid, mapped);
     	byte[] buf = new byte[BufferPool.PAGE_SIZE];
-        FileInputStream fis = null;
-        HeapPage p = null;
+        readInto((HeapPageId)pid, ByteBuffer.wrap(buf));
+        try {
+            return new HeapPage((HeapPageId)pid, buf);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("the page does not exist in this file");
+        }
+    }
+
+    /**
+     * Reads the specified page into frame and returns a HeapPage that
+     * decodes its tuples straight out of frame.  Used by the BufferPool to
+     * fill its off-heap frames without copying through the heap.
+     *
+     * @throws IllegalArgumentException if the page cannot be read
+     */
+    HeapPage readPage(HeapPageId pid, ByteBuffer frame) {
+        ByteBuffer mapped = mappedPage(pid);
+        if (mapped != null)
+            return HeapPage.wrap(pid, mapped);  // no need for the frame
+        readInto(pid, frame);
+        return HeapPage.wrap(pid, frame);
+    }
+
+    /**
+     * Sets how many pages a scan of this file asks the BufferPool to read
+     * ahead of the page it is on; 0 turns read-ahead off.
+     */
+    public void setReadAhead(int pages) {
+        this.readAhead = Math.max(0, pages);
+    }
+
+    /**
+     * Turns the memory-mapped read path on or off.  While it is on, pages
+     * are served straight out of a read-only mapping of the file, with no
+     * read call and no copy.  A page copies itself out of the mapping the
+     * first time it is changed, and writes still go through the channel.
+     * Meant for large tables that are rarely updated.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped)
+            mapping = null;
+    }
+
+    // Returns a read-only view of the page in the file mapping, or null if
+    // the file is not mapped, the page is not on disk yet, or the file is
+    // too large to map in one piece
+    private ByteBuffer mappedPage(HeapPageId pid) {
+        if (!memoryMapped)
+            return null;
+        long offset = (long) pid.pageNumber() * BufferPool.PAGE_SIZE;
+        long end = offset + BufferPool.PAGE_SIZE;
+        MappedByteBuffer m = mapping;
+        if (m == null || m.capacity() < end) {
+            m = remap(end);
+            if (m == null)
+                return null;
+        }
+        ByteBuffer page = m.duplicate();
+        page.limit((int) end);
+        page.position((int) offset);
+        return page.slice();
+    }
+
+    // Maps the whole file again once it has grown past the current mapping
+    private synchronized MappedByteBuffer remap(long end) {
+        if (mapping != null && mapping.capacity() >= end)
+            return mapping;
         try {
-            fis = new FileInputStream(heapFile);
-            fis.skip(pid.pageNumber() * BufferPool.PAGE_SIZE);
-            fis.read(buf);
-            fis.close();
-            p = new HeapPage((HeapPageId)pid, buf);
+            FileChannel ch = channel();
+            long size = ch.size();
+            if (size < end || size > Integer.MAX_VALUE)
+                return null;
+            mapping = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapping;
         } catch (IOException e) {
             throw new IllegalArgumentException("the page does not exist in this file");
         }
+    }
 
-        return p;
+    // Fills buf with the page, with a positional read on the shared channel
+    private void readInto(HeapPageId pid, ByteBuffer buf) {
+        ByteBuffer dst = buf.duplicate();
+        dst.clear();
+        long offset = (long) pid.pageNumber() * BufferPool.PAGE_SIZE;
+        try {
+            FileChannel ch = channel();
+            while (dst.hasRemaining()) {
+                if (ch.read(dst, offset + dst.position()) < 0)
+                    break;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("the page does not exist in this file");
+        }
+        // past the end of the file; buf may hold an old page
+        while (dst.hasRemaining())
+            dst.put((byte) 0);
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(heapFile, "rws");
-//        System.out.println("pageNumber: " + page.getId().pageNumber());
-//        System.out.println("stuff * page_size: " + page.getId().pageNumber() * BufferPool.PAGE_SIZE);
-        raf.seek(page.getId().pageNumber() * BufferPool.PAGE_SIZE);
-        raf.write(page.getPageData());
-        raf.close();
+        ByteBuffer src = ByteBuffer.wrap(page.getPageData());
+        long offset = (long) page.getId().pageNumber() * BufferPool.PAGE_SIZE;
+        FileChannel ch = channel();
+        while (src.hasRemaining())
+            ch.write(src, offset + src.position());
+        // recovery may write pages past the end the file was opened with
+        synchronized (this) {
+            if (page.getId().pageNumber() >= numPages)
+                numPages = page.getId().pageNumber() + 1;
+        }
         
         // Since we're writing the page to disk, it is no longer dirty
         // We don't set the dirtying page since we're un-dirtying the page (use null)
         page.markDirty(false, null);
     }
 
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        FileChannel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        if (ch != null && ch.isOpen())
+            ch.force(true);
+    }
+
+    /**
+     * Returns the channel all page I/O on this file goes through.  It is
+     * opened on first use and kept open; positional reads and writes on it
+     * need no locking.  A channel closed under us (e.g. by an interrupt
+     * during I/O) is reopened.
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = new RandomAccessFile(heapFile, "rw").getChannel();
+        return channel;
+    }
+
+    /**
+     * Closes the channel and drops the mapping of the file, releasing its
+     * file descriptor.  Called when the table leaves the catalog; a later
+     * read or write opens the channel again.
+     */
+    public synchronized void close() {
+        mapping = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    // whether the channel is open, used for unit tests only
+    synchronized boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -105,60 +251,129 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-    	// iterate over all existing pages, looking for an empty slot
+    	// iterate over all existing pages, looking for an empty slot; full
+    	// pages are only read, and their locks given back unless tid
+    	// already held them. Pages are pinned while they are read or
+    	// changed, since they are decoded in place over their frame
+    	BufferPool bp = Database.getBufferPool();
     	for (int i = 0; i < numPages(); i++) {
              PageId pid = new HeapPageId(getId(), i);
-             HeapPage page = (HeapPage) Database.getBufferPool()
-             				 	.getPage(tid, pid, Permissions.READ_WRITE);
-             if (page.getNumEmptySlots() > 0) {
-                 page.insertTuple(t);
-                 ArrayList<Page> pages = new ArrayList<Page>();
-                 pages.add(page);
-                 return pages;
+             boolean held = bp.holdsLock(tid, pid);
+             HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY);
+             int emptySlots = page.getNumEmptySlots();
+             bp.unpinPage(tid, pid);
+             if (emptySlots == 0) {
+                 if (!held)
+                     bp.releasePage(tid, pid);
+                 continue;
+             }
+             page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_WRITE);
+             try {
+                 if (page.getNumEmptySlots() > 0) {
+                     page.insertTuple(t);
+                     return dirtied(tid, page);
+                 }
+             } finally {
+                 bp.unpinPage(tid, pid);
              }
          }
     	 // No open slots; add new page
     	 HeapPageId nextPageId = new HeapPageId(getId(), numPages());
-         HeapPage nextPage = (HeapPage) Database.getBufferPool()
-         					 	.getPage(tid, nextPageId, Permissions.READ_WRITE);
-         numPages++;
-         nextPage.insertTuple(t);
-         ArrayList<Page> pages = new ArrayList<Page>();
-         pages.add(nextPage);
-         return pages;
+         HeapPage nextPage = (HeapPage) bp.pinPage(tid, nextPageId, Permissions.READ_WRITE);
+         try {
+             numPages++;
+             nextPage.insertTuple(t);
+             return dirtied(tid, nextPage);
+         } finally {
+             bp.unpinPage(tid, nextPageId);
+         }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-    	 HeapPage page = (HeapPage) Database.getBufferPool()
-		 	.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-//    	 System.out.println("Got the page in HeapFile: " + page);
-         page.deleteTuple(t);
-//       System.out.println("Was able to delete the tuple from the page");
-         ArrayList<Page> pageList = new ArrayList<Page>();
-         pageList.add(page);
-         return pageList;
+    	 PageId pid = t.getRecordId().getPageId();
+    	 BufferPool bp = Database.getBufferPool();
+    	 HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_WRITE);
+    	 try {
+             page.deleteTuple(t);
+             return dirtied(tid, page);
+    	 } finally {
+    		 bp.unpinPage(tid, pid);
+    	 }
+    }
+
+    // Marks page dirty while the caller still has it pinned: a clean,
+    // unpinned page may be evicted, and its frame reused, at any moment
+    private static ArrayList<Page> dirtied(TransactionId tid, Page page) {
+        page.markDirty(true, tid);
+        ArrayList<Page> pages = new ArrayList<Page>();
+        pages.add(page);
+        return pages;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-    	return new HeapFileIterator(tid);
+    	return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that decodes only
+     * some of their fields, leaving the others unset.
+     *
+     * @param fields the fields to decode, or null for all of them
+     */
+    HeapFileIterator iterator(TransactionId tid, int[] fields) {
+    	return new HeapFileIterator(tid, fields);
     }
     
-    private class HeapFileIterator implements DbFileIterator {
+    class HeapFileIterator implements DbFileIterator {
     	
     	private TransactionId transId;
+    	private final int[] fields;
     	private int pageNum;
     	private Page currentPage;
     	private Iterator<Tuple> tupleItr;
+    	private int slot;
+    	private int prefetchedTo;
+    	private boolean sequential;
 //    	private int unIterated;
     	
-    	public HeapFileIterator(TransactionId tid){
+    	public HeapFileIterator(TransactionId tid, int[] fields){
     		this.transId = tid;
+    		this.fields = fields;
     		pageNum = 0;
 //    		unIterated = 0;
     	}
+
+    	/**
+    	 * Fills batch with the next tuples, for a scan that reads a batch at
+    	 * a time rather than calling next().  Field i of the batch is field
+    	 * fields[i] of the tuples, so the iterator must have been made for a
+    	 * list of fields.
+    	 *
+    	 * @return false if there were no more tuples
+    	 */
+    	boolean nextBatch(TupleBatch batch) throws TransactionAbortedException, DbException {
+    		batch.clear();
+    		if(currentPage == null){
+    			return false;
+    		}
+    		while(!batch.isFull()){
+    			HeapPage page = (HeapPage) currentPage;
+    			slot = page.readColumns(slot, batch, fields);
+    			if(slot < page.getNumTuples()){
+    				continue;
+    			}
+    			if(pageNum+1 >= numPages()){
+    				break;
+    			}
+    			pageNum++;
+    			moveTo(new HeapPageId(getId(), pageNum));
+    			readAhead();
+    		}
+    		return !batch.isEmpty();
+    	}
     	
     	public boolean hasNext() throws TransactionAbortedException, DbException{
     		if(tupleItr == null){
@@ -169,9 +384,8 @@ public class HeapFile implements DbFile {
     			return true;
     		if(pageNum+1 < numPages()){ //more pages exist
 	    		pageNum++;
-	    		HeapPageId nextPid = new HeapPageId(getId(), pageNum);
-	    		Page nextPage = Database.getBufferPool().getPage(transId, nextPid, Permissions.READ_ONLY);
-	    		tupleItr = ((HeapPage) nextPage).iterator();
+	    		moveTo(new HeapPageId(getId(), pageNum));
+	    		readAhead();
 //	    		unIterated = ((HeapPage)nextPage).getUsedSlots();
 	    		return hasNext(); //try again on the next page
     		} else {  //no more pages or tuples
@@ -179,6 +393,36 @@ public class HeapFile implements DbFile {
     		}
     	}
     	
+    	// Keeps only the page being iterated over pinned in the BufferPool
+    	private void moveTo(HeapPageId pid) throws TransactionAbortedException, DbException {
+    		unpinCurrent();
+    		currentPage = Database.getBufferPool().pinPage(transId, pid, Permissions.READ_ONLY, sequential);
+    		tupleItr = ((HeapPage) currentPage).iterator(fields);
+    		slot = 0;
+    	}
+    	
+    	// Once the scan has moved on sequentially from its first page, keeps
+    	// the next readAhead pages on their way into the BufferPool so the
+    	// scan does not stall on every page
+    	private void readAhead() {
+    		int window = readAhead;
+    		if(window <= 0 || pageNum == 0){
+    			return;
+    		}
+    		int last = Math.min(pageNum + window, numPages() - 1);
+    		for(int p = Math.max(prefetchedTo, pageNum) + 1; p <= last; p++){
+    			Database.getBufferPool().prefetchPage(new HeapPageId(getId(), p), sequential);
+    		}
+    		prefetchedTo = Math.max(prefetchedTo, last);
+    	}
+    	
+    	private void unpinCurrent() {
+    		if(currentPage != null){
+    			Database.getBufferPool().unpinPage(transId, currentPage.getId());
+    			currentPage = null;
+    		}
+    	}
+    	
     	public Tuple next() throws TransactionAbortedException, DbException, NoSuchElementException{
     		if(tupleItr == null){
     			throw new NoSuchElementException("open() must be called before using iterator");
@@ -195,9 +439,9 @@ public class HeapFile implements DbFile {
 
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
-			HeapPageId pid = new HeapPageId(getId(), pageNum);
-			currentPage = Database.getBufferPool().getPage(transId, pid, Permissions.READ_ONLY);
-			tupleItr = ((HeapPage)currentPage).iterator();
+			// like a large scan in most systems: over a quarter of the pool
+			sequential = numPages() > Database.getBufferPool().getNumPages() / 4;
+			moveTo(new HeapPageId(getId(), pageNum));
 		}
 
 		@Override
@@ -209,10 +453,10 @@ public class HeapFile implements DbFile {
 
 		@Override
 		public void close() {
+			unpinCurrent();
 			pageNum = 0;
-			currentPage = null;
+			prefetchedTo = 0;
 			tupleItr = null;
 		}
     };
 }
-
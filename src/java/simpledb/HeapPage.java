@@ -2,10 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps its data in the on-disk format, in a ByteBuffer, and
+ * decodes tuples only when they are asked for, and then only the fields
+ * the caller needs (see {@link #iterator(int[])} and {@link #readColumns}).  Pages read into the
+ * BufferPool use the pool's frame buffer directly (see {@link #wrap}), so
+ * a resident page costs no heap space beyond this object.
  *
  * @see HeapFile
  * @see BufferPool
@@ -13,23 +20,31 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** Bytes at the start of every page taken by its LSN */
+    public static final int LSN_SIZE = 8;
+
     private final HeapPageId pid;
     private final TupleDesc td;
-    private byte header[];
-    private Tuple tuples[];
+    private volatile ByteBuffer data;
     private final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
     private boolean dirty;
     private TransactionId dirtyingTid;
 
+    // null while the page is unchanged since setBeforeImage(); copied out
+    // just before the first change
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
+     * The format of a HeapPage is a long page LSN (see {@link #getLSN}),
+     * a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -41,36 +56,51 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()));
+    }
+
+    // The page is interpreted in place, so data must hold a whole page
+    private HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         this.dirty = false;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++){
-                tuples[i] = readNextTuple(dis,i);
-            }
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        if (data.capacity() < BufferPool.getPageSize())
+            throw new IllegalArgumentException("page buffer is smaller than a page");
+        this.data = data;
+    }
 
-        setBeforeImage();
+    /**
+     * Creates a HeapPage that reads and writes its tuples directly in frame,
+     * which must already hold the page's bytes.  The page owns frame until
+     * {@link #detach} is called.  If frame is read-only, as a file mapping
+     * is, the page copies itself out of it the first time it is changed.
+     */
+    static HeapPage wrap(HeapPageId id, ByteBuffer frame) {
+        return new HeapPage(id, frame);
+    }
+
+    /**
+     * Moves this page's contents out of frame, if that is where they are,
+     * into a buffer of its own, so the caller may reuse frame.  Called by
+     * the BufferPool when a page leaves its frame; anyone still holding the
+     * page keeps seeing the same data.
+     */
+    void detach(ByteBuffer frame) {
+        if (data == frame)
+            data = ByteBuffer.wrap(getPageData());
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     public int getNumTuples() {
-    	int pageSpace = BufferPool.getPageSize()*8;
+    	int pageSpace = (BufferPool.getPageSize() - LSN_SIZE)*8;
     	int tupleSpace = td.getSize() * 8 + 1;
     	return (int) Math.floor(pageSpace / tupleSpace);
     }
@@ -88,9 +118,13 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            // copied under the lock, so a change can not start halfway
+            // through the copy
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null)
+                    oldDataRef = getPageData();  // not changed since the last before-image
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -104,8 +138,20 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    // Saves the before-image ahead of the first change since setBeforeImage(),
+    // and copies the page out of a read-only buffer before it is written
+    private void beforeChange() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
+        if (data.isReadOnly())
+            data = ByteBuffer.wrap(getPageData());
     }
 
     /**
@@ -115,38 +161,90 @@ public class HeapPage implements Page {
 	    return this.pid;
     }
 
+    // Decodes the tuple in slotId, which must be in use; only the listed
+    // fields if fields is not null, leaving the rest unset
+    private Tuple readTuple(int slotId, int[] fields) {
+        ByteBuffer buf = data;
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int base = slotOffset(slotId);
+        if (fields == null) {
+            for (int j=0; j<td.numFields(); j++)
+                readField(buf, base, t, j);
+        } else {
+            for (int j : fields)
+                readField(buf, base, t, j);
+        }
+        return t;
+    }
+
+    private void readField(ByteBuffer buf, int base, Tuple t, int j) {
+        int offset = base + fieldOffsets[j];
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            t.setInt(j, buf.getInt(offset));
+        else
+            t.setString(j, readString(buf, offset));
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decodes the tuples in use from slot on into batch, until it is full
+     * or the page is read.  Only the listed fields are decoded: field i of
+     * the batch is field fields[i] of this page's tuples.
+     *
+     * @return the slot to carry on from; getNumTuples() once the whole
+     *   page has been read
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    int readColumns(int slot, TupleBatch batch, int[] fields) {
+        ByteBuffer buf = data;
+        RecordId[] rids = batch.getRecordIds();
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            int row = batch.size();
+            int base = slotOffset(slot);
+            for (int i = 0; i < fields.length; i++) {
+                int offset = base + fieldOffsets[fields[i]];
+                if (td.getFieldType(fields[i]) == Type.INT_TYPE)
+                    batch.getInts(i)[row] = buf.getInt(offset);
+                else
+                    batch.getStrings(i)[row] = readString(buf, offset);
             }
-            return null;
+            rids[row] = new RecordId(pid, slot);
+            batch.setSize(row + 1);
         }
+        return slot;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    // Decodes the string at offset, in the format StringField.serialize writes
+    private static String readString(ByteBuffer buf, int offset) {
+        int strLen = buf.getInt(offset);
+        byte[] bs = new byte[strLen];
+        for (int i = 0; i < strLen; i++)
+            bs[i] = buf.get(offset + 4 + i);
+        return new String(bs);
+    }
+
+    // Encodes t into slotId, in the format Field.serialize writes
+    private void writeTuple(int slotId, Tuple t) {
+        ByteBuffer buf = data;
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                buf.putInt(offset, t.getInt(j));
+            } else {
+                String s = t.getString(j);
+                int strLen = Math.min(s.length(), Type.STRING_LEN);
+                buf.putInt(offset, strLen);
+                for (int i = 0; i < Type.STRING_LEN; i++)
+                    buf.put(offset + 4 + i, i < strLen ? (byte) s.charAt(i) : 0);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            offset += type.getLen();
         }
+    }
 
-        return t;
+    private int slotOffset(int slotId) {
+        return LSN_SIZE + headerSize + slotId * tupleSize;
     }
 
     /**
@@ -161,64 +259,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        ByteBuffer buf = data.duplicate();
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        buf.clear();
+        buf.get(bytes);
+        return bytes;
     }
 
     /**
@@ -243,20 +288,20 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        if(!isSlotUsed(t.getRecordId().tupleno())){
+        RecordId rid = t.getRecordId();
+        if(rid == null || !pid.equals(rid.getPageId())
+                || rid.tupleno() < 0 || rid.tupleno() >= numSlots){
+        	throw new DbException("Tuple " + t + " does not exist on this page");
+        }
+        int slot = rid.tupleno();
+        if(!isSlotUsed(slot)){
         	throw new DbException("The slot for tuple " + t + " is already empty");
         }
-    	List<Tuple> tupleList = Arrays.asList(tuples);
-    	if(!tupleList.contains(t)){
+    	if(!t.equals(readTuple(slot, null))){
     		throw new DbException("Tuple " + t + " does not exist on this page");
     	}
-    	for(int i=0; i<tuples.length; i++){
-    		if(t.equals(tuples[i])){  // tuple found, remove from list
-    			tuples[i] = null;
-    			markSlotUsed(i, false);
-    			i = tuples.length;
-    		}
-    	}
+    	beforeChange();
+    	markSlotUsed(slot, false);
     }
 
     /**
@@ -267,21 +312,40 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-		if(getNumEmptySlots() == 0){
-	    	throw new DbException("No more slots exist to insert " + t);
-	    }
 		if(!t.getTupleDesc().equals(td)){
 			throw new DbException("TupleDesc " + t.getTupleDesc() + " for " 
 					+ t + "does not match " + td);
 		}
-     	for(int i=0; i<tuples.length; i++){
-     		if(tuples[i] == null){  // empty slot found; add here
-     			t.setRecordId(new RecordId(pid, i));
-     			tuples[i] = t;
+     	for(int i=0; i<numSlots; i++){
+     		if(!isSlotUsed(i)){  // empty slot found; add here
+     			beforeChange();
+     			writeTuple(i, t);
      			markSlotUsed(i, true);
-     			i = tuples.length;
+     			t.setRecordId(new RecordId(pid, i));
+     			return;
      		}
      	}
+     	throw new DbException("No more slots exist to insert " + t);
+    }
+
+    /**
+     * Returns the LSN of the last log record that describes a change to
+     * this page; recovery does not redo records older than that.  0 if the
+     * page has never been logged.
+     */
+    public long getLSN() {
+        return data.getLong(0);
+    }
+
+    /**
+     * Stamps this page with the LSN of the log record about to describe
+     * it.  Not a change to the page's tuples, so it does not count toward
+     * the before-image.
+     */
+    public void setLSN(long lsn) {
+        if (data.isReadOnly())
+            data = ByteBuffer.wrap(getPageData());
+        data.putLong(0, lsn);
     }
 
     /**
@@ -309,7 +373,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         int count = 0;
-    	for(int i=0; i<tuples.length; i++){
+    	for(int i=0; i<numSlots; i++){
 			if(isSlotUsed(i)){
 				count++;
 			}
@@ -327,7 +391,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
     	 int headerSlot = i / 8;
          int bitPos = i % 8;
-         byte headerByte = header[headerSlot];
+         byte headerByte = data.get(LSN_SIZE + headerSlot);
          int masked = headerByte >> bitPos;
     	 int resultNum = masked & 1;
          return (resultNum == 1);
@@ -339,9 +403,13 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
     	int headerSlot = i / 8;
         int bitPos = i % 8;
-        byte headerByte = header[headerSlot];
-        headerByte ^= 1 << bitPos;
-        header[headerSlot] = headerByte;
+        ByteBuffer buf = data;
+        byte headerByte = buf.get(LSN_SIZE + headerSlot);
+        if (value)
+            headerByte |= 1 << bitPos;
+        else
+            headerByte &= ~(1 << bitPos);
+        buf.put(LSN_SIZE + headerSlot, headerByte);
     }
 
     /**
@@ -349,34 +417,38 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
+    	return iterator(null);
+    }
+
+    /**
+     * @param fields the fields to decode, or null for all of them; the
+     *   others are left unset in the tuples returned
+     * @return an iterator over all tuples on this page, like {@link #iterator()}
+     */
+    public Iterator<Tuple> iterator(final int[] fields) {
     	Iterator<Tuple> itr = new Iterator<Tuple>() {
         	
-        	private int current = 0;
-        	private int usedSlots = getNumTuples() - getNumEmptySlots();
+        	private int current = nextUsed(0);
         	
-        	public boolean hasNext(){
-        		int hasNextIndex = current;
-        		while(hasNextIndex < numSlots && tuples[hasNextIndex] == null){ 
-        			hasNextIndex++; //empty slot, keep moving
-        		}
-        		if(hasNextIndex == numSlots){ //reached end of tuple array, none found
-        			return false;
-        		} else { //reached a valid non-null slot
-        			return true;
+        	private int nextUsed(int from){
+        		while(from < numSlots && !isSlotUsed(from)){ 
+        			from++; //empty slot, keep moving
         		}
+        		return from;
+        	}
+        	
+        	public boolean hasNext(){
+        		return current < numSlots;
         	}
         	
         	public Tuple next(){
-        		while(current < usedSlots && tuples[current] == null){
-        			current++;
-        		}
-        		if(current == usedSlots){
-        			throw new NullPointerException();
-        		} else {
-        			Tuple tuple = tuples[current];
-        			current++;
-        			return tuple;
+        		if(current >= numSlots){
+        			throw new NoSuchElementException();
         		}
+        		// tuples are decoded as they are returned
+        		Tuple tuple = readTuple(current, fields);
+        		current = nextUsed(current + 1);
+        		return tuple;
         	}
         	
         	public void remove() throws UnsupportedOperationException{
@@ -387,4 +459,3 @@ public class HeapPage implements Page {
     }
 
 }
-
@@ -38,7 +38,8 @@ public class HeapPageId implements PageId {
      * @see BufferPool
      */
     public int hashCode() {
-        return tableId + pageNum;
+        // tableId + pageNum made (t, p) collide with (t+1, p-1); mix them
+        return 31 * tableId + pageNum;
     }
 
     /**
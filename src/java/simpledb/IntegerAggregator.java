@@ -16,8 +16,9 @@ public class IntegerAggregator implements Aggregator {
     private int aggField;
     private Op operator;
     private TupleDesc childTD;
-    private Map<Object, Integer> tupleValues; 
-    private Map<Object, Integer> tupleCounts;
+    // the aggregate value and the count of each group, keyed by the group
+    // value as an Integer or a String, or by null if there is no grouping
+    private Map<Object, int[]> groups;
     
     /**
      * Aggregate constructor
@@ -39,8 +40,7 @@ public class IntegerAggregator implements Aggregator {
         this.gbFieldType = gbfieldtype;
         this.aggField = afield;
         this.operator = what;
-        this.tupleCounts = new HashMap<Object, Integer>();
-        this.tupleValues = new HashMap<Object, Integer>();
+        this.groups = new HashMap<Object, int[]>();
     }
 
     /**
@@ -55,75 +55,48 @@ public class IntegerAggregator implements Aggregator {
     		//get the child TupleDesc on the first merge
     		this.childTD = tup.getTupleDesc();
     	}
-    	int value = ((IntField)tup.getField(this.aggField)).getValue();
-         if(this.gbField == NO_GROUPING){  // keep single aggregation value in null key
-        	 noGroupPutTuple(value);  // merge tuple with no grouping
-         } else {  //use group value as keys for tables
-        	 Object index;
-        	 if(gbFieldType == Type.STRING_TYPE){
-        		 index = ((StringField)tup.getField(gbField)).getValue();
-        	 } else {
-        		 index = ((IntField)tup.getField(gbField)).getValue();
-        	 }
-        	 putTupleWithGrouping(index, value);  //merge tuple with grouping
-         }
-    }
-    
-    //Private method to merge the tuples int the case where there is no grouping
-    private void noGroupPutTuple(int value){
-    	if(tupleCounts.keySet().size() == 0){ // no data merged yet
-	   		 tupleCounts.put(null, 1);
-	   		 if(operator.toString().equals("count")){
-	   			 tupleValues.put(null, 1);
-	   		 } else {
-	   			 tupleValues.put(null, value);
-	   		 }
-	   	 } else { //null exists as a key in the maps
-	   		 tupleCounts.put(null, tupleCounts.get(null)+1);
-	   		 if(operator.toString().equals("count")){
-	   			 tupleValues.put(null, tupleValues.get(null)+1);
-	   		 } else {
-	   			 tupleValues.put(null, tupleValues.get(null)+value);
-	   		 }
-	   	 }
-    }
-    
-    //Private method to merge the tuples in the case where there is grouping
-    private void putTupleWithGrouping(Object index, int value){
-    	if(!tupleCounts.containsKey(index)){  // first tuple for this group
-	   		 tupleCounts.put(index, 1);
-	   		 if(operator.toString().equals("count")){
-	   			 tupleValues.put(index, 1);
-	   		 } else {
-	   			 tupleValues.put(index, value);
-	   		 }
-	   	 } else {
-	   		 putTupleGroupingWithKey(index, value);
-	   	 }
+    	int value = tup.getInt(this.aggField);
+    	Object index;
+    	if(this.gbField == NO_GROUPING){  // keep single aggregation value in null key
+    		index = null;
+    	} else if(gbFieldType == Type.STRING_TYPE){
+    		index = tup.getString(gbField);
+    	} else {
+    		index = tup.getInt(gbField);
+    	}
+    	int[] group = groups.get(index);
+    	if(group == null){  // first tuple for this group
+    		groups.put(index, new int[]{value, 1});
+    		return;
+    	}
+    	switch(operator){
+    	case MAX:
+    		if(group[0] < value){
+    			group[0] = value;
+    		}
+    		break;
+    	case MIN:
+    		if(group[0] > value){
+    			group[0] = value;
+    		}
+    		break;
+    	default:  // SUM, AVG; COUNT only uses the count
+    		group[0] += value;
+    		break;
+    	}
+    	group[1]++;
     }
     
-    // Private method for doing the switch statement in the case where
-    // There is grouping, and the specified group already has a value
-    private void putTupleGroupingWithKey(Object index, int value){
-		 tupleCounts.put(index, tupleCounts.get(index)+1);
-		 switch(operator){
-		 case MAX : 
-			 if(tupleValues.get(index) < value){
-				 tupleValues.put(index, value);
-			 }
-			 break;
-		 case MIN: 
-			 if(tupleValues.get(index) > value){
-				 tupleValues.put(index, value);
-			 }
-			 break;
-		 case COUNT:
-			 tupleValues.put(index, tupleValues.get(index)+1);
-			 break;
-		 default:  // SUM, AVG
-			 tupleValues.put(index, tupleValues.get(index)+value);
-			 break;
-		 }
+    // The aggregate of one group
+    private int result(int[] group){
+    	switch(operator){
+    	case COUNT:
+    		return group[1];
+    	case AVG:
+    		return group[0] / group[1];
+    	default:
+    		return group[0];
+    	}
     }
     
     private TupleDesc generateTupleDesc(){
@@ -166,21 +139,14 @@ public class IntegerAggregator implements Aggregator {
     //Generates an ArrayList of tuples for grouped queries, 1 tuple per group
     private ArrayList<Tuple> generateGroupedTuples(TupleDesc td){
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-    	for(Object o : tupleValues.keySet()){
+    	for(Map.Entry<Object, int[]> e : groups.entrySet()){
     		Tuple tuple = new Tuple(td);
-    		if(o instanceof String){
-    			String groupVal = (String)o;
-    			tuple.setField(0, new StringField(groupVal, groupVal.length()));
-    		} else { // o is an integer
-    			int groupVal = (Integer)o;
-    			tuple.setField(0, new IntField(groupVal));
-    		}
-    		if(operator.toString().equals("avg")){
-    			int roundedAvg = (tupleValues.get(o) / tupleCounts.get(o));
-        		tuple.setField(1, new IntField(roundedAvg));
-    		} else {
-    			tuple.setField(1, new IntField(tupleValues.get(o)));
+    		if(e.getKey() instanceof String){
+    			tuple.setString(0, (String)e.getKey());
+    		} else { // the key is an integer
+    			tuple.setInt(0, (Integer)e.getKey());
     		}
+    		tuple.setInt(1, result(e.getValue()));
     		tuples.add(tuple);
     	}
     	return tuples;
@@ -189,14 +155,9 @@ public class IntegerAggregator implements Aggregator {
     //Generates a tuple in an ArrayList for a non-grouping aggregation
     private ArrayList<Tuple> generateSingleTuple(TupleDesc td){
     	ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-    	if(tupleValues.keySet().size() > 0){
+    	if(groups.containsKey(null)){
 	    	Tuple tuple = new Tuple(td);
-	    	if(operator.toString().equals("avg")){
-	    		int roundedAvg = (tupleValues.get(null) / tupleCounts.get(null));
-	    		tuple.setField(0, new IntField(roundedAvg));
-	    	} else { //min, max, sum, count
-	    		tuple.setField(0, new IntField(tupleValues.get(null)));
-	    	}
+	    	tuple.setInt(0, result(groups.get(null)));
 	    	tuples.add(tuple);
     	}
     	return tuples;
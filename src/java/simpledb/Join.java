@@ -22,8 +22,19 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+    	this(p, child1, child2, EquiJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor for a join that holds at most memoryBudget bytes of
+     * child1's tuples in memory when it joins on equality, and spills the
+     * rest to temporary files.
+     * 
+     * @see EquiJoin
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, long memoryBudget) {
     	if(p.getOperator().equals(Predicate.Op.EQUALS)){
-    		joinType = new EquiJoin(p, child1, child2);
+    		joinType = new EquiJoin(p, child1, child2, memoryBudget);
     	} else {
     		joinType = new LoopJoin(p, child1, child2);
     	}
@@ -32,6 +43,11 @@ public class Join extends Operator {
     //Implicit super constructor
     public Join () {};
 
+    /** @return the join that does the work: an EquiJoin or a LoopJoin */
+    Join getImplementation() {
+        return joinType;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return this.joinType.getJoinPredicate();
     }
@@ -68,7 +68,14 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // A hash join beats sorting for equality, unless both inputs are
+        // already sorted; a nested loops join is left for <> and LIKE
+        if (SortMergeJoin.canJoin(lj.p) && (lj.p != Predicate.Op.EQUALS
+                || (SortMergeJoin.isSortedOn(plan1, t1id) && SortMergeJoin.isSortedOn(plan2, t2id)))) {
+            j = new SortMergeJoin(p,plan1,plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -106,15 +113,30 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // a hash join reads each input once, and hashes or probes
+            // each tuple once
+            return cost1 + cost2 + card1 + card2;
+        } else if (SortMergeJoin.canJoin(j.p)) {
+            // a SortMergeJoin sorts both inputs, then reads the matching
+            // prefix of one for each tuple of the other: the output
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2)
+                    + RANGE_JOIN_SELECTIVITY * card1 * card2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // a nested loops join scans the inner input once per outer
+            // tuple, and compares every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
         }
     }
 
+    /** The fraction of all pairs of tuples that a &lt;, &lt;=, &gt; or &gt;= join is assumed to return */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    // Comparisons made sorting card tuples
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
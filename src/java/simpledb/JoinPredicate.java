@@ -40,7 +40,9 @@ public class JoinPredicate implements Serializable {
      * @return true if the tuples satisfy the predicate.
      */
     public boolean filter(Tuple t1, Tuple t2) {
-        return t1.getField(field1).compare(operator, t2.getField(field2));
+        if (t1.getTupleDesc().getFieldType(field1) == Type.INT_TYPE)
+            return IntField.compare(operator, t1.getInt(field1), t2.getInt(field2));
+        return StringField.compare(operator, t1.getString(field1), t2.getString(field2));
     }
     
     public int getField1()
@@ -2,369 +2,640 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager grants locks on tables and pages to transactions.  Before a
+ * transaction locks a page it takes an intention lock on the page's table,
+ * IS for reading and IX for writing, so that a lock on a whole table only
+ * has to be checked against the table's own queue.  A transaction that has
+ * locked more than a threshold of pages of one table has its page locks
+ * escalated to one lock on the table, S or X, after which the pages it
+ * touches in that table take no locks of their own.  Escalation never
+ * waits: if the table lock can not be granted at once, the transaction
+ * keeps its page locks and tries again on its next request.
+ * <p>
+ * Every locked table and page has a queue: the transactions holding locks
+ * on it, and the requests waiting for one, which are granted in the order
+ * they arrived.  A request that has to wait sleeps on a condition of its
+ * own and is signalled when a release grants it the lock, so a contended
+ * lock changes hands as soon as it is free.  A transaction strengthening a
+ * lock it holds goes ahead of the other waiters, since they are all waiting
+ * for it anyway.
+ * <p>
+ * The locks each transaction holds are indexed as well, so that committing
+ * or aborting costs as much as the locks the transaction took, not the
+ * locks held by everyone.
+ */
 public class LockManager {
-	
-	// Holds mappings from PageId's to TransactionId ArrayLists
-	// Conceptually, tells which transactions hold shared locks on the page
-	ConcurrentHashMap<PageId, ArrayList<TransactionId>> sharedLocks;
-	
-	// Holds mappings from PageId's to TransactionId's
-	ConcurrentHashMap<PageId, TransactionId> exclusiveLocks;
-	
-	// Manager for the dependency graph
-	DeadlockManager dependencies;
-	
-	// Determines whether we deal with deadlocks using a dependency graph or timeouts
-//	boolean DEPENDENCIES = true;
-	
-	// Constructor
-	public LockManager(int maxPages) {
-		this.sharedLocks = new ConcurrentHashMap<PageId, ArrayList<TransactionId>>();
-		this.exclusiveLocks = new ConcurrentHashMap<PageId, TransactionId>();
-		this.dependencies = new DeadlockManager();
-	}
-	
-	// Releases all locks by tid on pid
-	public synchronized void releaseLock(TransactionId tid, PageId pid) {
-		if(sharedLocks.containsKey(pid) && 
-				sharedLocks.get(pid).size() > 0){  // at least 1 read lock in use
-			removeFromSharedLocks(tid, pid);
+
+	/** Page locks a transaction may hold in one table before they are
+	 * escalated to a table lock */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 100;
+
+	// Lock modes. IS and IX are taken on a table before S and X locks on
+	// its pages; SIX is S on the table together with IX
+	enum Mode {
+		IS, IX, S, SIX, X;
+
+		private static final boolean[][] COMPATIBLE = {
+			//  IS     IX     S      SIX    X
+			{ true,  true,  true,  true,  false },  // IS
+			{ true,  true,  false, false, false },  // IX
+			{ true,  false, true,  false, false },  // S
+			{ true,  false, false, false, false },  // SIX
+			{ false, false, false, false, false },  // X
+		};
+
+		boolean compatibleWith(Mode other) {
+			return COMPATIBLE[ordinal()][other.ordinal()];
 		}
-		if(exclusiveLocks.containsKey(pid)){  // write lock is in use
-			removeFromExclusiveLocks(tid, pid);
+
+		// Returns true if holding this mode allows everything other does
+		boolean covers(Mode other) {
+			return this == other || this == X || other == IS
+					|| (this == SIX && (other == IX || other == S));
 		}
-	}
-	
-	// Updates state to reflect tid having a shared lock on pid
-	private synchronized void addToSharedLocks(TransactionId tid, PageId pid) {
-		ArrayList<TransactionId> temp;
-		if(!sharedLocks.containsKey(pid)){
-			sharedLocks.put(pid, new ArrayList<TransactionId>(Arrays.asList(tid)));
-		} else {
-			temp = sharedLocks.get(pid);
-			if(!temp.contains(tid)){  // only add tid if not already in the list
-				temp.add(tid);
+
+		// Returns the weakest mode that allows everything this and other do
+		Mode join(Mode other) {
+			if(covers(other)) {
+				return this;
+			}
+			if(other.covers(this)) {
+				return other;
 			}
-			sharedLocks.put(pid, temp);
+			return SIX;  // IX and S
 		}
 	}
-	
-	// Updates state to reflect tid having an exclusive lock on pid
-	private synchronized void addToExclusiveLocks(TransactionId tid, PageId pid) {
-		exclusiveLocks.put(pid, tid);
+
+	// A transaction waiting for a lock on one table or page
+	private static class LockRequest {
+		final Object key;
+		final TransactionId tid;
+		final Mode mode;
+		final boolean upgrade;
+		final Condition wakeup;
+		boolean granted;
+		boolean aborted;
+
+		LockRequest(Object key, TransactionId tid, Mode mode, boolean upgrade, Condition wakeup) {
+			this.key = key;
+			this.tid = tid;
+			this.mode = mode;
+			this.upgrade = upgrade;
+			this.wakeup = wakeup;
+		}
 	}
-	
-	// Attempts to remove pid, tid from sharedLocks. If it doesn't exist, returns false.
-	// If the pair existed and was removed, returns true
-	private synchronized boolean removeFromSharedLocks(TransactionId tid, PageId pid){
-		if(sharedLocks.containsKey(pid)){
-			ArrayList<TransactionId> tids = sharedLocks.get(pid);
-			if(tids.contains(tid)){
-				int index = tids.indexOf(tid);
-				tids.remove(index);
-				return true;
+
+	// The locks held on one table or page and the requests waiting for them
+	private static class LockQueue {
+		// The transactions holding a lock, and the mode
+		final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+
+		// How many holders hold each mode
+		final int[] counts = new int[Mode.values().length];
+
+		// Requests not granted yet, in the order they will be
+		final LinkedList<LockRequest> waiting = new LinkedList<LockRequest>();
+
+		void put(TransactionId tid, Mode mode) {
+			Mode old = holders.put(tid, mode);
+			if(old != null) {
+				counts[old.ordinal()]--;
 			}
-			sharedLocks.put(pid, tids);
-			return false;
+			counts[mode.ordinal()]++;
+		}
+
+		void remove(TransactionId tid) {
+			Mode old = holders.remove(tid);
+			if(old != null) {
+				counts[old.ordinal()]--;
+			}
+		}
+
+		// Returns true if mode is compatible with the locks the other
+		// transactions hold
+		boolean compatible(TransactionId tid, Mode mode) {
+			Mode own = holders.get(tid);
+			for(Mode held : Mode.values()) {
+				int others = counts[held.ordinal()] - (held == own ? 1 : 0);
+				if(others > 0 && !mode.compatibleWith(held)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean isUnused() {
+			return holders.isEmpty() && waiting.isEmpty();
 		}
-		return false;
 	}
-	
-	// Attempts to remove pid, tid from exclusiveLocks. If it doesn't exist,
-	// returns false. If it exists and was removed, returns true
-	private synchronized boolean removeFromExclusiveLocks(TransactionId tid,
-													   PageId pid){
-		if(exclusiveLocks.containsKey(pid) && 
-				exclusiveLocks.get(pid) == tid){
-				exclusiveLocks.remove(pid);
-				return true;
+
+	// The locks one transaction holds
+	private static class TxnLocks {
+		// The tables it holds a lock on, and the mode
+		final HashMap<Integer, Mode> tables = new HashMap<Integer, Mode>();
+
+		// The pages it holds a lock on, by table
+		final HashMap<Integer, HashSet<PageId>> pages = new HashMap<Integer, HashSet<PageId>>();
+
+		// Pages it used under a table lock that covered them
+		final HashSet<PageId> covered = new HashSet<PageId>();
+
+		HashSet<PageId> pagesOf(int tableId) {
+			HashSet<PageId> set = pages.get(tableId);
+			if(set == null) {
+				set = new HashSet<PageId>();
+				pages.put(tableId, set);
+			}
+			return set;
 		}
-		return false;
 	}
-	
-	
-	// Releases all locks that this transaction holds
-	public synchronized void releaseAllLocksForTxn(TransactionId tid) {
-		// Remove all shared locks that this tid is holding
-		for(PageId key : sharedLocks.keySet()) {
-			ArrayList<TransactionId> tidList = sharedLocks.get(key);
-			if(tidList.contains(tid)) {
-				tidList.remove(tid);
-				if(tidList.size() == 0) {
-					// Removed the last shared lock, remove listing from lock map
-					sharedLocks.remove(key);
-				} else {
-					sharedLocks.put(key, tidList);
+
+	// Guards the queues, the index and the flush holds
+	private final ReentrantLock latch = new ReentrantLock();
+
+	// The queue of every table and page that is locked or waited for. Tables
+	// are keyed by their Integer id, pages by their PageId
+	private final HashMap<Object, LockQueue> queues;
+
+	// The locks each transaction holds
+	private final HashMap<TransactionId, TxnLocks> locksHeld;
+
+	// The request each waiting transaction is waiting on
+	private final HashMap<TransactionId, LockRequest> waiters;
+
+	// Manager for the dependency graph
+	DeadlockManager dependencies;
+
+	// Pages the buffer pool is writing back; see holdForFlush
+	HashSet<PageId> flushing;
+
+	private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+	// Constructor
+	public LockManager(int maxPages) {
+		this.queues = new HashMap<Object, LockQueue>();
+		this.locksHeld = new HashMap<TransactionId, TxnLocks>();
+		this.waiters = new HashMap<TransactionId, LockRequest>();
+		this.dependencies = new DeadlockManager(this);
+		this.flushing = new HashSet<PageId>();
+	}
+
+	// Sets how many page locks a transaction may hold in one table before
+	// they are escalated to a table lock
+	public void setEscalationThreshold(int pages) {
+		this.escalationThreshold = pages;
+	}
+
+	// Releases tid's lock on pid. A page covered by a table lock stays
+	// covered; table locks are only released with the transaction
+	public void releaseLock(TransactionId tid, PageId pid) {
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			if(held == null) {
+				return;
+			}
+			HashSet<PageId> pages = held.pages.get(pid.getTableId());
+			if(pages != null && pages.remove(pid)) {
+				if(pages.isEmpty()) {
+					held.pages.remove(pid.getTableId());
 				}
+				release(pid, tid);
 			}
+		} finally {
+			latch.unlock();
 		}
-		
-		// Remove exclusive lock that tid is holding if it is holding one
-		for(PageId key : exclusiveLocks.keySet()) {
-			if(exclusiveLocks.get(key) == tid){
-				exclusiveLocks.remove(key);
+	}
+
+	// Releases all locks that this transaction holds
+	public void releaseAllLocksForTxn(TransactionId tid) {
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.remove(tid);
+			if(held != null) {
+				for(HashSet<PageId> pages : held.pages.values()) {
+					for(PageId pid : pages) {
+						release(pid, tid);
+					}
+				}
+				for(Integer table : held.tables.keySet()) {
+					release(table, tid);
+				}
 			}
+		} finally {
+			latch.unlock();
 		}
 		dependencies.removeAllDependenciesTo(tid);
 		dependencies.abortingTids.remove(tid);
 	}
-	
-	// Returns an ArrayList of all PageId's of pages locked by transaction tid
+
+	// Takes tid's lock on a table or page out of its queue
+	private void release(Object key, TransactionId tid) {
+		LockQueue q = queues.get(key);
+		q.remove(tid);
+		grantWaiting(key, q);
+	}
+
+	// Returns an ArrayList of all PageId's of pages locked by transaction
+	// tid, including those it used under a table lock
 	public ArrayList<PageId> getPagesLockedByTxn(TransactionId tid) {
 		ArrayList<PageId> pageIdList = new ArrayList<PageId>();
-		for(PageId key : sharedLocks.keySet()) {
-			if(sharedLocks.get(key).contains(tid) && !pageIdList.contains(key)) {
-				pageIdList.add(key);
-			}
-		}
-		for(PageId key : exclusiveLocks.keySet()) {
-			if(exclusiveLocks.get(key) == tid && !pageIdList.contains(key)) {
-				pageIdList.add(key);
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			if(held != null) {
+				for(HashSet<PageId> pages : held.pages.values()) {
+					pageIdList.addAll(pages);
+				}
+				for(PageId pid : held.covered) {
+					HashSet<PageId> pages = held.pages.get(pid.getTableId());
+					if(pages == null || !pages.contains(pid)) {
+						pageIdList.add(pid);
+					}
+				}
 			}
+		} finally {
+			latch.unlock();
 		}
 		return pageIdList;
 	}
-	
-	// Returns true if an exclusive lock exists for pid
-	private boolean hasExclusiveLock(PageId pid) {
-		return exclusiveLocks.containsKey(pid);
+
+	// Returns how many tables and pages tid holds locks on or has used; the
+	// measure of the work a deadlock victim loses
+	int locksHeldBy(TransactionId tid) {
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			if(held == null) {
+				return 0;
+			}
+			int n = held.tables.size() + held.covered.size();
+			for(HashSet<PageId> pages : held.pages.values()) {
+				n += pages.size();
+			}
+			return n;
+		} finally {
+			latch.unlock();
+		}
 	}
 
-	// Returns true if a shared lock exists for pid
-	private boolean hasSharedLock(PageId pid) {
-		if(sharedLocks.containsKey(pid)){
-			return sharedLocks.get(pid).size() > 0;
+	// Returns true if tid holds any lock on pid, itself or through a
+	// table lock
+	public boolean holdsLock(TransactionId tid, PageId pid){
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			if(held == null) {
+				return false;
+			}
+			Mode table = held.tables.get(pid.getTableId());
+			if(table != null && table.covers(Mode.S)) {
+				return true;
+			}
+			HashSet<PageId> pages = held.pages.get(pid.getTableId());
+			return pages != null && pages.contains(pid);
+		} finally {
+			latch.unlock();
 		}
-		return false;
 	}
 
-	// Returns true if another transaction besides tid holds an exclusive lock on pid
-	private boolean otherHasExclusiveLock(TransactionId tid, PageId pid){
-		return hasExclusiveLock(pid) && !holdsExclusiveLock(tid, pid);
+	// Keeps exclusive locks on pid and its table from being granted while
+	// the buffer pool writes the page back, if no one holds one already.
+	// Returns true if the hold was taken; it must be given back with
+	// releaseFlushHold. Unlike a shared lock this is not a transaction, so
+	// it never shows up in the dependency graph
+	public boolean holdForFlush(PageId pid) {
+		latch.lock();
+		try {
+			if(heldExclusive(pid) || heldExclusive(pid.getTableId())) {
+				return false;
+			}
+			flushing.add(pid);
+			return true;
+		} finally {
+			latch.unlock();
+		}
 	}
 
-	// Returns true if another transaction besides tid holds a shared lock on pid
-	private boolean otherHasSharedLock(TransactionId tid, PageId pid){
-		if(hasSharedLock(pid)){
-			ArrayList<TransactionId> sharedLocksList = sharedLocks.get(pid);
-			return !holdsSharedLock(tid, pid) || sharedLocksList.size() > 1;
-		} return false;
+	private boolean heldExclusive(Object key) {
+		LockQueue q = queues.get(key);
+		return q != null && q.counts[Mode.X.ordinal()] > 0;
 	}
 
-	// Returns true if tid holds an exclusive lock on pid
-	private boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
-		if(exclusiveLocks.containsKey(pid)){
-			return exclusiveLocks.get(pid) == tid;
+	public void releaseFlushHold(PageId pid) {
+		latch.lock();
+		try {
+			flushing.remove(pid);
+			Integer table = pid.getTableId();
+			for(Object key : new Object[] { pid, table }) {
+				LockQueue q = queues.get(key);
+				if(q != null) {
+					grantWaiting(key, q);
+				}
+			}
+		} finally {
+			latch.unlock();
 		}
-		return false;
 	}
 
-	// Returns true if tid holds a shared lock on pid
-	private boolean holdsSharedLock(TransactionId tid, PageId pid) {
-		if(sharedLocks.containsKey(pid)){
-			ArrayList<TransactionId> tids = sharedLocks.get(pid);
-			return tids.contains(tid);
+	// Attempts to acquire the lock perm by tid on pid, waiting until it is
+	// granted: an intention lock on the table first, then the page lock
+	// unless the table lock covers it. Aborts tid instead if waiting would
+	// deadlock
+	public void requestLock(TransactionId tid,
+			PageId pid, Permissions perm) throws TransactionAbortedException {
+		boolean exclusive = perm != Permissions.READ_ONLY;
+		if(exclusive && dependencies.abortingTids.contains(tid)) {
+			return;
+		}
+		Integer table = pid.getTableId();
+		Mode pageMode = exclusive ? Mode.X : Mode.S;
+		if(coveredByTable(tid, pid, pageMode)) {
+			return;
+		}
+		acquire(tid, table, exclusive ? Mode.IX : Mode.IS);
+		acquire(tid, pid, pageMode);
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			HashSet<PageId> pages = held.pages.get(table);
+			if(pages == null || pages.size() <= escalationThreshold) {
+				return;
+			}
+			Mode escalateTo = Mode.S;
+			for(PageId p : pages) {
+				if(queues.get(p).holders.get(tid) == Mode.X) {
+					escalateTo = Mode.X;
+					break;
+				}
+			}
+			// once the table lock covers escalateTo, the pages still
+			// locked are ones it does not cover; there is nothing to free
+			Mode tableMode = held.tables.get(table);
+			if(!tableMode.covers(escalateTo) && tryAcquire(tid, table, escalateTo)) {
+				releaseCoveredPages(tid, table);
+			}
+		} finally {
+			latch.unlock();
 		}
-		return false;
 	}
 
-	// Returns true if tid holds any lock on pid
-	public boolean holdsLock(TransactionId tid, PageId pid){
-		return holdsSharedLock(tid, pid) || holdsExclusiveLock(tid, pid);
+	// Strengthens tid's lock on a table to mode if that can be granted
+	// without waiting, and returns whether it was. A request that would
+	// have to wait is taken back out of the queue
+	private boolean tryAcquire(TransactionId tid, Integer table, Mode mode) {
+		LockQueue q = queues.get(table);
+		Mode held = q.holders.get(tid);
+		LockRequest req = enqueue(q, table, tid, held.join(mode), true);
+		grantWaiting(table, q);
+		if(!req.granted) {
+			q.waiting.remove(req);
+			grantWaiting(table, q);
+		}
+		return req.granted;
 	}
 
-	// Attempts to acquire the lock perm by tid on pid
-	// Delegates to getSharedLock and getExclusiveLock respectively
-	public void requestLock(TransactionId tid, 
-			PageId pid, Permissions perm) throws TransactionAbortedException {
-		if(perm == Permissions.READ_ONLY){
-			getSharedLock(tid, pid);
-		} else {
-			if(!dependencies.abortingTids.contains(tid)) {
-				getExclusiveLock(tid, pid);
+	// Returns true if tid's lock on pid's table allows mode on the page,
+	// and notes that tid used the page
+	private boolean coveredByTable(TransactionId tid, PageId pid, Mode mode) {
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			if(held == null) {
+				return false;
+			}
+			Mode table = held.tables.get(pid.getTableId());
+			if(table == null || !table.covers(mode)) {
+				return false;
 			}
+			held.covered.add(pid);
+			return true;
+		} finally {
+			latch.unlock();
 		}
 	}
 
-	// Returns true if we can grant an exclusive lock to this tid on this page
-	// We can grant an exclusive lock when there are no other locks at all.
-	// The upgrade case will be taken care of by the caller after the shared lock is released
-	private boolean canGrantExclusiveLock(TransactionId tid, PageId pid) {
-		boolean otherHasLock = otherHasExclusiveLock(tid, pid) ||
-							   otherHasSharedLock(tid, pid);
-		boolean selfHasLock = holdsLock(tid, pid);
-		return !otherHasLock && !selfHasLock;
-	}
-	
-	// Returns true if we can grant a shared lock to this tid on this page
-	private boolean canGrantSharedLock(TransactionId tid, PageId pid) {
-		return !otherHasExclusiveLock(tid, pid) && !holdsExclusiveLock(tid, pid);
-	}
-	
-	// Returns a list of TransactionIds that block this request; returns an empty list if none
-	private ArrayList<TransactionId> txnsBlockingRequest(TransactionId tid, PageId pid, Permissions perm) {
-		ArrayList<TransactionId> blockingTxns = new ArrayList<TransactionId>();
-		if(perm == Permissions.READ_ONLY && otherHasExclusiveLock(tid, pid)) {
-			// Shared lock request is blocked by another txn having an exclusive lock
-			blockingTxns.add(exclusiveLocks.get(pid));
-		} else if(perm == Permissions.READ_WRITE) {
-			if (otherHasExclusiveLock(tid, pid) && !blockingTxns.contains(exclusiveLocks.get(pid))) {
-				blockingTxns.add(exclusiveLocks.get(pid));
-			} 
-			if (otherHasSharedLock(tid, pid)) {
-				for(TransactionId t : sharedLocks.get(pid)) {
-					// If the shared lock is not owned by this transaction
-					// And this transaction doesn't already exist in blockingTxns
-					if(!t.equals(tid) && !blockingTxns.contains(t)) {
-						blockingTxns.add(t);
-					}
+	// Gives up tid's page locks in table that its table lock now covers
+	private void releaseCoveredPages(TransactionId tid, Integer table) {
+		latch.lock();
+		try {
+			TxnLocks held = locksHeld.get(tid);
+			Mode tableMode = held.tables.get(table);
+			HashSet<PageId> pages = held.pages.get(table);
+			if(pages == null) {
+				return;
+			}
+			Iterator<PageId> it = pages.iterator();
+			while(it.hasNext()) {
+				PageId pid = it.next();
+				if(tableMode.covers(queues.get(pid).holders.get(tid))) {
+					it.remove();
+					held.covered.add(pid);
+					release(pid, tid);
 				}
 			}
+			if(pages.isEmpty()) {
+				held.pages.remove(table);
+			}
+		} finally {
+			latch.unlock();
 		}
-		return blockingTxns;
 	}
-	
-	// Attempts to acquire a shared lock for tid on pid
-	private void getSharedLock(TransactionId tid, PageId pid) 
+
+	// Acquires mode on a table or page for tid, strengthening the lock tid
+	// already holds there, and waits until it is granted. If waiting closes
+	// a cycle in the waits-for graph, the transaction on it with the least
+	// work is aborted; if that is tid, it is rolled back here
+	private void acquire(TransactionId tid, Object key, Mode mode)
 			throws TransactionAbortedException {
-//		if(DEPENDENCIES){
-			getSharedLockDependencies(tid, pid);
-//		} else {
-//			getSharedLockTimeout(tid, pid);
-//		}
-	}
-	
-	// Gets a shared lock, dealing with deadlocks using the dependency graph
-	private void getSharedLockDependencies(TransactionId tid, PageId pid) throws TransactionAbortedException {
-		ArrayList<TransactionId> blockers = txnsBlockingRequest(tid, pid, Permissions.READ_ONLY);
-		if(blockers.isEmpty()) {
-			// Nothing blocking us from getting the lock, grant the lock
-			addToSharedLocks(tid, pid);
-		} else {
-			// there is an exclusive lock blocking the request
-			for(int i=0; i<blockers.size(); i++){
-			// tries to add dependency to graph, aborts if there would be a deadlock
-				if(!dependencies.addToGraph(tid, blockers.get(i))) {
-					try {
-						Database.getLogFile().rollback(tid.getId());
-					} catch (NoSuchElementException | IOException e) {
-						e.printStackTrace();
+		boolean aborted = false;
+		latch.lock();
+		try {
+			LockQueue q = queues.get(key);
+			if(q == null) {
+				q = new LockQueue();
+				queues.put(key, q);
+			}
+			Mode held = q.holders.get(tid);
+			if(held != null && held.covers(mode)) {
+				return;  // already held
+			}
+			LockRequest req = enqueue(q, key, tid, held == null ? mode : held.join(mode), held != null);
+			try {
+				grantWaiting(key, q);
+				if(!req.granted) {
+					waiters.put(tid, req);
+					ArrayList<TransactionId> blockers = blockers(q, req);
+					// the cycle search runs without the latch; each victim
+					// breaks one cycle, so search until none is left
+					dependencies.waitFor(tid, blockers);
+					while(!req.granted && !req.aborted) {
+						latch.unlock();
+						TransactionId victim;
+						try {
+							victim = dependencies.findVictim(tid);
+						} finally {
+							latch.lock();
+						}
+						if(victim == null || req.granted || req.aborted) {
+							break;
+						}
+						if(victim.equals(tid) || !abortWaiter(victim)) {
+							req.aborted = true;
+							dependencies.abortingTids.add(tid);
+						}
+					}
+					while(!req.granted && !req.aborted) {
+						req.wakeup.awaitUninterruptibly();
 					}
-					throw new TransactionAbortedException();
 				}
-			}
-			
-			// Use a sleep statement until our entry in dependencies is empty
-			while(dependencies.hasDependencies(tid)){
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+			} finally {
+				if(!latch.isHeldByCurrentThread()) {
+					latch.lock();  // the thread was stopped while waking up
 				}
+				if(waiters.get(tid) == req) {
+					waiters.remove(tid);
+				}
+				if(!req.granted) {
+					// aborted, or the thread was stopped while waiting;
+					// the requests behind this one may go now
+					q.waiting.remove(req);
+					grantWaiting(key, q);
+				}
+				aborted = req.aborted;
+				dependencies.removeAllDependenciesFrom(tid);
 			}
-			
-			// The dependency list is now empty, we can execute now
-			addToSharedLocks(tid, pid);
+		} finally {
+			latch.unlock();
+		}
+		if(aborted) {
+			try {
+				Database.getLogFile().rollback(tid.getId());
+			} catch (NoSuchElementException | IOException e) {
+				e.printStackTrace();
+			}
+			throw new TransactionAbortedException();
 		}
 	}
-	
-	// Gets a shared lock, dealing with deadlocks using a simple timeout policy
-//	private void getSharedLockTimeout(TransactionId tid, PageId pid) throws TransactionAbortedException {
-//		if(otherHasExclusiveLock(tid, pid)){
-//			// wait until can grant shared lock, or deadlock and abort
-//			long startTime = System.currentTimeMillis();
-//			while(!canGrantSharedLock(tid, pid)){
-//				long currentTime = System.currentTimeMillis();
-//				if((currentTime - startTime) > 100) {
-//					// Assume there is a deadlock after 1 second
-//					throw new TransactionAbortedException();
-//				}
-//				try {
-//					Thread.sleep(10);
-//				} catch (InterruptedException e) {
-//					e.printStackTrace();
-//				}
-//			}
-//			// If we made it out of the loop, we acquired the lock successfully
-//			addToSharedLocks(tid, pid);
-//		} else if (!holdsSharedLock(tid, pid)){
-//			// If this transaction doesn't already hold a read lock, grant the read lock
-//			addToSharedLocks(tid, pid);
-//		}		
-//	}
-
-	// Attempts to acquire exclusive lock for tid on pid
-	private void getExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-//		if(DEPENDENCIES){
-			getExclusiveLockDependencies(tid, pid);
-//		} else {
-//			getExclusiveLockTimeout(tid, pid);
-//		}
+
+	// Aborts the request victim is waiting on, if it is waiting, and wakes
+	// it to roll itself back. Returns false if victim was not waiting
+	private boolean abortWaiter(TransactionId victim) {
+		LockRequest req = waiters.get(victim);
+		if(req == null || req.granted) {
+			return false;
+		}
+		if(req.aborted) {
+			return true;
+		}
+		req.aborted = true;
+		dependencies.abortingTids.add(victim);
+		LockQueue q = queues.get(req.key);
+		q.waiting.remove(req);
+		grantWaiting(req.key, q);
+		req.wakeup.signal();
+		return true;
 	}
-	
-	// Gets an exclusive lock, dealing with deadlocks using a dependency graph
-	private void getExclusiveLockDependencies(TransactionId tid, PageId pid) throws TransactionAbortedException {
-		ArrayList<TransactionId> blockers = txnsBlockingRequest(tid, pid, Permissions.READ_WRITE);
-		if(blockers.isEmpty()) {
-			// Nothing blocking us from getting the lock, grant the lock
-			addToExclusiveLocks(tid, pid);
-		} else {
-			// there is an exclusive lock blocking the request
-			// tries to add dependency to graph, aborts if there would be a deadlock
-
-			for(int i=0; i<blockers.size(); i++) {
-				if(!dependencies.addToGraph(tid, blockers.get(i))){
-					try {
-						Database.getLogFile().rollback(tid.getId());
-					} catch (NoSuchElementException | IOException e) {
-						e.printStackTrace();
-					}
-					throw new TransactionAbortedException();
-				}
-			}		
-			
-			// Use a sleep statement until our entry in dependencies is empty
-			while(dependencies.hasDependencies(tid)){
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+
+	// Adds a request to the queue: at the back, or for an upgrade, behind
+	// the other upgrades but ahead of everyone else
+	private LockRequest enqueue(LockQueue q, Object key, TransactionId tid, Mode mode, boolean upgrade) {
+		LockRequest req = new LockRequest(key, tid, mode, upgrade, latch.newCondition());
+		if(upgrade) {
+			ListIterator<LockRequest> it = q.waiting.listIterator();
+			while(it.hasNext()) {
+				if(!it.next().upgrade) {
+					it.previous();
+					break;
 				}
 			}
-			addToExclusiveLocks(tid, pid);
+			it.add(req);
+		} else {
+			q.waiting.addLast(req);
+		}
+		return req;
+	}
+
+	// Grants the requests at the head of the queue for as long as they are
+	// compatible with the locks held, and wakes their transactions. A request
+	// that has to wait holds up everything behind it
+	private void grantWaiting(Object key, LockQueue q) {
+		Iterator<LockRequest> it = q.waiting.iterator();
+		while(it.hasNext()) {
+			LockRequest req = it.next();
+			if(!canGrant(key, q, req)) {
+				break;
+			}
+			it.remove();
+			q.put(req.tid, req.mode);
+			TxnLocks held = locksHeld.get(req.tid);
+			if(held == null) {
+				held = new TxnLocks();
+				locksHeld.put(req.tid, held);
+			}
+			if(key instanceof PageId) {
+				PageId pid = (PageId) key;
+				held.pagesOf(pid.getTableId()).add(pid);
+			} else {
+				held.tables.put((Integer) key, req.mode);
+			}
+			req.granted = true;
+			req.wakeup.signal();
+		}
+		if(q.isUnused()) {
+			queues.remove(key);
+		}
+	}
+
+	// Returns true if req is compatible with the locks held. An exclusive
+	// lock also has to wait for flush holds on the page, or on any page of
+	// the table
+	private boolean canGrant(Object key, LockQueue q, LockRequest req) {
+		if(!q.compatible(req.tid, req.mode)) {
+			return false;
+		}
+		if(req.mode != Mode.X || flushing.isEmpty()) {
+			return true;
+		}
+		if(key instanceof PageId) {
+			return !flushing.contains(key);
+		}
+		for(PageId pid : flushing) {
+			if(key.equals(pid.getTableId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns whom req waits for: the holders of conflicting locks and the
+	// conflicting requests ahead of it
+	private ArrayList<TransactionId> blockers(LockQueue q, LockRequest req) {
+		ArrayList<TransactionId> blockers = new ArrayList<TransactionId>();
+		for(Map.Entry<TransactionId, Mode> h : q.holders.entrySet()) {
+			if(!h.getKey().equals(req.tid) && !req.mode.compatibleWith(h.getValue())) {
+				blockers.add(h.getKey());
+			}
+		}
+		for(LockRequest ahead : q.waiting) {
+			if(ahead == req) {
+				break;
+			}
+			if(!req.mode.compatibleWith(ahead.mode)) {
+				blockers.add(ahead.tid);
+			}
 		}
+		return blockers;
 	}
-	
-	// Gets an exclusive lock, dealing with deadlocks using a simple timeout policy
-//	private void getExclusiveLockTimeout(TransactionId tid, PageId pid) throws TransactionAbortedException {
-//		if(otherHasExclusiveLock(tid, pid) || otherHasSharedLock(tid, pid)){
-//			// wait until can grant exclusive lock, or deadlock and abort
-//			long startTime = System.currentTimeMillis();
-//			while(!canGrantExclusiveLock(tid, pid)){
-//				long currentTime = System.currentTimeMillis();
-//				if((currentTime - startTime) > 100) {
-//					// Assume there is a deadlock after .1 second
-//					throw new TransactionAbortedException();
-//				}
-//				try {
-//					Thread.sleep(10);
-//				} catch (InterruptedException e) {
-//					e.printStackTrace();
-//				}
-//			}
-//			// If we made it out of the loop, we acquired the lock successfully
-//			addToExclusiveLocks(tid, pid);
-//		} else if (holdsSharedLock(tid, pid)) {
-//			// If this txn has a read lock, upgrade and grant
-//			removeFromSharedLocks(tid, pid);
-//			addToExclusiveLocks(tid, pid);
-//		} else if (!holdsExclusiveLock(tid, pid)) {
-//			// No locks exist on page, grant exclusive lock
-//			addToExclusiveLocks(tid, pid);
-//		}
-//	}
-}
\ No newline at end of file
+}
@@ -4,6 +4,12 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +21,36 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
+writes from happening).  BufferPool has no lock of its own to order
+against this one: its page table is a concurrent map, and each frame has
+a latch held only while the frame is filled, written back or replaced.
+BufferPool takes the LogFile lock before a frame latch when it logs a
+page (on commit and when it steals a dirty page), and rollback and
+recovery replace pages while holding the LogFile lock, so the order is
+always the LogFile lock first.  Code here may call into BufferPool while
+synchronized, but BufferPool must not call a synchronized LogFile
+method while it holds a frame latch unless it took the LogFile lock
+first.
+
+<u> Appending: </u>
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
 
-       ..
+Records are encoded into a heap buffer, checksummed, and copied into an
+off-heap append buffer, which goes to the last log segment in one write
+when it fills up or the log is forced.  Anything that reads the log
+back flushes the append buffer first.
 
-       }
-    }
-</pre>
+<u> Group commit: </u>
+<p>
+
+Committing transactions do not force the log themselves while holding
+the LogFile lock.  A committer appends its COMMIT record, lets go of the
+lock, and then waits until the log is forced past the end of its record.
+One waiter at a time does the force, on behalf of every record appended
+before it started, so commits that arrive while a force is in progress
+all share the next one.  The leader can also be made to wait a little
+before it forces, for more committers to join (see
+{@link #setGroupCommitWait}).
 */
 
 /**
@@ -39,33 +58,60 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is kept in segment files next to a manifest, the file the
+LogFile was opened with (see LogSegments).  The manifest holds the
+offset of the last written checkpoint, or -1 if there are no
+checkpoints, and the offset of the first record in the log.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Offsets are positions in the log as a whole, and a record keeps its
+offset for as long as it is in the log: truncating deletes old segments
+rather than moving records, and a log that is started over begins where
+the old one ended.  A record's offset is its LSN, so an LSN stamped on a
+page (see Page.getLSN()) can always be compared with the records that
+follow it.
+
+<li> The log consists of log records.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with an integer CRC-32 of everything in the
+record before it, followed by a long integer file offset representing
+the position in the log file where the record began.  Recovery stops at the first record
+whose checksum does not match, which is where a crash tore the log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA,
+BEGIN, CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
+accessed with the LogFile.readPageData() and LogFile.putPageData()
 methods.  See LogFile.print() for an example.
 
+<li> DELTA records describe an update by the bytes it changed rather
+than by whole pages: a page id (see LogFile.putPageId()), an integer count
+of changed ranges, and for each range an integer offset into the page, an
+integer length, and that many bytes before and after the update.  logWrite
+writes a DELTA record unless the changed ranges would be as large as the
+page, in which case it falls back to an UPDATE record.  The ranges are
+those that differ from the transaction's before-image, so once a page has
+been stolen, later records for it in the same transaction are UPDATE
+records: the disk holds the stolen version, and a range the transaction
+changed back would otherwise be missing from the redo.
+
+<li> CLR records contain the LSN of the update record they undid.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the pages the buffer pool had not written back and the first record that
+changed each of them.  The format of the record is an integer count of
+the number of transactions, a long integer transaction id and a long
+integer first record offset for each active transaction, then an integer
+count of the number of pages, and a page id and a long integer record
+offset for each page.  Checkpoints are fuzzy: nothing is flushed while
+one is taken, so redo starts at the oldest of these pages.
 
 </ul>
 
@@ -74,7 +120,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -83,15 +129,45 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final int CLR_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** Checksum and start offset at the end of every record */
+    final static int TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+
+    /** Size of the off-heap buffer appends are gathered in */
+    static final int APPEND_BUFFER_SIZE = 64 * 1024;
 
     long currentOffset = -1;//protected by this
-    
+
+    // The record being encoded, and the appended records that have not been
+    // written to the file yet; they start at flushedOffset. currentOffset,
+    // the end of the log, is flushedOffset plus what is in appendBuffer.
+    // All protected by this
+    private ByteBuffer record = ByteBuffer.allocate(2 * BufferPool.PAGE_SIZE + 512);
+    private final ByteBuffer appendBuffer = ByteBuffer.allocateDirect(APPEND_BUFFER_SIZE);
+    private long flushedOffset = -1;
+
     int totalRecords = 0; // for PatchTest //protected by this
 
+    // Group commit state, protected by forceLock. The log is known to be
+    // forced up to durableOffset; forcing is set while a leader forces on
+    // behalf of the waiters. forceLock may be taken while holding this,
+    // never the other way round.
+    private final Object forceLock = new Object();
+    private long durableOffset = 0;
+    private boolean forcing = false;
+    private int forceCount = 0;
+    private volatile long groupCommitWaitMicros = 0;
+
+    // Held while a checkpoint is taken, so only one runs at a time; taken
+    // before this. The periodic checkpointer is guarded by schedulerLock.
+    private final Object checkpointLock = new Object();
+    private final Object schedulerLock = new Object();
+    private ScheduledExecutorService checkpointer;
+
     HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
     // Dirty page table
     HashMap<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
@@ -109,11 +185,11 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log's manifest; the segments go next to it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        raf = new LogSegments(f);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -134,103 +210,288 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // pages on disk may carry LSNs from the log being thrown
+            // out, so the new one starts where it ended
+            raf.reset(raf.length());
+            currentOffset = raf.length();
+            flushedOffset = currentOffset;
+            appendBuffer.clear();
         }
     }
 
+    // Starts encoding a record of the given type
+    private void startRecord(int type, long tid) {
+        record.clear();
+        record.putInt(type);
+        record.putLong(tid);
+    }
+
+    // Makes room for n more bytes in the record being encoded
+    private void reserve(int n) {
+        if (record.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + n));
+            record.flip();
+            bigger.put(record);
+            record = bigger;
+        }
+    }
+
+    // Ends the record being encoded with its checksum and its start
+    // offset, lsn, and leaves it ready to be read out of record
+    private void sealRecord(long lsn) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        reserve(TRAILER_SIZE);
+        record.putInt((int) crc.getValue());
+        record.putLong(lsn);
+        record.flip();
+    }
+
+    // Appends the record being encoded at the end of the log
+    // @return its LSN
+    private long appendRecord() throws IOException {
+        long lsn = currentOffset;
+        sealRecord(lsn);
+        if (appendBuffer.remaining() < record.remaining()) {
+            flushAppends();
+            if (appendBuffer.remaining() < record.remaining()) {
+                // too big to gather; write it on its own
+                writeFully(record, flushedOffset);
+                flushedOffset += record.limit();
+                currentOffset = flushedOffset;
+                return lsn;
+            }
+        }
+        appendBuffer.put(record);
+        currentOffset = flushedOffset + appendBuffer.position();
+        return lsn;
+    }
+
+    // Writes out the append buffer, so that the file holds the whole log
+    private void flushAppends() throws IOException {
+        if (appendBuffer.position() == 0) {
+            return;
+        }
+        appendBuffer.flip();
+        int n = appendBuffer.remaining();
+        writeFully(appendBuffer, flushedOffset);
+        flushedOffset += n;
+        appendBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        raf.append(buf, position);
+    }
+
+    // Class names are plain ASCII, so this reads back with readUTF
+    private void putUTF(String s) throws UnsupportedEncodingException {
+        byte[] b = s.getBytes("UTF-8");
+        reserve(2 + b.length);
+        record.putShort((short) b.length);
+        record.put(b);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of times the log has been forced to disk */
+    public int getForceCount() {
+        synchronized (forceLock) {
+            return forceCount;
+        }
+    }
+
+    /** Sets how long a committing transaction that is about to force the
+        log waits first for others to join it, if other transactions are
+        running.  0, the default, forces at once; commits that arrive
+        during a force still share the next one.
+        @param micros the longest wait, in microseconds
+    */
+    public void setGroupCommitWait(long micros) {
+        groupCommitWaitMicros = micros;
+    }
+
+    /** Sets how large a log segment grows before appends go to a new
+        one.  Truncation frees whole segments, so smaller ones give space
+        back sooner.
+        @param bytes the segment size; the default is 4MB
+    */
+    public void setSegmentSize(long bytes) {
+        raf.setSegmentSize(bytes);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
 
-        synchronized (Database.getBufferPool()) {
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid.getId());
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid.getId());
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
+            startRecord(ABORT_RECORD, tid.getId());
+            appendRecord();
 //                activeTxns.remove(tid.getId());
 //                undoChain.remove(tid.getId());
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with any other
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            startRecord(COMMIT_RECORD, tid.getId());
+            appendRecord();
+            end = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        forceTo(end);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    // Returns once the log is forced at least up to offset. If no one is
+    // forcing, this thread becomes the leader and forces everything
+    // appended so far; otherwise it waits for the leader, and leads the
+    // next force itself if that one did not reach far enough.
+    private void forceTo(long offset) throws IOException {
+        if (Thread.holdsLock(this)) {
+            force();  // can't wait for a leader that needs our lock
+            return;
+        }
+        synchronized (forceLock) {
+            while (durableOffset < offset && forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the log to be forced");
+                }
+            }
+            if (durableOffset >= offset) {
+                return;
+            }
+            forcing = true;
+        }
+        try {
+            long wait = groupCommitWaitMicros;
+            if (wait > 0) {
+                boolean othersRunning;
+                synchronized (this) {
+                    othersRunning = !tidToFirstLogRecord.isEmpty();
+                }
+                if (othersRunning) {
+                    try {
+                        TimeUnit.MICROSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            long end;
+            synchronized (this) {
+                flushAppends();
+                end = currentOffset;
+            }
+            raf.force();
+            forced(end);
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                forceLock.notifyAll();
+            }
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    // Records that the log has been forced up to end
+    private void forced(long end) {
+        synchronized (forceLock) {
+            forceCount++;
+            if (end > durableOffset) {
+                durableOffset = end;
+            }
+        }
+    }
+
+    /** Write an update record to disk for the specified tid and page
+        (with provided         before and after images.)  Only the byte
+        ranges that differ between the images are logged, in a DELTA
+        record, unless they cover too much of the page; then the whole
+        images are, in an UPDATE record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the update record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, false);
+    }
+
+    /** Write an update record as {@link #logWrite(TransactionId, Page, Page)}
+        does, in an UPDATE record if wholeImages is set.  The BufferPool
+        sets it for a page already stolen from tid.
+    */
+    synchronized long logWrite(TransactionId tid, Page before, Page after,
+                               boolean wholeImages)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           before page data (see putPageData)
            after page data
+           checksum
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           and a delta record of
+
+           record type
+           transaction id
+           changed ranges (see putDelta)
+           checksum
+           start offset
+        */
+        after.setLSN(currentOffset);
+        byte[] afterData = after.getPageData();
+        PageDelta delta = wholeImages ? null : PageDelta.diff(after.getId(),
+                before.getPageData(), afterData, afterData.length);
+        if (delta != null) {
+            startRecord(DELTA_RECORD, tid.getId());
+            putDelta(delta);
+        } else {
+            startRecord(UPDATE_RECORD, tid.getId());
+            putPageData(before);
+            putPageData(after);
+        }
+        long lsn = appendRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
+    // Adds a page image to the record being encoded
+    void putPageData(Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -240,31 +501,115 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        putUTF(pageClassName);
+        putPageId(p.getId());
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        byte[] pageData = p.getPageData();
+        reserve(INT_SIZE + pageData.length);
+        record.putInt(pageData.length);
+        record.put(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-        raf.writeInt(pageInfo.length);
+    // Adds a page id, as its class name and serialized form, to the
+    // record being encoded
+    void putPageId(PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        putUTF(pid.getClass().getName());
+        reserve((pageInfo.length + 1) * INT_SIZE);
+        record.putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            record.putInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    // Adds the changed ranges of a page to the record being encoded
+    void putDelta(PageDelta delta) throws IOException {
+        putPageId(delta.pid);
+        reserve(INT_SIZE);
+        record.putInt(delta.numRanges());
+        for (int r = 0; r < delta.numRanges(); r++) {
+            int len = delta.before[r].length;
+            reserve(PageDelta.RANGE_HEADER_SIZE + 2 * len);
+            record.putInt(delta.offsets[r]);
+            record.putInt(len);
+            record.put(delta.before[r]);
+            record.put(delta.after[r]);
+        }
+    }
+
+    PageDelta readDelta(LogSegments raf) throws IOException {
+        PageId pid = readPageId(raf);
+        int numRanges = raf.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = raf.readInt();
+            int len = raf.readInt();
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            raf.readFully(before[r]);
+            raf.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    // Undoes a delta on the page's image on disk, and puts the result in
+    // the buffer pool if the page is there
+    // @return the file that was written
+    private DbFile undoDelta(PageDelta delta) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(delta.pid.getTableId());
+        Page current = file.readPage(delta.pid);
+        byte[] data = current.getPageData();
+        delta.undo(data);
+        Page p = newPage(current.getClass(), delta.pid, data);
+        file.writePage(p);
+        Database.getBufferPool().insertIntoPageMap(delta.pid, p);
+        return file;
+    }
+
+    // Makes the page writes of one redo/undo/rollback pass durable
+    private static void forceAll(HashSet<DbFile> written) throws IOException {
+        for (DbFile file : written)
+            file.force();
+    }
 
+    // Finds the Page(PageId, byte[]) constructor every Page class must have
+    private static Constructor<?> pageConstructor(Class<?> pageClass) {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0])
+                    && params[1] == byte[].class)
+                return c;
+        }
+        throw new IllegalArgumentException(pageClass.getName() + " has no (PageId, byte[]) constructor");
+    }
+
+    Page readPageData(LogSegments raf) throws IOException {
         String pageClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return newPage(pageClass, pid, pageData);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    PageId readPageId(LogSegments raf) throws IOException {
         String idClassName = raf.readUTF();
 
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -272,21 +617,7 @@ public class LogFile {
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return (PageId)idConsts[0].newInstance(idArgs);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -300,8 +631,23 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
 
+    // Builds a page of the given class through its (PageId, byte[])
+    // constructor
+    static Page newPage(Class<?> pageClass, PageId pid, byte[] data) throws IOException {
+        try {
+            return (Page)pageConstructor(pageClass).newInstance(pid, data);
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -316,149 +662,173 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        startRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), appendRecord());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The record
+        holds the running transactions and the buffer pool's dirty page
+        table; no page is flushed, so transactions keep running while the
+        checkpoint is taken.  The table files are forced before the record
+        is made the last checkpoint, so that a page left out of the table
+        because it had just been written back is durable by then. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long startCpOffset;
+            long end;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                HashMap<PageId, Long> dirty = Database.getBufferPool().getDirtyPageTable();
+                startRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                reserve(INT_SIZE + keys.size() * 2 * LONG_SIZE);
+                record.putInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    record.putLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    record.putLong(tidToFirstLogRecord.get(key));
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                //and the dirty pages, with their LSNs as log offsets
+                reserve(INT_SIZE);
+                record.putInt(dirty.size());
+                for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                    putPageId(e.getKey());
+                    reserve(LONG_SIZE);
+                    record.putLong(e.getValue());
+                }
+                startCpOffset = appendRecord();
+                end = currentOffset;
             }
-        }
-
-        logTruncate();
-    }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+            forceTables();
+            forceTo(end);
 
-        long minLogRecord = cpLoc;
+            //once the CP is durable, make sure the CP location in the
+            // manifest is updated
+            raf.setCheckpoint(startCpOffset);
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            logTruncate();
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    // Forces every table file, so that page writes that finished before a
+    // checkpoint are on disk
+    private static void forceTables() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> ids = catalog.tableIdIterator();
+        while (ids.hasNext()) {
+            catalog.getDatabaseFile(ids.next()).force();
+        }
+    }
 
-            int numOutstanding = raf.readInt();
+    /** Takes a checkpoint in the background every millis milliseconds,
+        which keeps the log short and recovery quick.  No checkpoints are
+        taken until this is called, and a millis of 0 stops them.
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        @param millis the time between the end of one checkpoint and the
+        start of the next
+    */
+    public void setCheckpointInterval(long millis) {
+        ScheduledExecutorService old;
+        synchronized (schedulerLock) {
+            old = checkpointer;
+            checkpointer = null;
+            if (millis > 0) {
+                checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LogFile checkpointer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                checkpointer.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            logCheckpoint();
+                        } catch (IOException e) {
+                            // the log is intact; the next run tries again
+                            e.printStackTrace();
+                        }
+                    }
+                }, millis, millis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (old != null) {
+            old.shutdown();
+            try {
+                old.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Everything before the oldest record the last
+        checkpoint says recovery could need is dropped, by deleting the
+        log segments that end before it.  Records never move, so this
+        only holds the log's lock while it reads the checkpoint. */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (this) {
+            preAppend();
+            flushAppends();
+            minLogRecord = oldestNeededRecord();
+        }
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord);
+        raf.truncate(minLogRecord);
+    }
 
-        raf.seek(minLogRecord);
+    // Returns the offset of the first record that recovery from the last
+    // checkpoint could read, or the start of the log if there is none
+    private long oldestNeededRecord() throws IOException {
+        long cpLoc = raf.getCheckpoint();
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return raf.start();
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        long minLogRecord = cpLoc;
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-            } catch (EOFException e) {
-                break;
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        int numOutstanding = raf.readInt();
+
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = raf.readLong();
+            long firstLogRecord = raf.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
+            }
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // redo needs everything since the oldest dirty page changed
+        int numDirty = raf.readInt();
 
-        currentOffset = raf.getFilePointer();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(raf);
+            long recLogRecord = raf.readLong();
+            if (recLogRecord < minLogRecord) {
+                minLogRecord = recLogRecord;
+            }
+        }
+        return minLogRecord;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -471,37 +841,42 @@ public class LogFile {
     */
     public void rollback(long tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-                long savedOffset = raf.getFilePointer();
-                raf.seek(raf.length() - LONG_SIZE);
-                long recordStart; 
-                int entryType;
-                while(raf.getFilePointer() >= tidToFirstLogRecord.get(tid)) {
-                	// Find start of this LogRecord
-                	recordStart = raf.readLong();
-                	// Go to the start
-                	raf.seek(recordStart);
-                	// Beginning element is the type
-                	entryType = raf.readInt();
-            		if(entryType == UPDATE_RECORD && raf.readLong() == tid) {
-                		Page beforeImage = readPageData(raf).getBeforeImage();
-                		// Write beforeImage to the local file
-                		((HeapFile) Database.getCatalog().getDatabaseFile(beforeImage.getId()
-                				.getTableId())).writePage(beforeImage);
-                		Database.getBufferPool().insertIntoPageMap(beforeImage.getId(), beforeImage);
-                		Database.getBufferPool().discardPage(beforeImage.getId());
-            		}
-                	// Done with this record, set to start and move back
-                	// to go to the previous record
-                	if(!((recordStart - LONG_SIZE) < 0))
-                		raf.seek(recordStart - LONG_SIZE);
-                	else raf.seek(0);
-                }
-                raf.seek(savedOffset);
+        synchronized(this) {
+            preAppend();
+            flushAppends();
+            // some code goes here
+            long savedOffset = raf.getFilePointer();
+            raf.seek(raf.length() - LONG_SIZE);
+            long recordStart; 
+            int entryType;
+            HashSet<DbFile> written = new HashSet<DbFile>();
+            while(raf.getFilePointer() >= tidToFirstLogRecord.get(tid)) {
+            	// Find start of this LogRecord
+            	recordStart = raf.readLong();
+            	// Go to the start
+            	raf.seek(recordStart);
+            	// Beginning element is the type
+            	entryType = raf.readInt();
+        		if(entryType == UPDATE_RECORD && raf.readLong() == tid) {
+            		Page beforeImage = readPageData(raf).getBeforeImage();
+            		// Write beforeImage to the local file
+            		DbFile file = Database.getCatalog().getDatabaseFile(beforeImage.getId()
+            				.getTableId());
+            		file.writePage(beforeImage);
+            		written.add(file);
+            		Database.getBufferPool().insertIntoPageMap(beforeImage.getId(), beforeImage);
+            		Database.getBufferPool().discardPage(beforeImage.getId());
+        		} else if(entryType == DELTA_RECORD && raf.readLong() == tid) {
+        			PageDelta delta = readDelta(raf);
+        			written.add(undoDelta(delta));
+        			Database.getBufferPool().discardPage(delta.pid);
+        		}
+            	// Done with this record, set to start and move back
+            	// to go to the previous record
+            	raf.seek(recordStart - LONG_SIZE);
             }
+            forceAll(written);
+            raf.seek(savedOffset);
         }
     }
 
@@ -509,10 +884,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            setCheckpointInterval(0);
+            // write everything back, so recovery has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -524,31 +904,156 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // Search from the back to find the last checkpoint.
-                long lastOffset = findLastCkpt();
-                raf.seek(lastOffset);
-                analysis();
-                redo();
-                undo();
-            }
-         }
+        synchronized (this) {
+            recoveryUndecided = false;
+            // Search from the back to find the last checkpoint.
+            long lastOffset = findLastCkpt();
+            dropTornTail(lastOffset);
+            currentOffset = raf.length();
+            flushedOffset = currentOffset;
+            appendBuffer.clear();
+            raf.seek(lastOffset);
+            analysis();
+            redo();
+            undo();
+            // every transaction in the log has finished now
+            tidToFirstLogRecord.clear();
+        }
+    }
+    
+    // Cuts the log off at the first record after from that was only
+    // partly written, or whose checksum does not match, when the system
+    // went down. Everything before the last checkpoint was forced before
+    // the checkpoint was taken.
+    private void dropTornTail(long from) throws IOException {
+    	long end = raf.length();
+    	long pos = Math.max(from, raf.start());
+    	while(pos < end) {
+    		long next = recordEnd(pos, end);
+    		if(next < 0) {
+    			Debug.log("DROPPING TORN LOG TAIL AT " + pos);
+    			raf.setLength(pos);
+    			return;
+    		}
+    		pos = next;
+    	}
+    }
+
+    // Returns the offset just past the record at start, or -1 if the
+    // record is cut short by end or its checksum does not match
+    private long recordEnd(long start, long end) throws IOException {
+    	try {
+    		raf.seek(start);
+    		int type = raf.readInt();
+    		raf.readLong();
+    		switch(type) {
+    		case UPDATE_RECORD :
+    			if(!skipPageData(end) || !skipPageData(end))
+    				return -1;
+    			break;
+    		case DELTA_RECORD :
+    			if(!skipDelta(end))
+    				return -1;
+    			break;
+    		case CHECKPOINT_RECORD :
+    			if(!skipCkptBody(end))
+    				return -1;
+    			break;
+    		case CLR_RECORD :
+    			raf.seek(raf.getFilePointer() + LONG_SIZE);
+    			break;
+    		case ABORT_RECORD :
+    		case COMMIT_RECORD :
+    		case BEGIN_RECORD :
+    			break;
+    		default :
+    			return -1;
+    		}
+    		long bodyEnd = raf.getFilePointer();
+    		if(bodyEnd + TRAILER_SIZE > end)
+    			return -1;
+    		byte[] body = new byte[(int) (bodyEnd - start)];
+    		raf.seek(start);
+    		raf.readFully(body);
+    		CRC32 crc = new CRC32();
+    		crc.update(body, 0, body.length);
+    		if(raf.readInt() != (int) crc.getValue() || raf.readLong() != start)
+    			return -1;
+    		return bodyEnd + TRAILER_SIZE;
+    	} catch(EOFException e) {
+    		return -1;
+    	}
+    }
+
+    // Moves past a page image written by putPageData without decoding it
+    private boolean skipPageData(long end) throws IOException {
+    	raf.readUTF();
+    	if(!skipPageId())
+    		return false;
+    	int pageSize = raf.readInt();
+    	if(pageSize < 0)
+    		return false;
+    	raf.seek(raf.getFilePointer() + pageSize);
+    	return raf.getFilePointer() <= end;
+    }
+
+    private boolean skipPageId() throws IOException {
+    	raf.readUTF();
+    	int numIdArgs = raf.readInt();
+    	if(numIdArgs < 0)
+    		return false;
+    	raf.seek(raf.getFilePointer() + (long) numIdArgs * INT_SIZE);
+    	return true;
+    }
+
+    // Moves past the transactions and dirty pages of a checkpoint record
+    private boolean skipCkptBody(long end) throws IOException {
+    	int numTxns = raf.readInt();
+    	if(numTxns < 0)
+    		return false;
+    	raf.seek(raf.getFilePointer() + (long) numTxns * 2 * LONG_SIZE);
+    	if(raf.getFilePointer() > end)
+    		return false;
+    	int numPages = raf.readInt();
+    	if(numPages < 0)
+    		return false;
+    	for(int i=0; i<numPages; i++) {
+    		if(!skipPageId())
+    			return false;
+    		raf.seek(raf.getFilePointer() + LONG_SIZE);
+    		if(raf.getFilePointer() > end)
+    			return false;
+    	}
+    	return true;
+    }
+
+    // Moves past the ranges written by putDelta without reading them in
+    private boolean skipDelta(long end) throws IOException {
+    	if(!skipPageId())
+    		return false;
+    	int numRanges = raf.readInt();
+    	if(numRanges < 0)
+    		return false;
+    	for(int r=0; r<numRanges; r++) {
+    		raf.readInt();
+    		int len = raf.readInt();
+    		if(len < 0)
+    			return false;
+    		raf.seek(raf.getFilePointer() + 2L * len);
+    		if(raf.getFilePointer() > end)
+    			return false;
+    	}
+    	return true;
     }
     
     /* Returns the offset of the last checkpoint.
-     * If no checkpoints exist, returns 0*/
-    private long findLastCkpt() throws IOException {
-    	long offset = 0;
-    	long savedPoint = raf.getFilePointer();
-    	raf.seek(0);
-    	long lastCkpt = raf.readLong();
-    	if(lastCkpt != NO_CHECKPOINT_ID) {
-    		offset = lastCkpt;
+     * If no checkpoints exist, returns the start of the log*/
+    private long findLastCkpt() {
+    	long lastCkpt = raf.getCheckpoint();
+    	if(lastCkpt == NO_CHECKPOINT_ID) {
+    		return raf.start();
     	}
-    	raf.seek(savedPoint);
-    	return offset;
+    	return lastCkpt;
     }
     
     /* Starting from the numTransactions record, adds all txns
@@ -563,10 +1068,21 @@ public class LogFile {
     		long tid = raf.readLong();
     		long offset = raf.readLong();
     		this.activeTxns.put(tid, offset);
+    		this.tidToFirstLogRecord.put(tid, offset);
     		if(minOffset > offset)
     			minOffset = offset;
     		txnList.add(tid);
     	}
+    	// The pages that were dirty go into the dirty page table with the
+    	// first record that changed them
+    	int numPages = raf.readInt();
+    	for(int i=0; i<numPages; i++) {
+    		PageId pid = readPageId(raf);
+    		long recOffset = raf.readLong();
+    		if(!dirtyPages.containsKey(pid))
+    			dirtyPages.put(pid, recOffset);
+    	}
+    	long bodyEnd = raf.getFilePointer();
     	raf.seek(minOffset);
     	// Now go to the minOffset, and add all the update transactions into the
     	// undo chain
@@ -579,6 +1095,7 @@ public class LogFile {
     		tid = raf.readLong();
     		switch(type) {
     		case UPDATE_RECORD :
+    		case DELTA_RECORD :
     			if(txnList.contains(tid)){
     				if(!undoChain.containsKey(tid))
 	    				undoChain.put(tid, new ArrayList<Long>());
@@ -587,20 +1104,26 @@ public class LogFile {
 	    	        undoChain.put(tid, temp);
 	    	        activeTxns.put(tid, recordStart);
     			}
-    			readPageData(raf);
-    			readPageData(raf);
+    			if(type == DELTA_RECORD) {
+    				readDelta(raf);
+    			} else {
+    				readPageData(raf);
+    				readPageData(raf);
+    			}
     			break;
     		case CHECKPOINT_RECORD :
-    			numTxns = raf.readInt();
-    			raf.seek(raf.getFilePointer() + numTxns * LONG_SIZE * 2);
+    			skipCkptBody(savedPoint);
+    			break;
+    		case CLR_RECORD :
+    			raf.seek(raf.getFilePointer() + LONG_SIZE);
     			break;
     		default :
     			break;
     		}
-    		raf.seek(raf.getFilePointer() + LONG_SIZE);
+    		raf.seek(raf.getFilePointer() + TRAILER_SIZE);
     	}
     	
-    	raf.seek(savedPoint);
+    	raf.seek(bodyEnd);
     }
     
     // Build up the activeTxns and dirty page tables from log
@@ -608,11 +1131,6 @@ public class LogFile {
     	long savedPoint = raf.getFilePointer();
     	long lastCkpt = findLastCkpt();
         raf.seek(lastCkpt);
-        if(lastCkpt == 0) {
-        	raf.seek(raf.getFilePointer() + LONG_SIZE);
-        } else {
-        	
-        }
         // From the last checkpoint, re-build the tables
         //do switch statement, if ckpt, call addCkptTxns
         int type;
@@ -640,6 +1158,13 @@ public class LogFile {
         			dirtyPages.put(pid, recordStart);
         		}
         		break;
+        	case DELTA_RECORD :
+        		activeTxns.put(tid, recordStart);
+        		PageId deltaPid = readDelta(raf).pid;
+        		if(!dirtyPages.containsKey(deltaPid)) {
+        			dirtyPages.put(deltaPid, recordStart);
+        		}
+        		break;
         	case BEGIN_RECORD :
         		activeTxns.put(tid, recordStart);
         		tidToFirstLogRecord.put(tid, recordStart);
@@ -651,35 +1176,58 @@ public class LogFile {
         		raf.seek(raf.getFilePointer() + LONG_SIZE);
         		break;
         	}
-        	raf.seek(raf.getFilePointer() + LONG_SIZE);
+        	raf.seek(raf.getFilePointer() + TRAILER_SIZE);
         }
     	raf.seek(savedPoint);
     }
     
+    // Repeats the updates that did not reach disk before the crash. Only
+    // pages in the dirty page table are read, each at most once, and a
+    // record is applied only if it is newer than the LSN on its page.
+    // The log is read here, and the changes are applied by PageRedo's
+    // workers, partitioned by page.
+    // Pages are written back at the end, or before an aborted transaction
+    // is rolled back, since rollback works on the pages on disk.
+    // Redo starts at the oldest change to a page that was dirty at the last
+    // checkpoint; records before the checkpoint are only reapplied to pages,
+    // since the checkpoint and analysis already account for transactions.
     private void redo() throws IOException {
     	if(dirtyPages.keySet().size() == 0) {
     		return;
     	}
     	long savedPoint = raf.getFilePointer();
     	long lastCkpt = findLastCkpt();
-    	raf.seek(lastCkpt);
-    	if(lastCkpt == 0) {
-    		raf.seek(LONG_SIZE);
+    	long start = lastCkpt;
+    	for(long recOffset : dirtyPages.values()) {
+    		if(recOffset < start)
+    			start = recOffset;
     	}
+    	raf.seek(start);
     	
     	int type;
     	long tid;
     	long recordStart;
+    	HashSet<DbFile> written = new HashSet<DbFile>();
+    	PageRedo pages = new PageRedo(dirtyPages, PageRedo.defaultThreads());
+    	try {
     	while(raf.getFilePointer() < raf.length()) {
     		recordStart = raf.getFilePointer();
 			type = raf.readInt();
 			tid = raf.readLong();
+			boolean pagesOnly = recordStart < lastCkpt;
+			if(pagesOnly && (type == BEGIN_RECORD || type == ABORT_RECORD
+					|| type == COMMIT_RECORD)) {
+				// finished before the checkpoint, or recorded in it
+				raf.seek(raf.getFilePointer() + TRAILER_SIZE);
+				continue;
+			}
     		switch(type) {
     		case BEGIN_RECORD :
     			tidToFirstLogRecord.put(tid, recordStart);
     			undoChain.put(tid, new ArrayList<Long>());
     			break;
     		case ABORT_RECORD : 
+    			pages.flush(written);
     			rollback(tid);
     			activeTxns.remove(tid);
     			undoChain.remove(tid);
@@ -689,37 +1237,67 @@ public class LogFile {
     			undoChain.remove(tid);
     			break;
     		case CHECKPOINT_RECORD :
-    			int numTxns = raf.readInt();
-    			// Skip over the txn records
-    			raf.seek(raf.getFilePointer() + (numTxns * 2 * LONG_SIZE));
+    			skipCkptBody(raf.length());
     			break;
     		case UPDATE_RECORD :
-    			Page beforeImage = readPageData(raf);
-    			Page afterImage = readPageData(raf);
-    			int tableId = beforeImage.getId().getTableId();
-    			DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-    			
-    			// Don't have the resources to check pageLSN >= recordStart, but
-    			// writing it over is trivial
-    			if(dirtyPages.containsKey(beforeImage.getId()) && 
-    				dirtyPages.get(beforeImage.getId()) <= recordStart){
-    				file.writePage(afterImage);
-    				Database.getBufferPool().insertIntoPageMap(afterImage.getId(), afterImage);
+    			// the before image tells which page this is
+    			raf.readUTF();
+    			PageId pid = readPageId(raf);
+    			raf.seek(raf.getFilePointer() + INT_SIZE + raf.readInt());
+    			if(pages.mayRedo(pid, recordStart)) {
+    				pages.redo(recordStart, readPageData(raf));
+    			} else {
+    				skipPageData(raf.length());
+    			}
+    			if(!pagesOnly) {
+    				addToUndoChain(tid, recordStart);
+    			}
+    			break;
+    		case DELTA_RECORD :
+    			PageDelta delta = readDelta(raf);
+    			if(pages.mayRedo(delta.pid, recordStart)) {
+    				pages.redo(recordStart, delta);
+    			}
+    			if(!pagesOnly) {
+    				addToUndoChain(tid, recordStart);
     			}
-    			
-    			ArrayList<Long> updates = undoChain.get(tid);
-    			updates.add(recordStart);
-    			undoChain.put(tid, updates);
-    			
     			break;
     		case CLR_RECORD : 
     			raf.seek(raf.getFilePointer() + LONG_SIZE);
     			break;
     		}
-    		raf.seek(raf.getFilePointer() + LONG_SIZE);
+    		raf.seek(raf.getFilePointer() + TRAILER_SIZE);
+    	}
+    	pages.flush(written);
+    	} finally {
+    		pages.close();
     	}
+    	forceAll(written);
     	raf.seek(savedPoint);
     }
+
+    // Adds the update at recordStart to tid's undo chain, starting the
+    // chain if tid began before the last checkpoint
+    private void addToUndoChain(long tid, long recordStart) {
+    	ArrayList<Long> chain = undoChain.get(tid);
+    	if(chain == null) {
+    		chain = new ArrayList<Long>();
+    		undoChain.put(tid, chain);
+    	}
+    	chain.add(recordStart);
+    }
+
+    // Writes out pages that redo or undo changed, and puts them in the
+    // buffer pool if they are there
+    static void writePages(HashMap<PageId, Page> pages, HashSet<DbFile> written)
+    		throws IOException {
+    	for(Map.Entry<PageId, Page> e : pages.entrySet()) {
+    		DbFile file = Database.getCatalog().getDatabaseFile(e.getKey().getTableId());
+    		file.writePage(e.getValue());
+    		written.add(file);
+    		Database.getBufferPool().insertIntoPageMap(e.getKey(), e.getValue());
+    	}
+    }
     
     private synchronized void undo() throws IOException {
     	long savedPoint = raf.getFilePointer();
@@ -753,43 +1331,60 @@ public class LogFile {
     	Collections.sort(toUndo);
     	
     	// For each loser transaction
+    	HashSet<DbFile> written = new HashSet<DbFile>();
     	for(int i=toUndo.size()-1; i>=0; i--) {
-    		// For each record in the chain
-    		for(long lsn : undoChain.get(orderedTids.get(i))) {
-    			// go to the offset, read the page, and write the old value to disk
-    			raf.seek(lsn + INT_SIZE + LONG_SIZE);
-    			Page beforeImage = readPageData(raf);
-    			Page afterImage = readPageData(raf);
-    			int tableId = afterImage.getId().getTableId();
-    			DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-    			file.writePage(beforeImage);
-    			Database.getBufferPool().insertIntoPageMap(beforeImage.getId(), beforeImage);
+    		// For each record in the chain, newest first. The transaction's
+    		// pages are read at most once and written back once, at the end
+    		HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+    		ArrayList<Long> chain = undoChain.get(orderedTids.get(i));
+    		for(int j=chain.size()-1; j>=0; j--) {
+    			long lsn = chain.get(j);
+    			// go to the offset, read the page, and put back the old value
+    			raf.seek(lsn);
+    			if(raf.readInt() == DELTA_RECORD) {
+    				raf.readLong();
+    				PageDelta delta = readDelta(raf);
+    				Page current = pages.get(delta.pid);
+    				if(current == null) {
+    					current = Database.getCatalog().getDatabaseFile(delta.pid.getTableId())
+    							.readPage(delta.pid);
+    				}
+    				byte[] data = current.getPageData();
+    				delta.undo(data);
+    				pages.put(delta.pid, newPage(current.getClass(), delta.pid, data));
+    			} else {
+    				raf.readLong();
+	    			Page beforeImage = readPageData(raf);
+	    			pages.put(beforeImage.getId(), beforeImage);
+    			}
     			
     			// Add a CLR record for the undo
-    			raf.seek(raf.length());
-    			long lastEnd = raf.getFilePointer();
 	    		preAppend();
-	    		raf.writeInt(CLR_RECORD);
-	    		raf.writeLong(toUndo.get(i));
-	    		raf.writeLong(lsn);
-	    		raf.writeLong(lastEnd);
+	    		startRecord(CLR_RECORD, toUndo.get(i));
+	    		record.putLong(lsn);
+	    		appendRecord();
     		}
+    		writePages(pages, written);
 //    		undoChain.remove(orderedTxns.get(i));
     		
     	}
+    	forceAll(written);
     	raf.seek(savedPoint);
     }
     
 
     /** Print out a human readable representation of the log */
     public void print() throws IOException {
+        synchronized (this) {
+            flushAppends();
+        }
         // save the current raf pointer
     	long savedPtr = raf.getFilePointer();
     	long fileSize = raf.length();
-    	raf.seek(0);
     	// Read the last written checkpoint offset
-    	if(fileSize > LONG_SIZE)
-    		System.out.println(raf.getFilePointer() + ": Last checkpoint = " + raf.readLong());
+    	System.out.println("Last checkpoint = " + raf.getCheckpoint());
+    	System.out.println("Log start = " + raf.start());
+    	raf.seek(raf.start());
     	while(raf.getFilePointer() < fileSize) {
     		System.out.print("\n" + raf.getFilePointer() + " Type: ");
     		int type = raf.readInt();
@@ -806,6 +1401,11 @@ public class LogFile {
     			System.out.println(raf.getFilePointer() + ": tid = " + raf.readLong());
     			printUpdateRecord();
     			break;
+    		case DELTA_RECORD :
+    			System.out.println("<DELTA>");
+    			System.out.println(raf.getFilePointer() + ": tid = " + raf.readLong());
+    			printDeltaRecord();
+    			break;
     		case COMMIT_RECORD :
     			System.out.println("<COMMIT>");
     			System.out.println(raf.getFilePointer() + ": tid = " + raf.readLong());
@@ -818,10 +1418,16 @@ public class LogFile {
     			System.out.println("<ABORT>");
     			System.out.println(raf.getFilePointer() + ": tid = " + raf.readLong());
     			break;
+    		case CLR_RECORD :
+    			System.out.println("<CLR>");
+    			System.out.println(raf.getFilePointer() + ": tid = " + raf.readLong());
+    			System.out.println(raf.getFilePointer() + ": undid record at " + raf.readLong());
+    			break;
     		}
+    		System.out.println(raf.getFilePointer() + ": checksum = " + raf.readInt());
     		System.out.println(raf.getFilePointer() + ": LogRecord offset = " + raf.readLong());
     	}
-    	System.out.println("Log size: " + raf.length());
+    	System.out.println("Log size: " + (raf.length() - raf.start()));
     	raf.seek(savedPtr);
     }
     
@@ -836,6 +1442,14 @@ public class LogFile {
 			System.out.println(raf.getFilePointer() + ": first log record offset of t" + i +
 							   "= " + raf.readLong());			
 		}
+		System.out.print(raf.getFilePointer() + ": Num dirty pages in CKPT = ");
+		int numPages = raf.readInt();
+		System.out.println(numPages);
+		for(int i=0; i<numPages; i++) {
+			System.out.println(raf.getFilePointer() + ": page " + i + " = " + readPageId(raf));
+			System.out.println(raf.getFilePointer() + ": first log record offset of page " + i +
+							   " = " + raf.readLong());
+		}
     }
     
     private void printUpdateRecord() throws IOException {
@@ -863,8 +1477,26 @@ public class LogFile {
     	System.out.println("In flushPage: " + isDifferent);
     }
 
+    private void printDeltaRecord() throws IOException {
+    	System.out.print(raf.getFilePointer() + ": page = ");
+    	PageDelta delta = readDelta(raf);
+    	System.out.println(delta.pid + ", " + delta.numRanges() + " changed ranges");
+    	for(int r=0; r<delta.numRanges(); r++) {
+    		System.out.println("Bytes " + delta.offsets[r] + " to " +
+    				(delta.offsets[r] + delta.after[r].length - 1) + " changed");
+    	}
+    }
+
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushAppends();
+        long end = currentOffset;
+        synchronized (forceLock) {
+            if (end <= durableOffset) {
+                return;  // nothing appended since the last force
+            }
+        }
+        raf.force();
+        forced(end);
     }
 
 }
@@ -0,0 +1,391 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a series of segment files next to a small
+ * manifest.  A log offset is a position in the log as a whole and never
+ * changes: each segment is named after the offset it starts at, and holds
+ * the bytes appended from there until the segment grew past the segment
+ * size and a new one was started.  Appends that were flushed together go
+ * into one segment, so a record never spans two.
+ * <p>
+ * The manifest holds the offset of the last checkpoint and the offset the
+ * log starts at.  Truncating the log moves the start forward and deletes
+ * the segments that lie wholly before it; nothing is copied, so appends
+ * carry on meanwhile.
+ * <p>
+ * Reads go through a buffered cursor, like a RandomAccessFile's file
+ * pointer, and decode values the way a RandomAccessFile's do.  Only the
+ * reads LogFile needs are provided.  The cursor is not thread-safe; LogFile only reads under its own
+ * lock.  Appending, forcing and truncating are thread-safe.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    /** Bytes a segment grows to before appends go to a new one */
+    static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Bytes the read cursor buffers */
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Checkpoint offset and start offset */
+    private static final int MANIFEST_SIZE = 16;
+
+    /** One segment file and the offset it starts at. */
+    private static class Segment {
+        final long start;
+        final File file;
+        final FileChannel channel;
+        volatile long length;
+
+        Segment(long start, File file) throws IOException {
+            this.start = start;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.length = channel.size();
+        }
+    }
+
+    private final File manifest;
+    private final FileChannel manifestChannel;
+
+    // All protected by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final HashSet<Segment> unforced = new HashSet<Segment>();
+    private long end;
+    private volatile long start;
+    private volatile long checkpoint;
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // Held for the whole of a force, so a caller that finds a force under
+    // way waits for it rather than returning before the bytes are on disk;
+    // taken before this
+    private final Object forceLock = new Object();
+
+    // The read cursor, and the part of the log buffered for it
+    private long position;
+    private final ByteBuffer window = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private long windowStart = -1;
+
+    /**
+     * Opens the log whose manifest is the given file, and the segments next
+     * to it.  A missing manifest means an empty log starting at offset 0.
+     */
+    LogSegments(File manifest) throws IOException {
+        this.manifest = manifest;
+        this.manifestChannel = new RandomAccessFile(manifest, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(MANIFEST_SIZE);
+        while (header.hasRemaining()) {
+            if (manifestChannel.read(header, header.position()) < 0)
+                break;
+        }
+        if (header.hasRemaining()) {
+            checkpoint = LogFile.NO_CHECKPOINT_ID;
+            start = 0;
+        } else {
+            header.flip();
+            checkpoint = header.getLong();
+            start = header.getLong();
+        }
+        for (File f : segmentFiles()) {
+            long offset = Long.parseLong(f.getName().substring(manifest.getName().length() + 1));
+            segments.put(offset, new Segment(offset, f));
+        }
+        delete(dropBefore(start, true));
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        end = last == null ? start : last.getValue().start + last.getValue().length;
+    }
+
+    // The segment files of this log, whatever their offsets
+    private File[] segmentFiles() {
+        final String prefix = manifest.getName() + ".";
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                String name = f.getName();
+                if (!name.startsWith(prefix) || name.length() == prefix.length())
+                    return false;
+                for (int i = prefix.length(); i < name.length(); i++) {
+                    if (!Character.isDigit(name.charAt(i)))
+                        return false;
+                }
+                return true;
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private File segmentFile(long offset) {
+        return new File(manifest.getAbsoluteFile().getParentFile(),
+                manifest.getName() + "." + String.format("%019d", offset));
+    }
+
+    /** @return the offset of the first record in the log */
+    long start() {
+        return start;
+    }
+
+    /** @return the offset just past the last byte appended */
+    synchronized long length() {
+        return end;
+    }
+
+    /** @return the offset of the last checkpoint, or NO_CHECKPOINT_ID */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Makes the record at offset the last checkpoint, durably. */
+    synchronized void setCheckpoint(long offset) throws IOException {
+        checkpoint = offset;
+        writeManifest();
+    }
+
+    /** Sets how large a segment grows before appends go to a new one. */
+    void setSegmentSize(long bytes) {
+        segmentSize = bytes;
+    }
+
+    // Overwrites the manifest in place; it is smaller than a disk sector,
+    // so it is either all old or all new after a crash
+    private void writeManifest() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MANIFEST_SIZE);
+        header.putLong(checkpoint);
+        header.putLong(start);
+        header.flip();
+        while (header.hasRemaining())
+            manifestChannel.write(header, header.position());
+        manifestChannel.force(true);
+    }
+
+    /**
+     * Appends buf at the end of the log, starting a new segment if the last
+     * one is full.  The bytes are not durable until {@link #force}.
+     *
+     * @param position the end of the log, where the caller expects buf to go
+     */
+    synchronized void append(ByteBuffer buf, long position) throws IOException {
+        if (position != end)
+            throw new IOException("append at " + position + " but the log ends at " + end);
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        Segment seg = last == null ? null : last.getValue();
+        if (seg == null || seg.length >= segmentSize) {
+            seg = new Segment(end, segmentFile(end));
+            segments.put(end, seg);
+        }
+        long at = end - seg.start;
+        while (buf.hasRemaining())
+            at += seg.channel.write(buf, at);
+        seg.length = at;
+        end = seg.start + at;
+        unforced.add(seg);
+    }
+
+    /**
+     * Forces every segment appended to since it was last forced.  Returns
+     * only once every byte appended before the call is on disk, waiting
+     * for a force another thread has under way if need be.
+     */
+    void force() throws IOException {
+        synchronized (forceLock) {
+            ArrayList<Segment> toForce;
+            synchronized (this) {
+                toForce = new ArrayList<Segment>(unforced);
+                unforced.clear();
+            }
+            int forced = 0;
+            try {
+                for (Segment seg : toForce) {
+                    try {
+                        seg.channel.force(true);
+                    } catch (ClosedChannelException e) {
+                        // truncated away meanwhile; nothing in it is needed
+                    }
+                    forced++;
+                }
+            } finally {
+                if (forced < toForce.size()) {
+                    // the force failed; the next one must try these again
+                    synchronized (this) {
+                        for (Segment seg : toForce.subList(forced, toForce.size())) {
+                            if (segments.get(seg.start) == seg)
+                                unforced.add(seg);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the log off at offset.  Used to drop a torn tail, so offset is
+     * after the start of the log.
+     */
+    synchronized void setLength(long offset) throws IOException {
+        ArrayList<Segment> dropped = new ArrayList<Segment>(segments.tailMap(offset, true).values());
+        for (Segment seg : dropped) {
+            segments.remove(seg.start);
+            unforced.remove(seg);
+        }
+        delete(dropped);
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null && last.getValue().start + last.getValue().length > offset) {
+            Segment seg = last.getValue();
+            seg.channel.truncate(offset - seg.start);
+            seg.length = offset - seg.start;
+        }
+        end = offset;
+        windowStart = -1;
+    }
+
+    /**
+     * Throws the whole log away and starts an empty one at offset, with no
+     * checkpoint.
+     */
+    synchronized void reset(long offset) throws IOException {
+        start = offset;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        writeManifest();
+        delete(dropBefore(Long.MAX_VALUE, false));
+        end = offset;
+        windowStart = -1;
+    }
+
+    /**
+     * Makes offset the start of the log and deletes the segments that end
+     * before it.  The last segment is kept, since appends go there.
+     */
+    void truncate(long offset) throws IOException {
+        ArrayList<Segment> dropped;
+        synchronized (this) {
+            if (offset <= start)
+                return;
+            start = offset;
+            writeManifest();
+            dropped = dropBefore(offset, true);
+        }
+        delete(dropped);
+    }
+
+    // Takes the segments that end at or before offset out of the log, and
+    // returns them; the last segment stays if keepLast is set
+    private synchronized ArrayList<Segment> dropBefore(long offset, boolean keepLast) {
+        ArrayList<Segment> dropped = new ArrayList<Segment>();
+        for (Segment seg : new ArrayList<Segment>(segments.values())) {
+            Long next = segments.higherKey(seg.start);
+            if (next == null ? keepLast : next > offset)
+                break;
+            segments.remove(seg.start);
+            unforced.remove(seg);
+            dropped.add(seg);
+        }
+        return dropped;
+    }
+
+    private static void delete(ArrayList<Segment> dropped) throws IOException {
+        for (Segment seg : dropped) {
+            seg.channel.close();
+            seg.file.delete();
+        }
+    }
+
+    /** Closes every file; the log can not be used afterwards. */
+    synchronized void close() throws IOException {
+        for (Segment seg : segments.values())
+            seg.channel.close();
+        segments.clear();
+        unforced.clear();
+        manifestChannel.close();
+    }
+
+    // -- the read cursor --
+
+    /** Moves the read cursor to offset. */
+    void seek(long offset) {
+        position = offset;
+    }
+
+    /** @return the offset of the read cursor */
+    long getFilePointer() {
+        return position;
+    }
+
+    // Buffers the part of the log at the cursor, up to the end of the
+    // segment it is in
+    private void fill() throws IOException {
+        Segment seg;
+        synchronized (this) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(position);
+            seg = e == null ? null : e.getValue();
+        }
+        if (seg == null || position < start || position >= seg.start + seg.length)
+            throw new EOFException("no log at offset " + position);
+        window.clear();
+        window.limit((int) Math.min(window.capacity(), seg.start + seg.length - position));
+        long at = position - seg.start;
+        while (window.hasRemaining()) {
+            int n = seg.channel.read(window, at + window.position());
+            if (n < 0)
+                throw new EOFException("no log at offset " + position);
+        }
+        window.flip();
+        windowStart = position;
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (windowStart < 0 || position < windowStart || position >= windowStart + window.limit())
+                fill();
+            int at = (int) (position - windowStart);
+            int n = Math.min(len, window.limit() - at);
+            System.arraycopy(window.array(), at, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    private final byte[] scratch = new byte[4];
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+                | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    public long readLong() throws IOException {
+        long high = readInt() & 0xffffffffL;
+        long low = readInt() & 0xffffffffL;
+        return (high << 32) | low;
+    }
+
+    /** Reads a string written by DataOutput.writeUTF. */
+    public String readUTF() throws IOException {
+        readFully(scratch, 0, 2);
+        int length = ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+        byte[] encoded = new byte[2 + length];
+        encoded[0] = scratch[0];
+        encoded[1] = scratch[1];
+        readFully(encoded, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+}
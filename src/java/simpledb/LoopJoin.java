@@ -131,10 +131,10 @@ public class LoopJoin extends Join {
     	Tuple merged = new Tuple(this.getTupleDesc());
 		int i;
 		for(i = 0; i < length1; i++){
-			merged.setField(i, t1.getField(i));
+			merged.copyField(i, t1, i);
 		}
 		for(i = 0; i < length2; i++){
-			merged.setField(i + length1, t2.getField(i));
+			merged.copyField(i + length1, t2, i);
 		}
 		return merged;
     }
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU-K replacement (O'Neil et al.).  Each resident page remembers the
+ * logical times of its last K references, and the victim is the page whose
+ * K-th most recent reference is oldest.  Pages referenced fewer than K times
+ * are evicted first, in LRU order, which keeps one-off scan pages from
+ * pushing out pages that are used repeatedly.
+ * <p>
+ * Pages are kept ordered in a TreeSet, under this policy's own lock.  A hit
+ * only goes into an {@link AccessBuffer}; the hits are applied, at O(log n)
+ * each, when the buffer is drained under the lock.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    /** The K used by the no-argument constructor. */
+    public static final int DEFAULT_K = 2;
+
+    private static class Entry {
+        final PageId pid;
+        final long[] history;   // history[0] is the most recent reference
+        final long seq;
+
+        Entry(PageId pid, int k, long seq) {
+            this.pid = pid;
+            this.history = new long[k];
+            this.seq = seq;
+        }
+
+        long kthReference() {
+            return history[history.length - 1];
+        }
+
+        void reference(long time) {
+            System.arraycopy(history, 0, history, 1, history.length - 1);
+            history[0] = time;
+        }
+    }
+
+    private static final Comparator<Entry> BACKWARD_K_DISTANCE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.kthReference() != b.kthReference())
+                return a.kthReference() < b.kthReference() ? -1 : 1;
+            if (a.history[0] != b.history[0])
+                return a.history[0] < b.history[0] ? -1 : 1;
+            if (a.seq != b.seq)
+                return a.seq < b.seq ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final int k;
+    private final HashMap<PageId, Entry> entries;
+    private final TreeSet<Entry> order;
+    private long clock;
+    private long nextSeq;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessBuffer accesses = new AccessBuffer();
+
+    public LruKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past references to remember per page; must be
+     *            at least 1 (LRU-1 is plain LRU)
+     */
+    public LruKPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.entries = new HashMap<PageId, Entry>();
+        this.order = new TreeSet<Entry>(BACKWARD_K_DISTANCE);
+        this.clock = 0;
+        this.nextSeq = 0;
+    }
+
+    public void pageAdded(PageId pid) {
+        lock.lock();
+        try {
+            drainAccesses();  // earlier hits come first
+            Entry e = entries.get(pid);
+            if (e == null) {
+                e = new Entry(pid, k, nextSeq++);
+                entries.put(pid, e);
+            } else {
+                order.remove(e);
+            }
+            e.reference(++clock);
+            order.add(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (accesses.add(pid) && lock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Applies the hits recorded since the last drain; the lock must be held
+    private void drainAccesses() {
+        PageId pid;
+        while ((pid = accesses.poll()) != null) {
+            Entry e = entries.get(pid);
+            if (e != null) {
+                order.remove(e);
+                e.reference(++clock);
+                order.add(e);
+            }
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        lock.lock();
+        try {
+            Entry e = entries.remove(pid);
+            if (e != null) {
+                order.remove(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(Evictable filter) {
+        lock.lock();
+        try {
+            drainAccesses();
+            Iterator<Entry> it = order.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (filter.canEvict(e.pid)) {
+                    return e.pid;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
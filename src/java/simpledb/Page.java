@@ -7,7 +7,7 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -33,6 +33,19 @@ public interface Page {
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Return the LSN of the last log record written for this page; it is
+     * kept in the page's data, so it reaches disk with the page.
+     *
+     * @return the page LSN, or 0 if the page has never been logged
+     */
+    public long getLSN();
+
+    /**
+     * Set the page LSN; called by LogFile as it logs a change to this page.
+     */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
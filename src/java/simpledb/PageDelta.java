@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the body of a DELTA log record: the byte ranges of one page
+ * that an update changed, with their contents before and after.  For a
+ * HeapPage, inserting or deleting a tuple changes one header byte and one
+ * tuple slot, so the record is a few dozen bytes where a pair of page
+ * images would take two pages.
+ * <p>
+ * Each range holds absolute values, so a delta can be applied more than
+ * once: redo writes the after bytes over whatever the page holds, and undo
+ * writes the before bytes back.
+ *
+ * @see LogFile
+ */
+class PageDelta {
+
+    /** Bytes a range costs in the log besides its contents: offset, length */
+    static final int RANGE_HEADER_SIZE = 8;
+
+    final PageId pid;
+    final int[] offsets;
+    final byte[][] before;
+    final byte[][] after;
+
+    PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Finds the ranges where two images of a page differ.  Ranges separated
+     * by fewer unchanged bytes than a range header costs are joined.
+     *
+     * @param limit the most bytes the ranges may take in the log
+     * @return the delta, or null if the images are different sizes or the
+     *   ranges would take more than limit bytes
+     */
+    static PageDelta diff(PageId pid, byte[] oldData, byte[] newData, int limit) {
+        if (oldData.length != newData.length)
+            return null;
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        ArrayList<Integer> ends = new ArrayList<Integer>();
+        int size = 0;
+        int i = 0;
+        while (i < newData.length) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend while the next difference is close enough to join
+            for (int j = end; j < newData.length && j - end <= RANGE_HEADER_SIZE / 2; j++) {
+                if (oldData[j] != newData[j])
+                    end = j + 1;
+            }
+            starts.add(start);
+            ends.add(end);
+            size += RANGE_HEADER_SIZE + 2 * (end - start);
+            if (size > limit)
+                return null;
+            i = end;
+        }
+        int n = starts.size();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            int start = starts.get(r);
+            int len = ends.get(r) - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(oldData, start, before[r], 0, len);
+            System.arraycopy(newData, start, after[r], 0, len);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /** @return the number of changed ranges */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /** Writes the after bytes of every range into data, a page image. */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /** Writes the before bytes of every range back into data. */
+    void undo(byte[] data) {
+        for (int r = offsets.length - 1; r >= 0; r--)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+}
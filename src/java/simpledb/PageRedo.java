@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PageRedo applies the page changes of recovery's redo pass on a pool of
+ * worker threads.  The log is still read by one thread, which hands each
+ * change to the worker that owns its page: pages are partitioned by their
+ * id, and each worker has its own queue, so the changes to one page are
+ * applied in log order while different pages are redone in parallel.
+ * <p>
+ * A worker reads each of its pages from disk at most once, applies a
+ * change only if it is newer than the LSN on the page, and keeps the pages
+ * it changed until {@link #flush} writes them back.  The queues are
+ * bounded, so the reader waits for a worker that falls behind rather than
+ * holding the log in memory.
+ *
+ * @see LogFile
+ */
+class PageRedo {
+
+    /** Changes a worker may have queued before the reader waits for it */
+    static final int QUEUE_CAPACITY = 1024;
+
+    /** Makes the reader wait for room in a full queue. */
+    private static final RejectedExecutionHandler WAIT = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("redo is closed");
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    };
+
+    private final HashMap<PageId, Long> dirtyPages;
+    private final Partition[] partitions;
+
+    /**
+     * @param dirtyPages the dirty page table from analysis; only read
+     * @param threads the number of workers
+     */
+    PageRedo(HashMap<PageId, Long> dirtyPages, int threads) {
+        this.dirtyPages = dirtyPages;
+        this.partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++)
+            partitions[i] = new Partition(i);
+    }
+
+    /** @return the number of workers redo uses on this machine */
+    static int defaultThreads() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return true if the record at recordStart may change page pid: the
+     *   page must have been dirty by then
+     */
+    boolean mayRedo(PageId pid, long recordStart) {
+        Long recLSN = dirtyPages.get(pid);
+        return recLSN != null && recLSN <= recordStart;
+    }
+
+    /** Queues the after image of the UPDATE record at recordStart. */
+    void redo(final long recordStart, final Page after) {
+        final Partition part = partitionOf(after.getId());
+        part.submit(new Runnable() {
+            public void run() {
+                if (part.isNewer(after.getId(), recordStart))
+                    part.put(after.getId(), after);
+            }
+        });
+    }
+
+    /** Queues the DELTA record at recordStart. */
+    void redo(final long recordStart, final PageDelta delta) {
+        final Partition part = partitionOf(delta.pid);
+        part.submit(new Runnable() {
+            public void run() {
+                if (!part.isNewer(delta.pid, recordStart))
+                    return;
+                Page current = part.pages.get(delta.pid);
+                byte[] data = current.getPageData();
+                delta.redo(data);
+                try {
+                    part.put(delta.pid, LogFile.newPage(current.getClass(), delta.pid, data));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for every queued change, then has each worker write back the
+     * pages it changed and forget the pages it read.
+     *
+     * @param written the files written to are added here
+     * @throws IOException if a change could not be applied or written
+     */
+    void flush(HashSet<DbFile> written) throws IOException {
+        ArrayList<Future<HashSet<DbFile>>> done = new ArrayList<Future<HashSet<DbFile>>>();
+        for (final Partition part : partitions) {
+            done.add(part.worker.submit(new Callable<HashSet<DbFile>>() {
+                public HashSet<DbFile> call() throws IOException {
+                    HashSet<DbFile> files = new HashSet<DbFile>();
+                    HashMap<PageId, Page> changed = new HashMap<PageId, Page>();
+                    for (PageId pid : part.redone)
+                        changed.put(pid, part.pages.get(pid));
+                    LogFile.writePages(changed, files);
+                    part.pages.clear();
+                    part.redone.clear();
+                    return files;
+                }
+            }));
+        }
+        IOException failure = null;
+        for (int i = 0; i < partitions.length; i++) {
+            try {
+                written.addAll(done.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException("interrupted during redo");
+            } catch (ExecutionException e) {
+                failure = asIOException(e.getCause());
+            }
+            Throwable t = partitions[i].failure;
+            partitions[i].failure = null;
+            if (t != null)
+                failure = asIOException(t);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /** Stops the workers; queued changes that were not flushed are lost. */
+    void close() {
+        for (Partition part : partitions)
+            part.worker.shutdownNow();
+    }
+
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode() % partitions.length;
+        return partitions[h < 0 ? h + partitions.length : h];
+    }
+
+    private static IOException asIOException(Throwable t) {
+        if (t instanceof IOException)
+            return (IOException) t;
+        IOException e = new IOException("redo failed: " + t);
+        e.initCause(t);
+        return e;
+    }
+
+    /** One worker and the pages it owns; only its thread touches them. */
+    private class Partition {
+        final ThreadPoolExecutor worker;
+        final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        final HashSet<PageId> redone = new HashSet<PageId>();
+        volatile Throwable failure;
+
+        Partition(final int index) {
+            worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "LogFile redo " + index);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, WAIT);
+        }
+
+        void submit(final Runnable change) {
+            worker.execute(new Runnable() {
+                public void run() {
+                    if (failure != null)
+                        return;  // reported by the next flush
+                    try {
+                        change.run();
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                }
+            });
+        }
+
+        // Whether the record at recordStart is newer than page pid, which
+        // is read in the first time it is needed
+        boolean isNewer(PageId pid, long recordStart) {
+            Page current = pages.get(pid);
+            if (current == null) {
+                current = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                pages.put(pid, current);
+            }
+            return current.getLSN() < recordStart;
+        }
+
+        void put(PageId pid, Page page) {
+            pages.put(pid, page);
+            redone.add(pid);
+        }
+    }
+}
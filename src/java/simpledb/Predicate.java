@@ -101,8 +101,11 @@ public class Predicate implements Serializable {
      * @return true if the comparison is true, false otherwise.
      */
     public boolean filter(Tuple t) {
-    	Field tupleField = t.getField(getField());
-    	return tupleField.compare(getOp(), getOperand());
+    	// compares the values in place, so filtering makes no Fields
+    	if(operand instanceof IntField){
+    		return IntField.compare(operation, t.getInt(fieldPos), ((IntField) operand).getValue());
+    	}
+    	return StringField.compare(operation, t.getString(fieldPos), ((StringField) operand).getValue());
     }
 
     /**
@@ -0,0 +1,45 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs room for a new one.  The BufferPool reports every page that
+ * enters, is hit in, or leaves the pool; the policy keeps whatever
+ * bookkeeping it needs to rank pages for eviction.
+ * <p>
+ * {@link #pageAccessed} is called on every buffer pool hit and must not
+ * block on a lock; a policy that keeps its pages in order can record the
+ * hit in an {@link AccessBuffer} and apply it later.  The other methods
+ * are only called on the miss and eviction paths.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Filter used by the BufferPool to veto victims that may not leave the
+     * pool right now (e.g. dirty pages under NO STEAL).
+     */
+    public interface Evictable {
+        /** @return true if pid may be evicted */
+        public boolean canEvict(PageId pid);
+    }
+
+    /** Called after pid has been read into the buffer pool. */
+    public void pageAdded(PageId pid);
+
+    /** Called on every buffer pool hit on pid. */
+    public void pageAccessed(PageId pid);
+
+    /** Called after pid has left the buffer pool for any reason. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict next.  The victim is not removed from the
+     * policy; the BufferPool calls {@link #pageRemoved} once it has actually
+     * dropped the page.
+     *
+     * @param filter the pages that may be evicted
+     * @return the page to evict, or null if no resident page passes filter
+     */
+    public PageId chooseVictim(Evictable filter);
+}
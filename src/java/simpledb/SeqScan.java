@@ -33,10 +33,23 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that decodes only the fields the rest of
+     * the query reads.  The tuples keep the table's TupleDesc, so every
+     * field keeps its position, but the fields not listed are left unset.
+     * 
+     * @param fields
+     *            the fields to decode, or null for all of them
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
         this.file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        this.dbItr = file.iterator(tid);
+        this.dbItr = file.iterator(tid, fields);
     }
 
     /**
@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs by sorting both on their join fields and
+ * reading them side by side.  Sorting is external (see {@link ExternalSort})
+ * and held to a memory budget; an input that is already in ascending order
+ * of its join field, such as an ascending {@link OrderBy} on it or another
+ * SortMergeJoin, is not sorted again.
+ * <p>
+ * On equality, each run of equal keys from child2 is held in memory and
+ * joined with the tuples of child1 that have the key.  On &lt;, &lt;=, &gt;
+ * and &gt;=, the tuples one input matches in the other are a prefix of the
+ * other sorted input, so the join streams one input once and reads the
+ * prefix for each tuple of it, stopping at the first tuple that does not
+ * match.  Either way the work is the size of the output plus that of the
+ * sorts, where a nested loops join reads one input once per tuple of the
+ * other.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    // Whether a child1 tuple comes before a child2 tuple in the sorted order
+    private final JoinPredicate before;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final long memoryBudget;
+
+    // The children in ascending order of their join fields
+    private DbIterator left;
+    private DbIterator right;
+
+    // Equality: the tuple of child1 being joined, the run of child2 tuples
+    // with its key, and the first child2 tuple past the run
+    private Tuple leftTuple;
+    private final ArrayList<Tuple> group = new ArrayList<Tuple>();
+    private int groupPos;
+    private Tuple rightNext;
+
+    // Inequalities: the input read once and the one read a prefix at a
+    // time, the tuple read once being joined, and the first tuple of the
+    // other input
+    private DbIterator outer;
+    private DbIterator inner;
+    private Tuple outerTuple;
+    private Tuple innerFirst;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, which must be one of =, &lt;, &lt;=, &gt; or &gt;=.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, EquiJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor for a join whose sorts each hold at most memoryBudget
+     * bytes of tuples in memory.
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            long memoryBudget) {
+        if (!canJoin(p.getOperator()))
+            throw new IllegalArgumentException("SortMergeJoin can not join on " + p.getOperator());
+        this.pred = p;
+        this.before = new JoinPredicate(p.getField1(), Predicate.Op.LESS_THAN, p.getField2());
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return true if a SortMergeJoin can join on op */
+    public static boolean canJoin(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the tuples of it are known to come in ascending order
+     *   of field, so a SortMergeJoin need not sort them
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            int width1 = j.child1.getTupleDesc().numFields();
+            int field2 = width1 + j.pred.getField2();
+            switch (j.pred.getOperator()) {
+            case EQUALS:
+                return field == j.pred.getField1() || field == field2;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                return field == field2;
+            default:
+                return field == j.pred.getField1();
+            }
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        Predicate.Op op = pred.getOperator();
+        boolean leftOuter = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        boolean rightOuter = op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ;
+        // the input read a prefix at a time is rewound for every outer tuple
+        left = sorted(child1, pred.getField1(), rightOuter);
+        right = sorted(child2, pred.getField2(), leftOuter);
+        left.open();
+        right.open();
+        if (leftOuter || rightOuter) {
+            outer = leftOuter ? left : right;
+            inner = leftOuter ? right : left;
+            innerFirst = inner.hasNext() ? inner.next() : null;
+        }
+        reset();
+        super.open();
+    }
+
+    private DbIterator sorted(DbIterator child, int field, boolean cheapRewind) {
+        if (isSortedOn(child, field))
+            return child;
+        return new ExternalSort(child, field, memoryBudget, cheapRewind);
+    }
+
+    private void reset() {
+        leftTuple = null;
+        group.clear();
+        rightNext = null;
+        outerTuple = null;
+    }
+
+    public void close() {
+        super.close();
+        left.close();
+        right.close();
+        reset();
+        innerFirst = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        reset();
+        if (inner != null)
+            innerFirst = inner.hasNext() ? inner.next() : null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  Like {@link Join}, the tuples returned are the
+     * concatenation of joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEqual();
+        return fetchNextInequal();
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (leftTuple != null && groupPos < group.size())
+                return mergeTuples(leftTuple, group.get(groupPos++));
+            if (!left.hasNext())
+                return null;
+            leftTuple = left.next();
+            groupPos = 0;
+            if (!group.isEmpty() && pred.filter(leftTuple, group.get(0)))
+                continue;
+            // move child2 up to the key of leftTuple, gathering its run
+            group.clear();
+            while (rightNext != null || right.hasNext()) {
+                if (rightNext == null)
+                    rightNext = right.next();
+                if (before.filter(leftTuple, rightNext))
+                    break;
+                if (pred.filter(leftTuple, rightNext))
+                    group.add(rightNext);
+                rightNext = null;
+            }
+            if (group.isEmpty() && rightNext == null)
+                return null; // end of the second relation
+        }
+    }
+
+    private Tuple fetchNextInequal() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outerTuple != null) {
+                if (inner.hasNext()) {
+                    Tuple t = inner.next();
+                    if (innerMatches(t, outerTuple))
+                        return outer == left ? mergeTuples(outerTuple, t) : mergeTuples(t, outerTuple);
+                }
+                outerTuple = null;
+            }
+            if (innerFirst == null || !outer.hasNext())
+                return null;
+            Tuple t = outer.next();
+            if (innerMatches(innerFirst, t)) {
+                // the prefix is not empty; read it from the start
+                inner.rewind();
+                outerTuple = t;
+            }
+        }
+    }
+
+    // Whether inner tuple t is in the prefix of the inner input that outer
+    // tuple o matches
+    private boolean innerMatches(Tuple t, Tuple o) {
+        return outer == left ? pred.filter(o, t) : pred.filter(t, o);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        DbIterator[] children = {child1, child2};
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if(children.length != 2) {
+            throw new IllegalArgumentException("parameter array must have length 2");
+        }
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        int length1 = t1.getTupleDesc().numFields();
+        int length2 = t2.getTupleDesc().numFields();
+        Tuple merged = new Tuple(this.getTupleDesc());
+        for (int i = 0; i < length1; i++)
+            merged.copyField(i, t1, i);
+        for (int i = 0; i < length2; i++)
+            merged.copyField(i + length1, t2, i);
+        return merged;
+    }
+}
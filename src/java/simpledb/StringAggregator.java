@@ -16,7 +16,9 @@ public class StringAggregator implements Aggregator {
     private int aggField;
     private Op operator;
     private TupleDesc childTD;
-    private Map<Field, Integer> tupleCounts;
+    // the count of each group, keyed by the group value as an Integer or a
+    // String, or by null if there is no grouping
+    private Map<Object, int[]> tupleCounts;
     
     /**
      * Aggregate constructor
@@ -35,7 +37,7 @@ public class StringAggregator implements Aggregator {
         this.gbFieldType = gbfieldtype;
         this.aggField = afield;
         this.operator = what;
-        this.tupleCounts = new HashMap<Field, Integer>();
+        this.tupleCounts = new HashMap<Object, int[]>();
     }
 
     /**
@@ -47,21 +49,19 @@ public class StringAggregator implements Aggregator {
     		//get the child TupleDesc on the first merge
     		this.childTD = tup.getTupleDesc();
     	}
+        Object index;
         if(gbField == NO_GROUPING){
-        	if(tupleCounts.keySet().size() == 0){ // first entry
-        		tupleCounts.put(null, 1);
-        	} else {
-        		tupleCounts.put(null, tupleCounts.get(null)+1);
-        	}
+        	index = null;
+        } else if(gbFieldType == Type.STRING_TYPE){
+        	index = tup.getString(gbField);
         } else {
-        	Field index = tup.getField(gbField);
-        	if(!tupleCounts.containsKey(index)){ // first entry
-        		tupleCounts.put(index, 1);
-        	} else {
-        		Integer newVal = tupleCounts.get(index)+1;
-        		tupleCounts.put(index, newVal);
-        	}
-        	
+        	index = tup.getInt(gbField);
+        }
+        int[] count = tupleCounts.get(index);
+        if(count == null){ // first entry
+        	tupleCounts.put(index, new int[]{1});
+        } else {
+        	count[0]++;
         }
     }
     
@@ -120,13 +120,17 @@ public class StringAggregator implements Aggregator {
         List<Tuple> tuples = new ArrayList<Tuple>();
         if(gbField == NO_GROUPING){
         	Tuple tuple = new Tuple(td);
-        	tuple.setField(0, new IntField(tupleCounts.get(null)));
+        	tuple.setField(0, new IntField(tupleCounts.get(null)[0]));
         	tuples.add(tuple);
         } else {
-        	for(Object key : tupleCounts.keySet()){
+        	for(Map.Entry<Object, int[]> e : tupleCounts.entrySet()){
         		Tuple tuple = new Tuple(td);
-        		tuple.setField(0, (Field)key);
-        		tuple.setField(1, new IntField(tupleCounts.get(key)));
+        		if(e.getKey() instanceof String){
+        			tuple.setString(0, (String)e.getKey());
+        		} else {
+        			tuple.setInt(0, (Integer)e.getKey());
+        		}
+        		tuple.setInt(1, e.getValue()[0]);
         		tuples.add(tuple);
         	}
         }
@@ -75,9 +75,15 @@ public class StringField implements Field {
 	 * @see Field#compare
 	 */
 	public boolean compare(Predicate.Op op, Field val) {
+		return compare(op, value, ((StringField) val).value);
+	}
 
-		StringField iVal = (StringField) val;
-		int cmpVal = value.compareTo(iVal.value);
+	/**
+	 * Compares two strings as two StringFields holding them would be
+	 * compared, without making the fields.
+	 */
+	static boolean compare(Predicate.Op op, String value, String other) {
+		int cmpVal = value.compareTo(other);
 
 		switch (op) {
 		case EQUALS:
@@ -99,7 +105,7 @@ public class StringField implements Field {
 			return cmpVal <= 0;
 
 		case LIKE:
-			return value.indexOf(iVal.value) >= 0;
+			return value.indexOf(other) >= 0;
 		}
 
 		return false;
@@ -10,6 +10,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean snapshot = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -25,6 +26,16 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot of the database as of
+     * now; it takes no locks and writes nothing to the log
+     */
+    public void startSnapshot() {
+        started = true;
+        snapshot = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -42,13 +53,17 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the dirty pages for this transaction; the buffer
+                //pool writes them out later
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
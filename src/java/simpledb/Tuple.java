@@ -1,19 +1,30 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * The values themselves are kept unboxed: the INT_TYPE fields in an int[]
+ * and the STRING_TYPE fields in a String[] that only tuples with string
+ * fields have.  {@link #getInt} and {@link #getString} read them without
+ * making a Field; {@link #getField} makes a new Field on every call.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private RecordId recordId;
     private TupleDesc schema;
-    private Field[] fields;
+    private final int[] ints;
+    private String[] strings;
+    // which fields have been set: the first 64 in set, the rest in setHigh
+    private long set;
+    private long[] setHigh;
     
     /**
      * Create a new tuple with the specified schema (type).
@@ -24,7 +35,7 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         this.schema = td;
-        this.fields = new Field[td.numFields()];
+        this.ints = new int[td.numFields()];
     }
 
     /**
@@ -63,12 +74,65 @@ public class Tuple implements Serializable {
      * 			  not the right type for the corresponding existing type
      */
     public void setField(int i, Field f) {
-        if(i<0 || i>=fields.length){
+        if(i<0 || i>=ints.length){
         	throw new IllegalArgumentException("Not a valid index");
         } else if (!f.getType().equals(getTupleDesc().getFieldType(i))){
         	throw new IllegalArgumentException("Not a valid field type");
+        } else if (f instanceof IntField) {
+        	setInt(i, ((IntField) f).getValue());
         } else {
-        	this.fields[i] = f;
+        	setString(i, ((StringField) f).getValue());
+        }
+    }
+
+    /**
+     * Change the value of the ith field, which must be an INT_TYPE field.
+     */
+    public void setInt(int i, int value) {
+        ints[i] = value;
+        markSet(i);
+    }
+
+    /**
+     * Change the value of the ith field, which must be a STRING_TYPE field.
+     * The value is cut to Type.STRING_LEN characters, as a StringField is.
+     */
+    public void setString(int i, String value) {
+        if (strings == null)
+            strings = new String[ints.length];
+        strings[i] = value.length() > Type.STRING_LEN ? value.substring(0, Type.STRING_LEN) : value;
+        markSet(i);
+    }
+
+    private void markSet(int i) {
+        if (i < 64) {
+            set |= 1L << i;
+        } else {
+            if (setHigh == null)
+                setHigh = new long[(ints.length - 64 + 63) / 64];
+            setHigh[(i - 64) >> 6] |= 1L << (i - 64);
+        }
+    }
+
+    /** @return true if the ith field has been set */
+    boolean isSet(int i) {
+        if (i < 64)
+            return (set & (1L << i)) != 0;
+        return setHigh != null && (setHigh[(i - 64) >> 6] & (1L << (i - 64))) != 0;
+    }
+
+    /**
+     * Sets the ith field of this tuple to field j of from, which must be
+     * of the same type, without making a Field.  Field i is left unset if
+     * field j is.
+     */
+    public void copyField(int i, Tuple from, int j) {
+        if (!from.isSet(j)) {
+            return;
+        } else if (from.strings != null && from.strings[j] != null) {
+            setString(i, from.strings[j]);
+        } else {
+            setInt(i, from.ints[j]);
         }
     }
 
@@ -79,13 +143,32 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-    	if(i<0 || i>=fields.length){
+    	if(i<0 || i>=ints.length){
         	throw new IllegalArgumentException("Not a valid index");
+        } else if (!isSet(i)) {
+        	return null;
+        } else if (schema.getFieldType(i) == Type.INT_TYPE) {
+        	return new IntField(ints[i]);
         } else {
-        	return fields[i];
+        	return new StringField(strings[i], Type.STRING_LEN);
         }
     }
 
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field
+     */
+    public int getInt(int i) {
+        return ints[i];
+    }
+
+    /**
+     * @return the value of the ith field, which must be a STRING_TYPE
+     *         field, or null if it has not been set
+     */
+    public String getString(int i) {
+        return strings == null ? null : strings[i];
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -95,12 +178,14 @@ public class Tuple implements Serializable {
      * where \t is any whitespace, except newline, and \n is a newline
      */
     public String toString() {
-    	String result = "";
-    	for(int i=0; i<fields.length-1; i++){
-        	result += fields[i].toString() + "\t";
+    	StringBuilder result = new StringBuilder();
+    	for(int i=0; i<ints.length; i++){
+    		if(i > 0){
+    			result.append('\t');
+    		}
+    		result.append(getField(i));
         }
-    	result += fields[fields.length-1] + "\n";
-    	return result;
+    	return result.append('\n').toString();
     }
     
     /**
@@ -111,14 +196,17 @@ public class Tuple implements Serializable {
     {
         Iterator<Field> itr = new Iterator<Field>() {
         	
-        	private int current = -1;
+        	private int current = 0;
         	
         	public boolean hasNext(){
-        		return current+1 < fields.length && !fields[current+1].equals(null);
+        		return current < ints.length && isSet(current);
         	}
         	
         	public Field next(){
-        		return fields[current++];
+        		if(!hasNext()){
+        			throw new NoSuchElementException();
+        		}
+        		return getField(current++);
         	}
         	
         	public void remove() throws UnsupportedOperationException{
@@ -136,7 +224,8 @@ public class Tuple implements Serializable {
     }
     
     /**
-     * @return whether or not this Tuple is equal to tuple other
+     * @return whether or not this Tuple is equal to tuple other: whether
+     *         both have the same values, and the same RecordId
      * @param other the Tuple to compare to
      **/
     public boolean equals(Object other) {
@@ -144,14 +233,14 @@ public class Tuple implements Serializable {
     		return false;
     	}
     	Tuple o = (Tuple)other;
-    	boolean equalFields = true;
-    	for(int i=0; i<o.fields.length; i++){
-    		
-    		if(o.fields[i].equals(this.fields[i])){
-    			equalFields = true;
-    			i = o.fields.length;
-    		}
+    	if(o.ints.length != ints.length || o.set != set || !Arrays.equals(o.setHigh, setHigh)
+    			|| !Arrays.equals(o.ints, ints) || !Arrays.equals(o.strings, strings)) {
+    		return false;
     	}
-    	return (equalFields && this.recordId.equals(o.recordId));
+    	return recordId == null ? o.recordId == null : recordId.equals(o.recordId);
+    }
+
+    public int hashCode() {
+    	return Arrays.hashCode(ints) * 31 + Arrays.hashCode(strings);
     }
 }
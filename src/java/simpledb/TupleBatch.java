@@ -0,0 +1,233 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds a run of tuples column by column: an int[] for each
+ * INT_TYPE field and a String[] for each STRING_TYPE field, with the
+ * tuples' RecordIds alongside.  Batch operators pass batches between them
+ * rather than single Tuples, so the virtual calls of DbIterator are paid
+ * once per batch, and their inner loops run over plain arrays instead of
+ * Field objects.
+ * <p>
+ * A batch returned by {@link BatchIterator#nextBatch} belongs to the caller
+ * until it asks for the next one; the caller may change it meanwhile, and
+ * the iterator may reuse it afterwards.
+ *
+ * @see BatchIterator
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tuples a batch holds unless told otherwise */
+    public static final int DEFAULT_CAPACITY = 2048;
+
+    private final TupleDesc td;
+    private final Object[] columns;
+    private RecordId[] recordIds;
+    private int capacity;
+    private int size;
+
+    /**
+     * Creates an empty batch of DEFAULT_CAPACITY tuples.
+     *
+     * @param td the schema of the tuples in the batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td the schema of the tuples in the batch
+     * @param capacity the number of tuples the batch holds
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.columns = new Object[td.numFields()];
+        this.capacity = capacity;
+        this.recordIds = new RecordId[capacity];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = newColumn(td.getFieldType(i), capacity);
+    }
+
+    private static Object newColumn(Type type, int capacity) {
+        return type == Type.INT_TYPE ? new int[capacity] : new String[capacity];
+    }
+
+    /** @return the schema of the tuples in this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples in this batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of tuples this batch can hold */
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Empties the batch. */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Keeps only the first n tuples of the batch, or takes the first n rows
+     * of its columns as its tuples once they have been written directly.
+     */
+    public void setSize(int n) {
+        if (n < 0 || n > capacity)
+            throw new IllegalArgumentException("size " + n + " out of range");
+        size = n;
+    }
+
+    /**
+     * @return the values of INT_TYPE field i, one per tuple; only the first
+     *   size() are meaningful
+     */
+    public int[] getInts(int i) {
+        return (int[]) columns[i];
+    }
+
+    /**
+     * @return the values of STRING_TYPE field i, one per tuple; only the
+     *   first size() are meaningful
+     */
+    public String[] getStrings(int i) {
+        return (String[]) columns[i];
+    }
+
+    /** @return the RecordIds of the tuples, which may be null */
+    public RecordId[] getRecordIds() {
+        return recordIds;
+    }
+
+    /**
+     * Appends t to the batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple t) {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] instanceof int[])
+                ((int[]) columns[i])[size] = t.getInt(i);
+            else
+                ((String[]) columns[i])[size] = t.getString(i);
+        }
+        recordIds[size] = t.getRecordId();
+        size++;
+    }
+
+    /**
+     * Appends tuple row of from, which has the same schema, to the batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(TupleBatch from, int row) {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        copy(from, row, 0, size, columns.length);
+        recordIds[size] = from.recordIds[row];
+        size++;
+    }
+
+    /**
+     * Appends the tuple made of tuple leftRow of left followed by tuple
+     * rightRow of right, as a join does.  The batch's schema must be the
+     * two schemas merged.
+     */
+    void addJoined(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        int n = left.columns.length;
+        copy(left, leftRow, 0, size, n);
+        for (int i = 0; i < right.columns.length; i++)
+            copyValue(right.columns[i], rightRow, columns[n + i], size);
+        recordIds[size] = null;
+        size++;
+    }
+
+    /** Overwrites tuple to with tuple from, as when compacting the batch. */
+    public void move(int from, int to) {
+        for (int i = 0; i < columns.length; i++)
+            copyValue(columns[i], from, columns[i], to);
+        recordIds[to] = recordIds[from];
+    }
+
+    // Copies n values of tuple row of from, starting at field first, into
+    // tuple at of this batch
+    private void copy(TupleBatch from, int row, int first, int at, int n) {
+        for (int i = first; i < first + n; i++)
+            copyValue(from.columns[i], row, columns[i], at);
+    }
+
+    private static void copyValue(Object from, int row, Object to, int at) {
+        if (from instanceof int[])
+            ((int[]) to)[at] = ((int[]) from)[row];
+        else
+            ((String[]) to)[at] = ((String[]) from)[row];
+    }
+
+    /**
+     * Makes this batch a view of some fields of from, without copying: its
+     * field i is field fields[i] of from, and it holds from's tuples.
+     * Changing one batch changes the other, until from is refilled.
+     */
+    void project(TupleBatch from, int[] fields) {
+        for (int i = 0; i < fields.length; i++)
+            columns[i] = from.columns[fields[i]];
+        recordIds = from.recordIds;
+        capacity = from.capacity;
+        size = from.size;
+    }
+
+    /**
+     * Grows the batch so it holds at least n tuples, keeping those it has.
+     * Used to gather a whole input in one batch.
+     */
+    void ensureCapacity(int n) {
+        if (n <= capacity)
+            return;
+        int grown = Math.max(n, capacity * 2);
+        for (int i = 0; i < columns.length; i++) {
+            Object column = newColumn(td.getFieldType(i), grown);
+            System.arraycopy(columns[i], 0, column, 0, size);
+            columns[i] = column;
+        }
+        RecordId[] rids = new RecordId[grown];
+        System.arraycopy(recordIds, 0, rids, 0, size);
+        recordIds = rids;
+        capacity = grown;
+    }
+
+    /** @return tuple row of the batch as a Tuple of its own */
+    public Tuple getTuple(int row) {
+        if (row < 0 || row >= size)
+            throw new IllegalArgumentException("row " + row + " out of range");
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] instanceof int[])
+                t.setInt(i, ((int[]) columns[i])[row]);
+            else
+                t.setString(i, ((String[]) columns[i])[row]);
+        }
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleFile is a temporary file of tuples, for operators whose input does
+ * not fit in the memory they are given.  Tuples are appended one after
+ * another and read back in the same order, as often as needed, through
+ * {@link #iterator}.  Fields that were never set stay unset; RecordIds are
+ * not kept.
+ * <p>
+ * The file is deleted only by {@link #delete}, which whoever made it must
+ * call, when it closes if not before.  Asking the JVM to delete it on exit
+ * would keep its name in memory until then, for every file ever made.
+ */
+class TupleFile {
+
+    /** Bytes buffered by each reader and writer */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size;
+
+    /**
+     * Creates an empty file for tuples with schema td.
+     *
+     * @throws DbException if the file can not be created
+     */
+    TupleFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb", ".tuples");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create a temporary file: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of tuples in the file */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends t, which must have this file's schema.  Tuples can not be
+     * added once the file has been read.
+     */
+    void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("file has been read");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (!t.isSet(i)) {
+                    out.writeByte(0);
+                } else if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeByte(1);
+                    out.writeInt(t.getInt(i));
+                } else {
+                    out.writeByte(1);
+                    out.writeUTF(t.getString(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write " + file + ": " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * @return an iterator over the tuples in the file, in the order they
+     *   were added.  It must be opened, and closed when done with.
+     */
+    DbIterator iterator() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write " + file + ": " + e.getMessage());
+            }
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Deletes the file; it can not be used afterwards. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // being thrown away
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class Reader implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        private DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not read " + file + ": " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("iterator not open");
+            return read < size;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (in.readByte() == 0)
+                        continue;
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setInt(i, in.readInt());
+                    else
+                        t.setString(i, in.readUTF());
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read " + file + ": " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing more is read from it
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package simpledb;
+
+/**
+ * TuplesToBatches gathers the tuples of a DbIterator into batches, so any
+ * operator can feed a batch operator.
+ */
+public class TuplesToBatches implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+    private final TupleBatch batch;
+
+    /**
+     * @param child the operator whose tuples are batched
+     */
+    public TuplesToBatches(DbIterator child) {
+        this(child, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param child the operator whose tuples are batched
+     * @param capacity the most tuples in one batch
+     */
+    public TuplesToBatches(DbIterator child, int capacity) {
+        this.child = child;
+        this.batch = new TupleBatch(child.getTupleDesc(), capacity);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (!batch.isFull() && child.hasNext()) {
+            batch.add(child.next());
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
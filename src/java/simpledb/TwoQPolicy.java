@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha).  Pages enter a FIFO queue, A1in,
+ * on their first reference.  Pages evicted from A1in are remembered (id
+ * only) in a ghost queue, A1out; a page that is read back while it is still
+ * in A1out has proven to be re-referenced and goes to the LRU queue, Am.
+ * Hits in A1in are ignored, so a single scan can only ever churn A1in.
+ * <p>
+ * All queues are linked hash sets, so every operation is O(1) apart from
+ * skipping over pages the BufferPool refuses to evict.  They are kept under
+ * this policy's own lock; a hit only goes into an {@link AccessBuffer}, and
+ * is applied when the buffer is drained under the lock.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int maxA1in;
+    private final int maxA1out;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessBuffer accesses = new AccessBuffer();
+
+    /**
+     * @param capacity the number of pages the buffer pool can hold.  A1in
+     *            is sized to a quarter of it and A1out to half, the values
+     *            recommended in the paper.
+     */
+    public TwoQPolicy(int capacity) {
+        this.maxA1in = Math.max(1, capacity / 4);
+        this.maxA1out = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashSet<PageId>();
+    }
+
+    public void pageAdded(PageId pid) {
+        lock.lock();
+        try {
+            drainAccesses();  // earlier hits come first
+            if (a1in.contains(pid) || am.contains(pid)) {
+                return;
+            }
+            if (a1out.remove(pid)) {
+                am.add(pid);
+            } else {
+                a1in.add(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (accesses.add(pid) && lock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Applies the hits recorded since the last drain; the lock must be held
+    private void drainAccesses() {
+        PageId pid;
+        while ((pid = accesses.poll()) != null) {
+            if (am.remove(pid)) {
+                am.add(pid);  // move to the MRU end
+            }
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        lock.lock();
+        try {
+            if (a1in.remove(pid)) {
+                a1out.add(pid);
+                if (a1out.size() > maxA1out) {
+                    Iterator<PageId> oldest = a1out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            } else {
+                am.remove(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(Evictable filter) {
+        lock.lock();
+        try {
+            drainAccesses();
+            PageId victim = null;
+            if (a1in.size() > maxA1in || am.isEmpty()) {
+                victim = firstEvictable(a1in, filter);
+                if (victim == null)
+                    victim = firstEvictable(am, filter);
+            } else {
+                victim = firstEvictable(am, filter);
+                if (victim == null)
+                    victim = firstEvictable(a1in, filter);
+            }
+            return victim;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Evictable filter) {
+        for (PageId pid : queue) {
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
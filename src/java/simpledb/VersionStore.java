@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot
+ * transactions may still read.  A snapshot transaction sees the database
+ * as of the last commit before it began, and takes no locks, so it never
+ * waits for a writer and no writer waits for it.
+ * <p>
+ * Versions are kept per page.  Until a writer commits, the committed
+ * contents of a page it changed are still the page's before-image, so a
+ * snapshot reads them from there; nothing is copied while no snapshot is
+ * running.  The committed contents are copied aside only when the
+ * before-image is about to be lost: when the writer commits while a
+ * snapshot is running, or when its page is stolen.  At commit the copy
+ * becomes an old version, stamped with the commit's number, and is kept
+ * for as long as a snapshot that began before that commit is running.  A
+ * snapshot that begins while a commit is replacing before-images waits
+ * for it to finish.
+ *
+ * @see BufferPool
+ */
+class VersionStore {
+
+    /** A page's contents up to the commit numbered validUntil. */
+    private static class Version {
+        final Page image;
+        final long validUntil;
+
+        Version(Page image, long validUntil) {
+            this.image = image;
+            this.validUntil = validUntil;
+        }
+    }
+
+    // The snapshot each snapshot transaction reads: the number of the last
+    // commit before it began.  Read without the lock on every page request
+    private final ConcurrentHashMap<TransactionId, Long> snapshots =
+            new ConcurrentHashMap<TransactionId, Long>();
+
+    // All protected by this
+    private long lastCommit;
+    private int committing;
+    private final TreeMap<Long, Integer> running = new TreeMap<Long, Integer>();
+    private final HashMap<PageId, Page> committed = new HashMap<PageId, Page>();
+    private final HashMap<TransactionId, HashSet<PageId>> written =
+            new HashMap<TransactionId, HashSet<PageId>>();
+    private final HashMap<PageId, LinkedList<Version>> history =
+            new HashMap<PageId, LinkedList<Version>>();
+
+    /** Starts a snapshot for tid as of the last commit. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        boolean interrupted = false;
+        while (committing > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        snapshots.put(tid, lastCommit);
+        Integer n = running.get(lastCommit);
+        running.put(lastCommit, n == null ? 1 : n + 1);
+    }
+
+    /** @return true if tid reads a snapshot */
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * Ends tid's snapshot and drops the versions no snapshot still running
+     * can see.
+     */
+    synchronized void endSnapshot(TransactionId tid) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot == null)
+            return;
+        int n = running.get(snapshot);
+        if (n == 1)
+            running.remove(snapshot);
+        else
+            running.put(snapshot, n - 1);
+        Iterator<Map.Entry<PageId, LinkedList<Version>>> it = history.entrySet().iterator();
+        while (it.hasNext()) {
+            LinkedList<Version> versions = it.next().getValue();
+            while (!versions.isEmpty() && !isVisible(versions.getFirst()))
+                versions.removeFirst();
+            if (versions.isEmpty())
+                it.remove();
+        }
+    }
+
+    // Whether some running snapshot began before v was replaced
+    private boolean isVisible(Version v) {
+        return !running.isEmpty() && running.firstKey() < v.validUntil;
+    }
+
+    /**
+     * Notes a page tid is about to change.  The page must be locked
+     * exclusively.
+     */
+    synchronized void beforeWrite(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = written.get(tid);
+        if (pages == null) {
+            pages = new HashSet<PageId>();
+            written.put(tid, pages);
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Saves before, the committed contents of a page tid changed, before
+     * the page is written back and its before-image is lost.
+     */
+    synchronized void beforeSteal(TransactionId tid, PageId pid, Page before) {
+        if (!committed.containsKey(pid))
+            committed.put(pid, before);
+    }
+
+    /**
+     * Starts tid's commit.  Until {@link #commit} is called, snapshots do
+     * not begin, and {@link #beforePublish} is called for each page tid
+     * changed.
+     */
+    synchronized void startCommit(TransactionId tid) {
+        committing++;
+    }
+
+    /**
+     * Saves the committed contents of a page tid changed, if a running
+     * snapshot may read them, before its before-image is replaced.
+     */
+    synchronized void beforePublish(TransactionId tid, PageId pid, Page current) {
+        HashSet<PageId> pages = written.get(tid);
+        if (pages != null && pages.contains(pid) && !running.isEmpty()
+                && !committed.containsKey(pid))
+            committed.put(pid, current.getBeforeImage());
+    }
+
+    /**
+     * Makes tid's changes the newest versions of its pages; the contents
+     * they replace are kept while a running snapshot may read them.  Ends
+     * what {@link #startCommit} began, and is called before tid's locks
+     * are released.
+     */
+    synchronized void commit(TransactionId tid) {
+        committing--;
+        notifyAll();
+        HashSet<PageId> pages = written.remove(tid);
+        if (pages == null)
+            return;
+        long commit = lastCommit + 1;
+        for (PageId pid : pages) {
+            Page image = committed.remove(pid);
+            Version old = new Version(image, commit);
+            if (image == null || !isVisible(old))
+                continue;
+            LinkedList<Version> versions = history.get(pid);
+            if (versions == null) {
+                versions = new LinkedList<Version>();
+                history.put(pid, versions);
+            }
+            versions.addLast(old);
+        }
+        lastCommit = commit;
+    }
+
+    /**
+     * Forgets the saved contents of tid's pages.  Called once the pages
+     * hold their committed contents again.
+     */
+    synchronized void abort(TransactionId tid) {
+        HashSet<PageId> pages = written.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            committed.remove(pid);
+    }
+
+    /**
+     * @param current the page as the buffer pool holds it
+     * @return the version of the page tid's snapshot sees, as a page of
+     *   its own
+     */
+    synchronized Page read(TransactionId tid, PageId pid, Page current) {
+        long snapshot = snapshots.get(tid);
+        LinkedList<Version> versions = history.get(pid);
+        if (versions != null) {
+            for (Version v : versions) {
+                if (snapshot < v.validUntil)
+                    return v.image;
+            }
+        }
+        Page saved = committed.get(pid);
+        return saved != null ? saved : current.getBeforeImage();
+    }
+}
@@ -0,0 +1,387 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 512 * 6;  // six pages of two int columns
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    private HeapPageId pid(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /**
+     * Unit test for BufferPool.pinPage(): a pinned page survives eviction,
+     * and a pool where every page is pinned refuses new pages.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+
+        Page p0 = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        for (int i = 1; i < 6; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertTrue(p0 == bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException with every frame pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, pid(0));
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertFalse(p0 == bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for BufferPool.transactionComplete(): the pins of iterators
+     * a transaction never closed are dropped when it completes.
+     */
+    @Test public void abandonedIteratorPinsAreDropped() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        TransactionId tid = new TransactionId();
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        DbFileIterator otherIt = other.iterator(tid);
+        otherIt.open();
+        otherIt.next();
+        try {
+            bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+            fail("expected DbException with every frame pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.transactionComplete(tid, false);
+        TransactionId tid2 = new TransactionId();
+        for (int i = 1; i < 6; i++)
+            bp.getPage(tid2, pid(i), Permissions.READ_ONLY);
+
+        // closing them late must not take pins they no longer hold
+        it.close();
+        otherIt.close();
+        bp.pinPage(tid2, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid2, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid2, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException with every frame pinned");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for the off-heap frames: a page that is evicted while the
+     * caller still holds it keeps its contents after its frame is reused.
+     */
+    @Test public void evictedPageKeepsItsContents() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+
+        HeapPage p0 = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        List<ArrayList<Integer>> before = new ArrayList<ArrayList<Integer>>();
+        Iterator<Tuple> it = p0.iterator();
+        while (it.hasNext())
+            before.add(SystemTestUtil.tupleToList(it.next()));
+
+        for (int i = 1; i < 6; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+
+        List<ArrayList<Integer>> after = new ArrayList<ArrayList<Integer>>();
+        it = p0.iterator();
+        while (it.hasNext())
+            after.add(SystemTestUtil.tupleToList(it.next()));
+        assertEquals(before, after);
+        assertFalse(p0 == bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for the scan ring: scanning a table much larger than the
+     * pool leaves the pages of the working set resident.
+     */
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 4; i++)
+                bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertEquals(4, bp.getMissCount());
+        assertEquals(4, bp.getHitCount());
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+
+        long misses = bp.getMissCount();
+        long hits = bp.getHitCount();
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+        assertEquals(hits + 4, bp.getHitCount());
+    }
+
+    /** Counts page reads and writes, and those made on other threads. */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger backgroundReads = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicInteger backgroundWrites = new AtomicInteger();
+        final Thread owner = Thread.currentThread();
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (Thread.currentThread() != owner)
+                backgroundReads.incrementAndGet();
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            if (Thread.currentThread() != owner)
+                backgroundWrites.incrementAndGet();
+            writes.incrementAndGet();
+            super.writePage(page);
+        }
+    }
+
+    /**
+     * Unit test for BufferPool.prefetchPage(): pages are read once, in the
+     * background, and later requests for them are hits.
+     */
+    @Test public void prefetchReadsInBackground() throws Exception {
+        BufferPool bp = Database.resetBufferPool(20);
+        CountingHeapFile counted = new CountingHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(counted, SystemTestUtil.getUUID());
+
+        for (int i = 0; i < 5; i++)
+            bp.prefetchPage(pid(i), false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counted.reads.get() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(5, counted.backgroundReads.get());
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(5, counted.reads.get());
+    }
+
+    /**
+     * Unit test for BufferPool.transactionComplete(): a commit leaves the
+     * pages it dirtied to the background writer.
+     */
+    @Test public void commitLeavesWritesToWriter() throws Exception {
+        BufferPool bp = Database.resetBufferPool(10);
+        CountingHeapFile counted = new CountingHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(counted, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_WRITE).markDirty(true, tid);
+        bp.transactionComplete(tid, true);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counted.writes.get() < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(3, counted.backgroundWrites.get());
+        assertEquals(3, counted.writes.get());
+    }
+
+    /**
+     * Unit test for STEAL: a dirty page is written back to make room, and
+     * put back when its transaction aborts.
+     */
+    @Test public void dirtyPageIsStolen() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        CountingHeapFile counted = new CountingHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(counted, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        HeapPage p0 = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_WRITE);
+        int emptySlots = p0.getNumEmptySlots();
+        p0.deleteTuple(p0.iterator().next());
+        p0.markDirty(true, tid);
+
+        bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(1, counted.writes.get());
+        HeapPage stolen = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(emptySlots + 1, stolen.getNumEmptySlots());
+
+        bp.transactionComplete(tid, false);
+        bp = Database.resetBufferPool(1);
+        p0 = (HeapPage) bp.getPage(new TransactionId(), pid(0), Permissions.READ_ONLY);
+        assertEquals(emptySlots, p0.getNumEmptySlots());
+    }
+
+    /**
+     * Many threads scanning the same file through a pool much smaller than
+     * the file all see every tuple exactly once.
+     */
+    @Test public void concurrentScans() throws Exception {
+        Database.resetBufferPool(3);
+        final int threads = 8;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final int[] counts = new int[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < 5; round++) {
+                            SeqScan scan = new SeqScan(new TransactionId(), hf.getId(), "");
+                            scan.open();
+                            while (scan.hasNext()) {
+                                scan.next();
+                                counts[me]++;
+                            }
+                            scan.close();
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int i = 0; i < threads; i++)
+            assertEquals(ROWS * 5, counts[i]);
+    }
+
+    /**
+     * Threads inserting into their own tables while others read a file
+     * larger than the pool: every insert survives its page being evicted
+     * and its frame reused for another page.
+     */
+    @Test public void concurrentInsertsAndEviction() throws Exception {
+        Database.resetBufferPool(5);
+        final int inserters = 3;
+        final int transactions = 20;
+        final int perTransaction = 30;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final HeapFile[] tables = new HeapFile[inserters];
+        final AtomicInteger running = new AtomicInteger(inserters);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < inserters; i++) {
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+            final HeapFile table = tables[i];
+            workers.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < transactions; n++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            for (int k = 0; k < perTransaction; k++) {
+                                Tuple tup = new Tuple(table.getTupleDesc());
+                                tup.setField(0, new IntField(n));
+                                tup.setField(1, new IntField(k));
+                                Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+                            }
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < 2; i++) {
+            workers.add(new Thread() {
+                public void run() {
+                    try {
+                        // reads pages of hf in turn, without the sequential
+                        // hint, so the replacement policy picks victims from
+                        // the inserters' pages too
+                        for (int n = 0; running.get() > 0; n++) {
+                            TransactionId tid = new TransactionId();
+                            Database.getBufferPool().getPage(tid, pid(n % 6), Permissions.READ_ONLY);
+                            Database.getBufferPool().transactionComplete(tid);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        for (HeapFile table : tables) {
+            boolean[][] seen = new boolean[transactions][perTransaction];
+            int count = 0;
+            TransactionId tid = new TransactionId();
+            SeqScan scan = new SeqScan(tid, table.getId(), "");
+            scan.open();
+            while (scan.hasNext()) {
+                Tuple tup = scan.next();
+                assertFalse(seen[tup.getInt(0)][tup.getInt(1)]);
+                seen[tup.getInt(0)][tup.getInt(1)] = true;
+                count++;
+            }
+            scan.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(transactions * perTransaction, count);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
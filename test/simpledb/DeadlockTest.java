@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -30,7 +31,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -212,6 +213,68 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Not-so-unit test to construct a deadlock situation among three
+   * transactions.
+   * t1 acquires p0.write, t2 p1.write, t3 p2.write; then t1 attempts
+   * p1.write, t2 p2.write and t3 p0.write. One of them is aborted, and
+   * that lets the other two finish.
+   */
+  @Test public void testThreeWayDeadlock() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    bp.getPage(tid3, p2, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p2, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber[] grabbers = { lg1, lg2, lg3 };
+    TransactionId[] tids = { tid1, tid2, tid3 };
+    int aborted = 0;
+    for (int i = 0; i < 3; i++) {
+      if (grabbers[i].getError() != null)
+        aborted++;
+    }
+    assertEquals(1, aborted);
+
+    // the others finish one after the other as locks are released
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 3; i++) {
+        if (grabbers[i].acquired() && tids[i] != null) {
+          bp.transactionComplete(tids[i]);
+          tids[i] = null;
+        }
+      }
+      Thread.sleep(POLL_INTERVAL);
+    }
+    for (int i = 0; i < 3; i++)
+      assertTrue(grabbers[i].acquired() || grabbers[i].getError() != null);
+  }
+
+  /**
+   * The transaction that loses least by aborting is the victim, even when
+   * another transaction closes the cycle.
+   * t1 acquires p0.write; t2 acquires p1.write and p2.write; t1 attempts
+   * p1.write; t2 attempts p0.write. t1 holds fewer locks, so t1 aborts.
+   */
+  @Test public void testVictimHoldsFewestLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    assertTrue(lg1.getError() != null);
+    assertTrue(lg2.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -73,11 +73,49 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
         // NOTE(ghuo): we try not to dig too deeply into the Page API here; we
         // rely on HeapPageTest for that. perform some basic checks.
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
         assertTrue(page.isSlotUsed(1));
         assertFalse(page.isSlotUsed(20));
     }
     
+    /**
+     * Unit test for HeapFile.readPage() with the memory-mapped read path
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        hf.setMemoryMapped(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(483, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+        assertFalse(page.isSlotUsed(20));
+
+        hf.setMemoryMapped(false);
+        assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+    }
+    
+    /**
+     * Unit test for HeapFile.close(): dropping the table, or resetting the
+     * database, closes its channel, and adding it back and reading opens
+     * the channel again.
+     */
+    @Test
+    public void closeOnDrop() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] data = hf.readPage(pid).getPageData();
+        assertTrue(hf.isOpen());
+        Database.getCatalog().clear();
+        assertFalse(hf.isOpen());
+        Database.getCatalog().addTable(hf);
+        assertArrayEquals(data, hf.readPage(pid).getPageData());
+
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        other.readPage(new HeapPageId(other.getId(), 0));
+        assertTrue(other.isOpen());
+        Database.reset();
+        assertFalse(other.isOpen());
+    }
+
     @Test
     public void readFromFileNotMemoryTest() throws Exception {
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>(10);
@@ -26,14 +26,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for HeapFile.addTuple()
      */
     @Test public void addTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(1, empty.numPages());
         }
 
         // the next 512 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(2, empty.numPages());
         }
@@ -43,6 +43,23 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for inserting into a memory-mapped HeapFile: updates go
+     * through the normal write path and the mapping grows with the file.
+     */
+    @Test public void addTupleMapped() throws Exception {
+        empty.setMemoryMapped(true);
+        for (int i = 0; i < 504; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().flushAllPages();
+
+        HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        assertEquals(0, page.getNumEmptySlots());
+        page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1));
+        assertEquals(502, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
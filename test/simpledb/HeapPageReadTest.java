@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -99,12 +100,30 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(int[]): only the fields asked for
+     * are decoded
+     */
+    @Test public void testIteratorOverFields() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator(new int[] { 1 });
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertNull(tup.getField(0));
+            assertEquals(EXAMPLE_VALUES[row][1], tup.getInt(1));
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
     @Test public void getNumEmptySlots() throws Exception {
         HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
     }
 
     /**
@@ -116,7 +135,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         for (int i = 0; i < 20; ++i)
             assertTrue(page.isSlotUsed(i));
 
-        for (int i = 20; i < 504; ++i)
+        for (int i = 20; i < 503; ++i)
             assertFalse(page.isSlotUsed(i));
     }
 
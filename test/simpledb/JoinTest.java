@@ -1,14 +1,20 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class JoinTest extends SimpleDbTestBase {
 
@@ -105,6 +111,61 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for a Join on = whose inputs are about 100 times its memory
+   * budget: both are split into partitions on disk, and the partitions
+   * are split again.
+   */
+  @Test public void spillingJoin() throws Exception {
+    EquiJoin join = validateSpillingJoin(2000, 2000, null, 2000 * 8 / 100);
+    assertTrue(join.hasSpilled());
+    assertTrue(join.deepestLevel() >= 2);
+    assertFalse(join.hasJoinedInChunks());
+  }
+
+  /**
+   * Unit test for a Join on = whose inputs share one key and do not fit in
+   * its memory budget: no partitioning can split them, so they are joined
+   * a chunk at a time.
+   */
+  @Test public void spillingJoinOneKey() throws Exception {
+    HashMap<Integer, Integer> oneKey = new HashMap<Integer, Integer>();
+    oneKey.put(0, 7);
+    EquiJoin join = validateSpillingJoin(100, 50, oneKey, 80);
+    assertTrue(join.hasSpilled());
+    assertEquals(EquiJoin.MAX_LEVELS, join.deepestLevel());
+    assertTrue(join.hasJoinedInChunks());
+  }
+
+  // Joins two random two-column heap files on their first columns, with
+  // keys below 1000 unless keys fixes them, and checks every tuple of the
+  // result.  Returns the EquiJoin that did the work.
+  private EquiJoin validateSpillingJoin(int rows1, int rows2, HashMap<Integer, Integer> keys,
+      long memoryBudget) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, rows1, 1000, keys, tuples1);
+    ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, rows2, 1000, keys, tuples2);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t1 : tuples1) {
+      for (ArrayList<Integer> t2 : tuples2) {
+        if (t1.get(0).equals(t2.get(0))) {
+          ArrayList<Integer> out = new ArrayList<Integer>(t1);
+          out.addAll(t2);
+          expected.add(out);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(pred, new SeqScan(tid, table1.getId(), ""),
+        new SeqScan(tid, table2.getId(), ""), memoryBudget);
+    SystemTestUtil.matchTuples(op, expected);
+    Database.getBufferPool().transactionComplete(tid);
+    return (EquiJoin) op.getImplementation();
+  }
+
   /**
    * JUnit suite target
    */
@@ -3,7 +3,14 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -26,7 +33,7 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -186,6 +193,176 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Waiters are granted in the order they asked, so a reader that comes
+   * after a waiting writer does not get in ahead of it.
+   */
+  @Test public void waitersAreGrantedInOrder() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(new TransactionId(), p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.releasePage(tid1, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.releasePage(tid2, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(reader.acquired());
+    assertNull(writer.getError());
+    assertNull(reader.getError());
+  }
+
+  /**
+   * Unit test for LockManager.getPagesLockedByTxn(): a transaction's
+   * pages follow its grants, upgrades and releases, and committing it
+   * leaves the other transaction's locks alone.
+   */
+  @Test public void pagesLockedByTxn() throws Exception {
+    LockManager lm = new LockManager(BufferPool.DEFAULT_PAGES);
+    lm.requestLock(tid1, p0, Permissions.READ_ONLY);
+    lm.requestLock(tid1, p1, Permissions.READ_WRITE);
+    lm.requestLock(tid2, p0, Permissions.READ_ONLY);
+    lm.requestLock(tid2, p2, Permissions.READ_ONLY);
+    lm.requestLock(tid2, p2, Permissions.READ_WRITE);
+    assertEquals(2, lm.getPagesLockedByTxn(tid1).size());
+    assertEquals(2, lm.getPagesLockedByTxn(tid2).size());
+
+    lm.releaseLock(tid1, p1);
+    assertEquals(1, lm.getPagesLockedByTxn(tid1).size());
+    assertFalse(lm.holdsLock(tid1, p1));
+
+    lm.releaseAllLocksForTxn(tid1);
+    assertTrue(lm.getPagesLockedByTxn(tid1).isEmpty());
+    assertTrue(lm.holdsLock(tid2, p0));
+    assertTrue(lm.holdsLock(tid2, p2));
+    lm.requestLock(tid2, p0, Permissions.READ_WRITE);
+    assertEquals(2, lm.getPagesLockedByTxn(tid2).size());
+  }
+
+  /**
+   * Unit test for lock escalation: past the threshold a reader's page
+   * locks become one shared lock on the table, which lets other readers
+   * in and keeps writers out of every page.
+   */
+  @Test public void pageLocksEscalateToTable() throws Exception {
+    final LockManager lm = new LockManager(BufferPool.DEFAULT_PAGES);
+    lm.setEscalationThreshold(2);
+    lm.requestLock(tid1, p0, Permissions.READ_ONLY);
+    lm.requestLock(tid1, p1, Permissions.READ_ONLY);
+    lm.requestLock(tid1, p2, Permissions.READ_ONLY);
+    assertTrue(lm.holdsLock(tid1, p0));
+    assertTrue(lm.holdsLock(tid1, new HeapPageId(empty.getId(), 7)));
+    assertEquals(3, lm.getPagesLockedByTxn(tid1).size());
+
+    TransactionId reader = new TransactionId();
+    lm.requestLock(reader, p1, Permissions.READ_ONLY);
+
+    final AtomicBoolean written = new AtomicBoolean();
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          lm.requestLock(tid2, p0, Permissions.READ_WRITE);
+          written.set(true);
+        } catch (TransactionAbortedException e) {
+          // leaves written unset
+        }
+      }
+    };
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(written.get());
+
+    lm.releaseAllLocksForTxn(tid1);
+    lm.releaseAllLocksForTxn(reader);
+    writer.join();
+    assertTrue(written.get());
+    assertTrue(lm.holdsLock(tid2, p0));
+  }
+
+  /**
+   * Unit test for lock escalation behind a writer: a reader past the
+   * threshold whose table lock would have to wait for another
+   * transaction's IX keeps its page locks instead, and escalates on a
+   * later request once the writer is done.
+   */
+  @Test public void escalationDoesNotWait() throws Exception {
+    final LockManager lm = new LockManager(BufferPool.DEFAULT_PAGES);
+    lm.setEscalationThreshold(2);
+    lm.requestLock(tid2, p0, Permissions.READ_WRITE);
+
+    final AtomicBoolean read = new AtomicBoolean();
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          lm.requestLock(tid1, p1, Permissions.READ_ONLY);
+          lm.requestLock(tid1, p2, Permissions.READ_ONLY);
+          lm.requestLock(tid1, new HeapPageId(empty.getId(), 3), Permissions.READ_ONLY);
+          read.set(true);
+        } catch (TransactionAbortedException e) {
+          // leaves read unset
+        }
+      }
+    };
+    reader.start();
+    reader.join(TIMEOUT);
+    assertTrue(read.get());
+    assertFalse(lm.holdsLock(tid1, new HeapPageId(empty.getId(), 7)));
+    assertEquals(3, lm.getPagesLockedByTxn(tid1).size());
+
+    lm.releaseAllLocksForTxn(tid2);
+    lm.requestLock(tid1, new HeapPageId(empty.getId(), 4), Permissions.READ_ONLY);
+    assertTrue(lm.holdsLock(tid1, new HeapPageId(empty.getId(), 7)));
+    assertEquals(4, lm.getPagesLockedByTxn(tid1).size());
+  }
+
+  private int counter;
+
+  /**
+   * Many transactions taking turns at a write lock on one page: every
+   * transaction gets it, and no two hold it at once.  Benchmark.lockLatency
+   * times the waits.
+   */
+  @Test public void contendedLock() throws Exception {
+    final int threads = 8;
+    final int rounds = 200;
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    counter = 0;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        public void run() {
+          try {
+            for (int r = 0; r < rounds; r++) {
+              TransactionId tid = new TransactionId();
+              bp.getPage(tid, p0, Permissions.READ_WRITE);
+              counter++;
+              bp.transactionComplete(tid);
+            }
+          } catch (Throwable t) {
+            synchronized (errors) {
+              errors.add(t);
+            }
+          }
+        }
+      };
+      workers[i].start();
+    }
+    for (Thread t : workers)
+      t.join();
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(threads * rounds, counter);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+  int rowsA = 100;
+  int rowsB = 30;
+  ArrayList<ArrayList<Integer>> tuplesA;
+  ArrayList<ArrayList<Integer>> tuplesB;
+  HashMap<String, TableStats> stats;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test.  Table ta has fields f0 to f3, f0 and f2
+   * unique; table tb has fields f0 to f2, each f0 twice.
+   */
+  @Before public void addTables() throws Exception {
+    tuplesA = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rowsA; i++)
+      tuplesA.add(new ArrayList<Integer>(Arrays.asList(i, i % 10, i * 7 % rowsA, i % 3)));
+    tuplesB = new ArrayList<ArrayList<Integer>>();
+    for (int j = 0; j < rowsB; j++)
+      tuplesB.add(new ArrayList<Integer>(Arrays.asList(j % 15, j, 2 * j)));
+
+    stats = new HashMap<String, TableStats>();
+    addTable("ta", 4, tuplesA);
+    addTable("tb", 3, tuplesB);
+    tid = new TransactionId();
+  }
+
+  private void addTable(String name, int columns, ArrayList<ArrayList<Integer>> tuples)
+      throws Exception {
+    File f = File.createTempFile("table", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+    HeapFile hf = new HeapFile(f, Utility.getTupleDesc(columns, "f"));
+    Database.getCatalog().addTable(hf, name);
+    stats.put(name, new TableStats(hf.getId(), 1000));
+  }
+
+  private DbIterator plan(String sql) throws Exception {
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+    return lp.physicalPlan(tid, stats, false);
+  }
+
+  // The scan of alias in plan
+  private static SeqScan scanOf(DbIterator plan, String alias) {
+    if (plan instanceof SeqScan)
+      return ((SeqScan) plan).getAlias().equals(alias) ? (SeqScan) plan : null;
+    if (plan instanceof Operator) {
+      for (DbIterator child : ((Operator) plan).getChildren()) {
+        SeqScan s = scanOf(child, alias);
+        if (s != null)
+          return s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks that the scan of alias in plan decodes exactly the fields
+   * marked in read.
+   */
+  private static void assertFieldsRead(DbIterator plan, String alias, boolean... read)
+      throws Exception {
+    SeqScan scan = scanOf(plan, alias);
+    scan.open();
+    Tuple t = scan.next();
+    scan.close();
+    assertEquals(read.length, t.getTupleDesc().numFields());
+    for (int i = 0; i < read.length; i++)
+      assertEquals(alias + " field " + i, read[i], t.isSet(i));
+  }
+
+  private static ArrayList<ArrayList<Integer>> collect(DbIterator it) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    it.open();
+    while (it.hasNext())
+      tuples.add(SystemTestUtil.tupleToList(it.next()));
+    it.close();
+    return tuples;
+  }
+
+  private static ArrayList<Integer> list(Integer... values) {
+    return new ArrayList<Integer>(Arrays.asList(values));
+  }
+
+  /**
+   * A filter on a field that is not selected decodes that field too.
+   */
+  @Test public void filterOnUnselectedField() throws Exception {
+    DbIterator p = plan("SELECT ta.f0 FROM ta WHERE ta.f2 < 50;");
+    assertFieldsRead(p, "ta", true, false, true, false);
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : tuplesA) {
+      if (t.get(2) < 50)
+        expected.add(list(t.get(0)));
+    }
+    assertEquals(expected, collect(p));
+  }
+
+  /**
+   * A join and an ORDER BY on fields that are not selected decode those
+   * fields, on both sides of the join.
+   */
+  @Test public void joinOrderByUnselectedFields() throws Exception {
+    DbIterator p = plan("SELECT ta.f0 FROM ta, tb WHERE ta.f1 = tb.f0 ORDER BY ta.f2;");
+    assertFieldsRead(p, "ta", true, true, true, false);
+    assertFieldsRead(p, "tb", true, false, false);
+
+    // every tuple of ta matches two of tb
+    ArrayList<ArrayList<Integer>> byF2 = new ArrayList<ArrayList<Integer>>(tuplesA);
+    Collections.sort(byF2, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+        return a.get(2).compareTo(b.get(2));
+      }
+    });
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : byF2) {
+      expected.add(list(t.get(0)));
+      expected.add(list(t.get(0)));
+    }
+    assertEquals(expected, collect(p));
+  }
+
+  /**
+   * A grouped aggregate decodes the aggregate and grouping fields.
+   */
+  @Test public void groupBy() throws Exception {
+    DbIterator p = plan("SELECT ta.f3, SUM(ta.f0) FROM ta GROUP BY ta.f3;");
+    assertFieldsRead(p, "ta", true, false, false, true);
+
+    int[] sums = new int[3];
+    for (ArrayList<Integer> t : tuplesA)
+      sums[t.get(3)] += t.get(0);
+    List<ArrayList<Integer>> actual = collect(p);
+    assertEquals(sums.length, actual.size());
+    for (ArrayList<Integer> t : actual)
+      assertEquals(sums[t.get(0)], (int) t.get(1));
+  }
+
+  /**
+   * SELECT * decodes every field.
+   */
+  @Test public void selectAll() throws Exception {
+    DbIterator p = plan("SELECT * FROM ta WHERE ta.f3 = 1;");
+    assertFieldsRead(p, "ta", true, true, true, true);
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : tuplesA) {
+      if (t.get(3) == 1)
+        expected.add(t);
+    }
+    assertEquals(expected, collect(p));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogicalPlanTest.class);
+  }
+}
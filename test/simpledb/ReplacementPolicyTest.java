@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static final ReplacementPolicy.Evictable NONE = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return false;
+        }
+    };
+
+    private static PageId pid(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /** Vetoes exactly the pages given */
+    private static ReplacementPolicy.Evictable allBut(final PageId... pinned) {
+        return new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !Arrays.asList(pinned).contains(pid);
+            }
+        };
+    }
+
+    /**
+     * Unit test for ClockPolicy: referenced pages get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy(3);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+
+        // first sweep clears every bit, second takes the first page
+        assertEquals(pid(0), clock.chooseVictim(ANY));
+        clock.pageRemoved(pid(0));
+
+        clock.pageAccessed(pid(1));
+        clock.pageAdded(pid(3));
+        assertEquals(pid(2), clock.chooseVictim(ANY));
+        assertEquals(pid(1), clock.chooseVictim(allBut(pid(2))));
+        assertNull(clock.chooseVictim(NONE));
+    }
+
+    /**
+     * Unit test for ClockPolicy: the ring grows past its initial capacity.
+     */
+    @Test public void clockGrows() {
+        ClockPolicy clock = new ClockPolicy(1);
+        for (int i = 0; i < 10; i++)
+            clock.pageAdded(pid(i));
+        for (int i = 0; i < 10; i++) {
+            PageId victim = clock.chooseVictim(ANY);
+            clock.pageRemoved(victim);
+        }
+        assertNull(clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages referenced once go before pages
+     * referenced twice, however recent.
+     */
+    @Test public void lruKPrefersSingleReference() {
+        LruKPolicy lru2 = new LruKPolicy(2);
+        lru2.pageAdded(pid(0));
+        lru2.pageAccessed(pid(0));
+        lru2.pageAdded(pid(1));
+        lru2.pageAdded(pid(2));
+
+        assertEquals(pid(1), lru2.chooseVictim(ANY));
+        assertEquals(pid(2), lru2.chooseVictim(allBut(pid(1))));
+        lru2.pageRemoved(pid(1));
+        lru2.pageRemoved(pid(2));
+        assertEquals(pid(0), lru2.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LruKPolicy with K = 1, which degenerates to LRU.
+     */
+    @Test public void lru1IsLru() {
+        LruKPolicy lru = new LruKPolicy(1);
+        lru.pageAdded(pid(0));
+        lru.pageAdded(pid(1));
+        lru.pageAccessed(pid(0));
+        assertEquals(pid(1), lru.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LruKPolicy: hits recorded from several threads, more
+     * than the access buffer holds, all count, and in order.
+     */
+    @Test public void lruKConcurrentHits() throws Exception {
+        final LruKPolicy lru = new LruKPolicy(1);
+        for (int i = 0; i < 4; i++)
+            lru.pageAdded(pid(i));
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final PageId hit = pid(i % 2);
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < AccessBuffer.CAPACITY * 3; j++)
+                        lru.pageAccessed(hit);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        lru.pageAccessed(pid(0));
+
+        assertEquals(pid(2), lru.chooseVictim(ANY));
+        assertEquals(pid(3), lru.chooseVictim(allBut(pid(2))));
+        assertEquals(pid(1), lru.chooseVictim(allBut(pid(2), pid(3))));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a page read back from the ghost queue is
+     * promoted to Am and outlives pages that were only seen once.
+     */
+    @Test public void twoQPromotesFromGhostQueue() {
+        TwoQPolicy twoQ = new TwoQPolicy(4);
+        twoQ.pageAdded(pid(0));
+        assertEquals(pid(0), twoQ.chooseVictim(ANY));
+        twoQ.pageRemoved(pid(0));
+
+        // pid(0) is now a ghost; reading it back puts it in Am
+        twoQ.pageAdded(pid(0));
+        twoQ.pageAdded(pid(1));
+        twoQ.pageAdded(pid(2));
+        assertEquals(pid(1), twoQ.chooseVictim(ANY));
+        twoQ.pageRemoved(pid(1));
+        twoQ.pageRemoved(pid(2));
+        assertEquals(pid(0), twoQ.chooseVictim(ANY));
+        assertNull(twoQ.chooseVictim(NONE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
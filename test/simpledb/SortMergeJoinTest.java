@@ -0,0 +1,225 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  int[] data1;
+  int[] data2;
+
+  /**
+   * Initialize each unit test.  Both inputs are out of order and have runs
+   * of duplicate keys.
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.data1 = new int[] { 5, 6,
+                             3, 4,
+                             7, 8,
+                             3, 5,
+                             1, 2,
+                             5, 9 };
+    this.data2 = new int[] { 4, 5, 6,
+                             3, 3, 4,
+                             5, 6, 7,
+                             1, 2, 3,
+                             3, 4, 5,
+                             5, 0, 0,
+                             9, 9, 9 };
+  }
+
+  private DbIterator scan1() {
+    return TestUtil.createTupleList(width1, data1);
+  }
+
+  private DbIterator scan2() {
+    return TestUtil.createTupleList(width2, data2);
+  }
+
+  private static ArrayList<Tuple> collect(DbIterator it) throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext())
+      tuples.add(it.next());
+    it.close();
+    return tuples;
+  }
+
+  /**
+   * Checks a SortMergeJoin on op against a nested loops join, with the
+   * default memory budget and with one so small that every sort spills.
+   */
+  private void validate(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    ArrayList<Tuple> expected = new ArrayList<Tuple>();
+    for (Tuple t1 : collect(scan1())) {
+      for (Tuple t2 : collect(scan2())) {
+        if (pred.filter(t1, t2))
+          expected.add(merge(t1, t2));
+      }
+    }
+    for (long budget : new long[] { EquiJoin.DEFAULT_MEMORY_BUDGET, 8 }) {
+      assertSameTuples(op + " with budget " + budget, expected,
+          collect(new SortMergeJoin(pred, scan1(), scan2(), budget)));
+    }
+  }
+
+  // Checks that actual holds the tuples of expected, in any order
+  private static void assertSameTuples(String what, ArrayList<Tuple> expected,
+      ArrayList<Tuple> actual) {
+    assertEquals(what, expected.size(), actual.size());
+    ArrayList<Tuple> left = new ArrayList<Tuple>(expected);
+    for (Tuple t : actual)
+      assertTrue(what + ": unexpected " + t, left.remove(t));
+  }
+
+  private static Tuple merge(Tuple t1, Tuple t2) {
+    int n1 = t1.getTupleDesc().numFields();
+    Tuple t = new Tuple(TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc()));
+    for (int i = 0; i < n1; i++)
+      t.setField(i, t1.getField(i));
+    for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+      t.setField(n1 + i, t2.getField(i));
+    return t;
+  }
+
+  @Test public void eqJoin() throws Exception {
+    validate(Predicate.Op.EQUALS);
+  }
+
+  @Test public void ltJoin() throws Exception {
+    validate(Predicate.Op.LESS_THAN);
+  }
+
+  @Test public void leJoin() throws Exception {
+    validate(Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  @Test public void gtJoin() throws Exception {
+    validate(Predicate.Op.GREATER_THAN);
+  }
+
+  @Test public void geJoin() throws Exception {
+    validate(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+      SortMergeJoin op1 = new SortMergeJoin(new JoinPredicate(0, op, 0), scan1(), scan2(), 8);
+      op1.open();
+      ArrayList<Tuple> first = new ArrayList<Tuple>();
+      while (op1.hasNext())
+        first.add(op1.next());
+      op1.rewind();
+      ArrayList<Tuple> second = new ArrayList<Tuple>();
+      while (op1.hasNext())
+        second.add(op1.next());
+      op1.close();
+      assertEquals(first, second);
+    }
+  }
+
+  /**
+   * Inputs already sorted on their join fields are used as they are.
+   */
+  @Test public void sortedInputs() throws Exception {
+    DbIterator sorted1 = new OrderBy(0, true, scan1());
+    DbIterator sorted2 = new OrderBy(0, true, scan2());
+    assertTrue(SortMergeJoin.isSortedOn(sorted1, 0));
+    assertFalse(SortMergeJoin.isSortedOn(sorted1, 1));
+    assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, scan1()), 0));
+    assertFalse(SortMergeJoin.isSortedOn(scan1(), 0));
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin j = new SortMergeJoin(pred, sorted1, sorted2);
+    assertSameTuples("sorted inputs", collect(new SortMergeJoin(pred, scan1(), scan2())), collect(j));
+    assertTrue(SortMergeJoin.isSortedOn(j, 0));
+    assertTrue(SortMergeJoin.isSortedOn(j, width1));
+  }
+
+  /**
+   * The optimizer picks a SortMergeJoin for inequalities, and for equality
+   * only when both inputs are sorted.
+   */
+  @Test public void optimizerChoice() throws Exception {
+    DbIterator a = new TupleIterator(Utility.getTupleDesc(2, "a.f"), new ArrayList<Tuple>());
+    DbIterator b = new TupleIterator(Utility.getTupleDesc(2, "b.f"), new ArrayList<Tuple>());
+    assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.f0", "b.f0",
+        Predicate.Op.LESS_THAN), a, b) instanceof SortMergeJoin);
+    assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.f0", "b.f0",
+        Predicate.Op.EQUALS), a, b) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.f0", "b.f0",
+        Predicate.Op.NOT_EQUALS), a, b) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.f0", "b.f0",
+        Predicate.Op.EQUALS), new OrderBy(0, true, a), new OrderBy(0, true, b)) instanceof SortMergeJoin);
+  }
+
+  /**
+   * The optimizer costs a range join as a sort-merge, which beats a nested
+   * loops join on large inputs and grows with the output.
+   */
+  @Test public void joinCost() throws Exception {
+    JoinOptimizer jo = new JoinOptimizer(null, new Vector<LogicalJoinNode>());
+    LogicalJoinNode lt = new LogicalJoinNode("a", "b", "a.f0", "b.f0", Predicate.Op.LESS_THAN);
+    LogicalJoinNode ne = new LogicalJoinNode("a", "b", "a.f0", "b.f0", Predicate.Op.NOT_EQUALS);
+    double sortMerge = jo.estimateJoinCost(lt, 10000, 10000, 100, 100);
+    assertTrue(sortMerge > 0);
+    assertTrue(sortMerge < jo.estimateJoinCost(ne, 10000, 10000, 100, 100));
+    // the output of a range join dominates the sorts
+    assertTrue(sortMerge > JoinOptimizer.RANGE_JOIN_SELECTIVITY * 10000 * 10000);
+    assertTrue(jo.estimateJoinCost(lt, 100, 100, 1, 1) < sortMerge);
+  }
+
+  /**
+   * An ExternalSort that spills more runs than it merges at once still
+   * returns every tuple in order, and again after a rewind.
+   */
+  @Test public void externalSort() throws Exception {
+    int n = 1000;
+    int[] data = new int[n];
+    Random r = new Random(1);
+    for (int i = 0; i < n; i++)
+      data[i] = r.nextInt(100);
+    for (boolean cheapRewind : new boolean[] { false, true }) {
+      ExternalSort sort = new ExternalSort(TestUtil.createTupleList(1, data), 0, 40, cheapRewind);
+      sort.open();
+      for (int pass = 0; pass < 2; pass++) {
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (sort.hasNext()) {
+          int v = sort.next().getInt(0);
+          assertTrue(v >= last);
+          last = v;
+          count++;
+        }
+        assertEquals(n, count);
+        sort.rewind();
+      }
+      sort.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
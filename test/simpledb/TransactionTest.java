@@ -4,6 +4,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -23,7 +26,7 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -79,21 +82,21 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     // now, flush the buffer pool and access the page again from disk.
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
     p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
-    Iterator<Tuple> it = p.iterator();
+    assertEquals(commit, contains(p, 6, 830));
+  }
 
-    boolean found = false;
+  private static boolean contains(HeapPage p, int v0, int v1) {
+    Iterator<Tuple> it = p.iterator();
     while (it.hasNext()) {
       Tuple tup = (Tuple) it.next();
       IntField f0 = (IntField) tup.getField(0);
       IntField f1 = (IntField) tup.getField(1);
 
-      if (f0.getValue() == 6 && f1.getValue() == 830) {
-        found = true;
-        break;
+      if (f0.getValue() == v0 && f1.getValue() == v1) {
+        return true;
       }
     }
-
-    assertEquals(commit, found);
+    return false;
   }
 
   /**
@@ -112,6 +115,45 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.beginSnapshot().
+   * A snapshot reads a page a writer holds exclusively without waiting,
+   * and sees only what was committed before it began, whether it began
+   * before or after the writer changed the page.
+   */
+  @Test public void snapshotReadsCommittedVersion() throws Exception {
+    TransactionId before = new TransactionId();
+    bp.beginSnapshot(before);
+
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    t.setRecordId(new RecordId(p2, 1));
+    p.insertTuple(t);
+    p.markDirty(true, tid1);
+    TransactionId during = new TransactionId();
+    bp.beginSnapshot(during);
+
+    assertFalse(contains((HeapPage) bp.getPage(before, p2, Permissions.READ_ONLY), 6, 830));
+    assertFalse(contains((HeapPage) bp.getPage(during, p2, Permissions.READ_ONLY), 6, 830));
+    bp.transactionComplete(tid1, true);
+    assertFalse(contains((HeapPage) bp.getPage(before, p2, Permissions.READ_ONLY), 6, 830));
+    assertFalse(contains((HeapPage) bp.getPage(during, p2, Permissions.READ_ONLY), 6, 830));
+
+    TransactionId after = new TransactionId();
+    bp.beginSnapshot(after);
+    assertTrue(contains((HeapPage) bp.getPage(after, p2, Permissions.READ_ONLY), 6, 830));
+
+    try {
+      bp.getPage(before, p2, Permissions.READ_WRITE);
+      fail("a snapshot must not write");
+    } catch (DbException e) {
+      // expected
+    }
+    bp.transactionComplete(before, true);
+    bp.transactionComplete(during, true);
+    bp.transactionComplete(after, true);
+  }
+
   /**
    * JUnit suite target
    */
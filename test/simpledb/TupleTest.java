@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -29,6 +31,39 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * Unit test for Tuple.getInt(), Tuple.getString() and their setters,
+     * and that they agree with getField() and setField()
+     */
+    @Test public void typedFields() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Tuple tup = new Tuple(td);
+        assertNull(tup.getField(0));
+        assertNull(tup.getField(1));
+        tup.setInt(0, 42);
+        tup.setString(1, "hello");
+        assertEquals(new IntField(42), tup.getField(0));
+        assertEquals(new StringField("hello", Type.STRING_LEN), tup.getField(1));
+        tup.setField(0, new IntField(-7));
+        assertEquals(-7, tup.getInt(0));
+        assertEquals("hello", tup.getString(1));
+    }
+
+    /**
+     * Unit test for Tuple.equals(): every field counts, and the RecordId
+     */
+    @Test public void equalTuples() {
+        TupleDesc td = Utility.getTupleDesc(2);
+        Tuple a = Utility.getHeapTuple(new int[] { 1, 2 });
+        Tuple b = Utility.getHeapTuple(new int[] { 1, 2 });
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(Utility.getHeapTuple(new int[] { 1, 3 })));
+        b.setRecordId(new RecordId(new HeapPageId(0, 0), 0));
+        assertFalse(a.equals(b));
+        assertFalse(a.equals(new Tuple(td)));
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */
@@ -0,0 +1,179 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Checks each batch operator against the tuple-at-a-time operator it
+ * stands in for, over tables that span several batches.
+ */
+public class BatchTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 5000;
+    private static final int MAX_VALUE = 64;
+
+    private HeapFile createTable(int rows, int maxValue)
+            throws IOException, DbException, TransactionAbortedException {
+        return createTable(rows, maxValue, new ArrayList<ArrayList<Integer>>());
+    }
+
+    private HeapFile createTable(int rows, int maxValue, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        return SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples);
+    }
+
+    // The aggregate of column afield of tuples, grouped by column gfield
+    private static ArrayList<ArrayList<Integer>> aggregate(ArrayList<ArrayList<Integer>> tuples,
+            Aggregator.Op op, int afield, int gfield) {
+        HashMap<Integer, int[]> groups = new HashMap<Integer, int[]>();
+        for (ArrayList<Integer> t : tuples) {
+            Integer key = gfield == Aggregator.NO_GROUPING ? null : t.get(gfield);
+            int v = t.get(afield);
+            int[] acc = groups.get(key);
+            if (acc == null) {
+                groups.put(key, new int[] { v, 1 });
+                continue;
+            }
+            if (op == Aggregator.Op.MIN) acc[0] = Math.min(acc[0], v);
+            else if (op == Aggregator.Op.MAX) acc[0] = Math.max(acc[0], v);
+            else acc[0] += v;
+            acc[1]++;
+        }
+        ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<Integer, int[]> e : groups.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>();
+            if (gfield != Aggregator.NO_GROUPING) result.add(e.getKey());
+            int[] acc = e.getValue();
+            if (op == Aggregator.Op.COUNT) result.add(acc[1]);
+            else if (op == Aggregator.Op.AVG) result.add(acc[0] / acc[1]);
+            else result.add(acc[0]);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static ArrayList<ArrayList<Integer>> collect(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return tuples;
+    }
+
+    @Test public void testRoundTrip()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable(ROWS, MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = collect(new SeqScan(tid, table.getId(), ""));
+        SystemTestUtil.matchTuples(new BatchesToTuples(new BatchSeqScan(tid, table.getId(), "")), expected);
+        SystemTestUtil.matchTuples(new BatchesToTuples(
+                new TuplesToBatches(new SeqScan(tid, table.getId(), ""), 100)), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable(ROWS, MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(MAX_VALUE / 3));
+            ArrayList<ArrayList<Integer>> expected =
+                    collect(new Filter(p, new SeqScan(tid, table.getId(), "")));
+            SystemTestUtil.matchTuples(new BatchesToTuples(
+                    new BatchFilter(p, new BatchSeqScan(tid, table.getId(), ""))), expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testProject()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable(ROWS, MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        ArrayList<ArrayList<Integer>> expected =
+                collect(new Project(fields, types, new SeqScan(tid, table.getId(), "")));
+        SystemTestUtil.matchTuples(new BatchesToTuples(
+                new BatchProject(fields, types, new BatchSeqScan(tid, table.getId(), ""))), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testScanFields()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable(ROWS, MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        ArrayList<ArrayList<Integer>> expected =
+                collect(new Project(fields, types, new SeqScan(tid, table.getId(), "")));
+        SystemTestUtil.matchTuples(new BatchesToTuples(
+                new BatchSeqScan(tid, table.getId(), "", new int[] { 2, 0 })), expected);
+        SystemTestUtil.matchTuples(new Project(fields, types,
+                new SeqScan(tid, table.getId(), "", new int[] { 0, 2 })), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testAggregate()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = createTable(ROWS, MAX_VALUE, tuples);
+        TransactionId tid = new TransactionId();
+        Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT };
+        for (Aggregator.Op op : ops) {
+            for (int group : new int[] { Aggregator.NO_GROUPING, 0 }) {
+                ArrayList<ArrayList<Integer>> expected = aggregate(tuples, op, 1, group);
+                SystemTestUtil.matchTuples(new BatchesToTuples(
+                        new BatchAggregate(new BatchSeqScan(tid, table.getId(), ""), 1, group, op)),
+                        expected);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEquiJoin()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = createTable(2500, 2500);
+        HeapFile table2 = createTable(2500, 2500);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        ArrayList<ArrayList<Integer>> expected = collect(new Join(p,
+                new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2")));
+        SystemTestUtil.matchTuples(new BatchesToTuples(new BatchEquiJoin(p,
+                new BatchSeqScan(tid, table1.getId(), "t1"),
+                new BatchSeqScan(tid, table2.getId(), "t2"))), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A filter feeding a grouped aggregate, the plan Benchmark.filterAggregate
+     * times.
+     */
+    @Test public void testFilterAggregate()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable(ROWS, MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2));
+        ArrayList<ArrayList<Integer>> expected = collect(new Aggregate(
+                new Filter(p, new SeqScan(tid, table.getId(), "")), 2, 0, Aggregator.Op.SUM));
+        SystemTestUtil.matchTuples(new BatchesToTuples(new BatchAggregate(
+                new BatchFilter(p, new BatchSeqScan(tid, table.getId(), "")), 2, 0, Aggregator.Op.SUM)),
+                expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
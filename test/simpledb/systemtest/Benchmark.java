@@ -0,0 +1,289 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import simpledb.*;
+
+/**
+ * Benchmarks for the buffer pool, the lock manager and the operators.  They
+ * print how long things take, which varies too much between machines to
+ * assert on, so they are not run with the unit or system tests.  Each still
+ * checks the results of what it times.  Run them all with
+ * <pre>ant benchmark</pre>
+ * or some of them with
+ * <pre>ant benchmark -Dbenchmark="lockLatency ..."</pre>
+ */
+public class Benchmark {
+
+    private static final String[] BENCHMARKS = { "lockLatency", "filterAggregate",
+        "spillingJoin", "sortMergeJoin" };
+
+    /** Runs the benchmarks named in args, or all of them if there are none. */
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.length() > 0)
+                names.add(arg);
+        }
+        if (names.isEmpty())
+            names = Arrays.asList(BENCHMARKS);
+        for (String name : names) {
+            Database.reset();
+            if (name.equals("lockLatency"))
+                lockLatency();
+            else if (name.equals("filterAggregate"))
+                filterAggregate();
+            else if (name.equals("spillingJoin"))
+                spillingJoin();
+            else if (name.equals("sortMergeJoin"))
+                sortMergeJoin();
+            else
+                throw new IllegalArgumentException("no benchmark named " + name);
+        }
+    }
+
+    private static final Comparator<ArrayList<Integer>> BY_FIELDS =
+            new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size() && i < b.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return a.size() - b.size();
+        }
+    };
+
+    // The tuples of it, as lists of their fields
+    private static ArrayList<ArrayList<Integer>> collect(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return tuples;
+    }
+
+    // Fails unless expected and actual hold the same tuples, in any order
+    private static void check(String what, ArrayList<ArrayList<Integer>> expected,
+            ArrayList<ArrayList<Integer>> actual) {
+        Collections.sort(expected, BY_FIELDS);
+        Collections.sort(actual, BY_FIELDS);
+        if (!expected.equals(actual))
+            throw new AssertionError(what + " returned " + actual.size()
+                    + " tuples that are not the " + expected.size() + " expected");
+    }
+
+    // Every tuple of tuples1 joined with every tuple of tuples2 whose
+    // first field equals its own
+    private static ArrayList<ArrayList<Integer>> equiJoin(ArrayList<ArrayList<Integer>> tuples1,
+            ArrayList<ArrayList<Integer>> tuples2) {
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey =
+                new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t1 : tuples1) {
+            ArrayList<ArrayList<Integer>> matches = byKey.get(t1.get(0));
+            if (matches == null) {
+                matches = new ArrayList<ArrayList<Integer>>();
+                byKey.put(t1.get(0), matches);
+            }
+            matches.add(t1);
+        }
+        ArrayList<ArrayList<Integer>> joined = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : tuples2) {
+            ArrayList<ArrayList<Integer>> matches = byKey.get(t2.get(0));
+            if (matches == null)
+                continue;
+            for (ArrayList<Integer> t1 : matches) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                joined.add(out);
+            }
+        }
+        return joined;
+    }
+
+    // Reads all of it, and returns the number of tuples read
+    private static int drain(DbIterator it) throws DbException, TransactionAbortedException {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private static int counter;
+
+    /**
+     * Many transactions taking turns at a write lock on one page.  Prints a
+     * histogram of how long each waited for the lock.
+     */
+    static void lockLatency() throws Exception {
+        final int threads = 8;
+        final int rounds = 200;
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        final PageId pid = new HeapPageId(table.getId(), 0);
+        final BufferPool bp = Database.getBufferPool();
+        // bucket i counts waits of less than 2^i microseconds
+        final long[] histogram = new long[24];
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        counter = 0;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            TransactionId tid = new TransactionId();
+                            long start = System.nanoTime();
+                            bp.getPage(tid, pid, Permissions.READ_WRITE);
+                            long micros = (System.nanoTime() - start) / 1000;
+                            counter++;
+                            bp.transactionComplete(tid);
+                            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+                            synchronized (histogram) {
+                                histogram[Math.min(bucket, histogram.length - 1)]++;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        if (!errors.isEmpty() || counter != threads * rounds)
+            throw new AssertionError("lock not held exclusively: " + counter + " of "
+                    + threads * rounds + " rounds counted, errors " + errors);
+
+        System.out.println(threads + " threads taking a write lock " + rounds + " times each");
+        System.out.println("lock wait (us)   count");
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0)
+                System.out.println(String.format("< %-12d  %d", 1L << i, histogram[i]));
+        }
+    }
+
+    /**
+     * A filter and a grouped aggregate over a table held in the BufferPool,
+     * tuple at a time and batch at a time.  Prints the best of five runs of
+     * each.
+     */
+    static void filterAggregate() throws Exception {
+        final int rows = 200000;
+        Database.resetBufferPool(1000);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, 1 << 16, null, null);
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 15));
+        long tupleNanos = Long.MAX_VALUE;
+        long batchNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            ArrayList<ArrayList<Integer>> expected = collect(new Aggregate(
+                    new Filter(p, new SeqScan(tid, table.getId(), "")), 2, 0, Aggregator.Op.SUM));
+            tupleNanos = Math.min(tupleNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            ArrayList<ArrayList<Integer>> actual = collect(new BatchesToTuples(new BatchAggregate(
+                    new BatchFilter(p, new BatchSeqScan(tid, table.getId(), "")), 2, 0,
+                    Aggregator.Op.SUM)));
+            batchNanos = Math.min(batchNanos, System.nanoTime() - start);
+            check("batch filter+aggregate", expected, actual);
+        }
+        System.out.println("filter+aggregate over " + rows + " tuples: tuple at a time "
+                + tupleNanos / 1000000 + " ms, batch at a time " + batchNanos / 1000000 + " ms");
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An equi-join whose build side is 1, 10 and 100 times the memory
+     * budget.  Prints the best of five runs at each.
+     */
+    static void spillingJoin() throws Exception {
+        final int rows = 100000;
+        Database.resetBufferPool(1000);
+        ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, tuples1);
+        ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, tuples2);
+        ArrayList<ArrayList<Integer>> expected = equiJoin(tuples1, tuples2);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        String times = "";
+        for (int factor : new int[] { 1, 10, 100 }) {
+            long budget = (long) rows * table1.getTupleDesc().getSize() / factor;
+            check("equi-join at 1/" + factor + " of the build side", expected,
+                    collect(new Join(p, new SeqScan(tid, table1.getId(), ""),
+                            new SeqScan(tid, table2.getId(), ""), budget)));
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                Join join = new Join(p, new SeqScan(tid, table1.getId(), ""),
+                        new SeqScan(tid, table2.getId(), ""), budget);
+                long start = System.nanoTime();
+                drain(join);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            times += ", " + factor + "x " + best / 1000000 + " ms";
+        }
+        System.out.println("equi-join of " + rows + " by " + rows + " tuples, build side"
+                + " times the memory budget" + times);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A range join as a nested loops join and as a sort-merge join, with a
+     * memory budget that fits the inputs and with one a hundredth of their
+     * size.  Prints the best of three runs of each.
+     */
+    static void sortMergeJoin() throws Exception {
+        final int rows = 3000;
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, null);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+        long bytes = (long) rows * table1.getTupleDesc().getSize();
+        String[] names = { "nested loops", "sort-merge", "sort-merge at 1/100 of the input" };
+        ArrayList<ArrayList<Integer>> expected = null;
+        long[] nanos = new long[names.length];
+        for (int run = 0; run < 4; run++) {
+            for (int i = 0; i < names.length; i++) {
+                SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+                SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+                DbIterator join = i == 0 ? new Join(p, ss1, ss2)
+                        : new SortMergeJoin(p, ss1, ss2, i == 1 ? bytes : bytes / 100);
+                if (run == 0) {
+                    // an untimed run that checks every tuple
+                    ArrayList<ArrayList<Integer>> result = collect(join);
+                    if (i == 0)
+                        expected = result;
+                    else
+                        check(names[i], expected, result);
+                    continue;
+                }
+                long start = System.nanoTime();
+                drain(join);
+                long elapsed = System.nanoTime() - start;
+                nanos[i] = run == 1 ? elapsed : Math.min(nanos[i], elapsed);
+            }
+        }
+        String times = "";
+        for (int i = 0; i < names.length; i++)
+            times += (i == 0 ? ": " : ", ") + names[i] + " " + nanos[i] / 1000000 + " ms";
+        System.out.println("range join of " + rows + " by " + rows + " tuples, "
+                + expected.size() + " matches" + times);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
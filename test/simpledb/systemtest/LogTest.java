@@ -58,6 +58,18 @@ public class LogTest extends SimpleDbTestBase {
             throw new RuntimeException("LogTest: tuple present but shouldn't be");
     }
 
+    // delete the tuples whose first field is v1
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, TransactionAbortedException {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        Filter matches = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(v1)), scan);
+        Delete delete = new Delete(t.getId(), matches);
+        delete.open();
+        while (delete.hasNext())
+            delete.next();
+        delete.close();
+    }
+
     // insert tuples
     void doInsert(HeapFile hf, int t1, int t2)
         throws DbException, TransactionAbortedException, IOException {
@@ -427,6 +439,394 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // the log's segment files, oldest first
+    File[] logSegments() {
+        File[] files = new File("log").getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("log\\.[0-9]+");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test public void TestTornTail()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // the system goes down halfway through appending a record
+        // crash
+        // recovery drops the torn record, and the log stays usable
+
+        File[] segments = logSegments();
+        RandomAccessFile log = new RandomAccessFile(segments[segments.length - 1], "rw");
+        log.seek(log.length());
+        log.writeInt(2);   // the start of a COMMIT record
+        log.writeLong(99);
+        log.close();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestSegmentTruncation()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setSegmentSize(512);
+
+        // *** Test:
+        // enough commits to fill several small segments
+        // T1 inserts but does not commit
+        // checkpoint; the segments before T1 are deleted
+        // crash
+        // only the committed data should be there
+
+        for (int i = 0; i < 20; i++)
+            doInsert(hf1, 100 + i, -1);
+        int before = logSegments().length;
+        assertTrue(before > 2);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        int after = logSegments().length;
+        assertTrue(after < before);
+
+        for (int i = 0; i < 5; i++)
+            doInsert(hf2, 200 + i, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, false);
+        for (int i = 0; i < 20; i++)
+            look(hf1, t, 100 + i, true);
+        for (int i = 0; i < 5; i++)
+            look(hf2, t, 200 + i, true);
+        t.commit();
+    }
+
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a one-tuple insert logs the changed bytes, not two page images
+        // crash
+        // redo rebuilds the page from the small records
+
+        File log = new File("log");
+        long before = log.length();
+        doInsert(hf1, 3, -1);
+        long logged = log.length() - before;
+        assertTrue("logged " + logged + " bytes for one tuple",
+                   logged < BufferPool.getPageSize() / 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 4, 0);
+        Database.getBufferPool().flushAllPages();
+        // don't commit t
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestStolenChangeReverted()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        final boolean[] crashed = new boolean[1];
+        hf1 = new HeapFile(file1, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) throws IOException {
+                if (!crashed[0])
+                    super.writePage(page);
+            }
+        };
+        Database.getCatalog().addTable(hf1, UUID.randomUUID().toString());
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts a row and the page is stolen
+        // T1 deletes the row again, and commits
+        // crash before the page is written back
+        // the row stays deleted: redo puts back the bytes the steal changed
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5, 0);
+        Database.getBufferPool().flushAllPages();
+        deleteRow(hf1, t1, 5);
+        crashed[0] = true;
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestRedoSkipsFlushedPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf2, 3, -1);
+
+        // *** Test:
+        // hf1's page reaches disk with the LSN of its last update
+        // crash
+        // redo reads the page but has nothing to write to it
+
+        Database.reset();
+        final int[] writes = new int[1];
+        hf1 = new HeapFile(file1, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) throws IOException {
+                writes[0]++;
+                super.writePage(page);
+            }
+        };
+        Database.getCatalog().addTable(hf1, UUID.randomUUID().toString());
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+        assertEquals(0, writes[0]);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        final Thread me = Thread.currentThread();
+        final int[] writes = new int[1];
+        hf1 = new HeapFile(file1, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) throws IOException {
+                if (Thread.currentThread() == me)
+                    writes[0]++;
+                super.writePage(page);
+            }
+        };
+        Database.getCatalog().addTable(hf1, UUID.randomUUID().toString());
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // checkpoint; it writes no pages back
+        // checkpoints run in the background while T2 commits
+        // crash
+        // only the committed data should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        writes[0] = 0;
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, writes[0]);
+        insertRow(hf1, t1, 4, 0);
+
+        int records = Database.getLogFile().getTotalRecords();
+        Database.getLogFile().setCheckpointInterval(5);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Database.getLogFile().getTotalRecords() < records + 2
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(Database.getLogFile().getTotalRecords() >= records + 2);
+        doInsert(hf2, 5, 6);
+        Database.getLogFile().setCheckpointInterval(0);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 5, true);
+        look(hf2, t, 6, true);
+        t.commit();
+    }
+
+    // insert the rows from, from+1, ..., to-1 in one Insert
+    void insertRows(HeapFile hf, Transaction t, int from, int to)
+        throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int v = from; v < to; v++) {
+            Tuple value = new Tuple(Utility.getTupleDesc(2));
+            value.setField(0, new IntField(v));
+            value.setField(1, new IntField(0));
+            rows.add(value);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+        insert.open();
+        assertEquals(to - from, ((IntField)insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    // the sum of the first column of every row
+    long sum(HeapFile hf, Transaction t)
+        throws DbException, TransactionAbortedException {
+        long sum = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            sum += ((IntField)scan.next().getField(0)).getValue();
+        scan.close();
+        return sum;
+    }
+
+    @Test public void TestParallelRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // many transactions fill several pages of both tables
+        // T1 inserts a few pages' worth, is stolen, and does not commit
+        // more transactions commit; their page writes are lost in the crash
+        // redo spreads the pages over its workers; undo takes T1 out again
+
+        int next = 1;
+        for (int i = 0; i < 20; i++, next += 50) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRows(i % 2 == 0 ? hf1 : hf2, t, next, next + 50);
+            t.commit();
+        }
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(hf2, t1, 100000, 100600);
+        Database.getBufferPool().flushAllPages(); // T1's pages reach disk
+        hf1 = new HeapFile(file1, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) {
+                // never forced, so gone after the crash
+            }
+        };
+        Database.getCatalog().addTable(hf1, UUID.randomUUID().toString());
+        for (int i = 0; i < 20; i++, next += 50) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRows(hf1, t, next, next + 50);
+            t.commit();
+        }
+
+        crash();
+
+        long expected1 = 0, expected2 = 0;
+        for (int v = 1; v < next; v++) {
+            int batch = (v - 1) / 50;
+            if (batch < 20 && batch % 2 == 1)
+                expected2 += v;
+            else
+                expected1 += v;
+        }
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(expected1, sum(hf1, t));
+        assertEquals(expected2, sum(hf2, t));
+        look(hf2, t, 100000, false);
+        look(hf2, t, 100599, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        Database.getLogFile().setGroupCommitWait(2000);
+
+        // *** Test:
+        // many threads commit at once, each into its own table
+        // they share log forces
+        // crash
+        // every commit survives
+
+        final int threads = 8;
+        final int commits = 5;
+        final File[] files = new File[threads];
+        final HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; i++) {
+            files[i] = new File("simple_gc" + i + ".db");
+            files[i].delete();
+            tables[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+        }
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[threads];
+        int forcesBefore = Database.getLogFile().getForceCount();
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int c = 0; c < commits; c++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            insertRow(tables[me], t, me * 100 + c, 0);
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread w : workers)
+            w.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        int forces = Database.getLogFile().getForceCount() - forcesBefore;
+        assertTrue("expected commits to share forces, saw " + forces,
+                forces < threads * commits);
+
+        Database.reset();
+        for (int i = 0; i < threads; i++)
+            tables[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < threads; i++) {
+            for (int c = 0; c < commits; c++)
+                look(tables[i], t, i * 100 + c, true);
+        }
+        t.commit();
+        for (File f : files)
+            f.delete();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);